@@ -0,0 +1,195 @@
+package couchdb;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.ycsb.ByteIterator;
+import com.yahoo.ycsb.StringByteIterator;
+
+/*
+ * Client-side cost of the conversions every read, insert and scan goes
+ * through, without a CouchDB node. The defaults match the YCSB core
+ * workloads (10 fields of 100 bytes, scans of up to 100 records).
+ *
+ * Run with: mvn -Pjmh package exec:exec
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientHotPathBenchmark {
+
+	@Param({"10", "100"})
+	public int fieldCount;
+
+	@Param({"100", "1000"})
+	public int fieldLength;
+
+	@Param({"100"})
+	public int scanLength;
+
+	private CouchdbClient client;
+	private String[] fieldNames;
+	private String[] fieldValues;
+	private Set<String> requestedFields;
+	private StringToStringMap document;
+	private String documentJson;
+	private List<String> scanRows;
+	private byte[] allDocsResponse;
+	private DocumentWriter documentWriter;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setUp(){
+		this.client = new CouchdbClient();
+		Random random = new Random(42);
+		this.fieldNames = new String[this.fieldCount];
+		this.fieldValues = new String[this.fieldCount];
+		JSONObject json = new JSONObject();
+		json.put("_id", "user6284781860667377211");
+		json.put("_rev", "1-967a00dff5e02add41819138abb3284d");
+		for(int i=0; i<this.fieldCount; i++){
+			this.fieldNames[i] = "field" + i;
+			this.fieldValues[i] = randomValue(random, this.fieldLength);
+			json.put(this.fieldNames[i], this.fieldValues[i]);
+		}
+		// A read of one field, like YCSB with readallfields=false
+		this.requestedFields = new HashSet<String>();
+		this.requestedFields.add(this.fieldNames[0]);
+		this.document = new StringToStringMap(this.createValues());
+		this.document.put("_id", "user6284781860667377211");
+		this.document.put("_rev", "1-967a00dff5e02add41819138abb3284d");
+		this.documentJson = json.toJSONString();
+		this.scanRows = new ArrayList<String>();
+		StringBuilder allDocs = new StringBuilder("{\"total_rows\":1000000,\"offset\":0,\"rows\":[");
+		for(int i=0; i<this.scanLength; i++){
+			this.scanRows.add(this.documentJson);
+			if(i > 0)
+				allDocs.append(',');
+			allDocs.append("{\"id\":\"user").append(i).append("\",\"key\":\"user").append(i)
+				.append("\",\"value\":{\"rev\":\"1-967a00dff5e02add41819138abb3284d\"},\"doc\":")
+				.append(this.documentJson).append('}');
+		}
+		allDocs.append("]}");
+		this.allDocsResponse = allDocs.toString().getBytes();
+		this.documentWriter = new DocumentWriter();
+	}
+
+	// Printable ASCII, like the values of the YCSB RandomByteIterator
+	private static String randomValue(Random random, int length){
+		char[] result = new char[length];
+		for(int i=0; i<length; i++){
+			result[i] = (char) (' ' + random.nextInt(95));
+		}
+		return new String(result);
+	}
+
+	// ByteIterators are consumed once, every invocation needs fresh ones
+	private HashMap<String, ByteIterator> createValues(){
+		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
+		for(int i=0; i<this.fieldCount; i++){
+			result.put(this.fieldNames[i], new StringByteIterator(this.fieldValues[i]));
+		}
+		return result;
+	}
+
+	/*
+	 * Cost of creating the input of the insert benchmarks, subtract it
+	 * from their results.
+	 */
+	@Benchmark
+	public HashMap<String, ByteIterator> insertBaseline(){
+		return this.createValues();
+	}
+
+	@Benchmark
+	public StringToStringMap insertStringToStringMap(){
+		return new StringToStringMap(this.createValues());
+	}
+
+	@Benchmark
+	public int insertDocumentWriter(){
+		this.documentWriter.writeDocument("user6284781860667377211", null, this.createValues());
+		return this.documentWriter.getLength();
+	}
+
+	@Benchmark
+	public HashMap<String, ByteIterator> readAllFields(){
+		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
+		this.client.copyAllFieldsToResultMap(this.document, result);
+		return result;
+	}
+
+	@Benchmark
+	public HashMap<String, ByteIterator> readRequestedFields(){
+		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
+		this.client.copyRequestedFieldsToResultMap(this.requestedFields, this.document, result);
+		return result;
+	}
+
+	/*
+	 * The scan path with couchdb.scan.streaming=false: every row's doc is
+	 * parsed into a JSONObject and copied into a result map.
+	 */
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public List<HashMap<String, ByteIterator>> scanParseRows(){
+		List<HashMap<String, ByteIterator>> result = new ArrayList<HashMap<String, ByteIterator>>();
+		for(String row: this.scanRows){
+			JSONObject jsonObj = this.client.parseAsJsonObject(row);
+			result.add(this.client.getFieldsFromJsonObj(jsonObj.keySet(), jsonObj));
+		}
+		return result;
+	}
+
+	/*
+	 * The scan path with couchdb.scan.streaming=true, on the complete
+	 * _all_docs response of the same rows.
+	 */
+	@Benchmark
+	public List<HashMap<String, ByteIterator>> scanStreaming() throws Exception {
+		List<HashMap<String, ByteIterator>> result = new ArrayList<HashMap<String, ByteIterator>>();
+		new AllDocsStreamParser(null, result).parse(new ByteArrayInputStream(this.allDocsResponse));
+		return result;
+	}
+}
@@ -0,0 +1,121 @@
+package couchdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Cost of picking the node for a read in LoadBalancedConnector while
+ * many threads do the same, including the bookkeeping of the node's
+ * health that every request does. No request is sent: the nodes only
+ * have to exist while the connector is created, which an in-process
+ * server that answers every request with 200 takes care of.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class NodeSelectionBenchmark {
+
+	@Param({"3"})
+	public int nodeCount;
+
+	@Param({"ROUND_ROBIN", "LEAST_LATENCY", "POWER_OF_TWO_CHOICES"})
+	public ConnectorOptions.SelectionStrategy selectionStrategy;
+
+	private List<HttpServer> servers;
+	private LoadBalancedConnector connector;
+	private List<NodeHealth> nodeHealth;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.servers = new ArrayList<HttpServer>();
+		List<URL> urls = new ArrayList<URL>();
+		for(int i=0; i<this.nodeCount; i++){
+			HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/", new HttpHandler(){
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = "{\"ok\":true}".getBytes("UTF-8");
+					if(exchange.getRequestMethod().equals("HEAD")){
+						exchange.sendResponseHeaders(200, -1);
+						exchange.close();
+						return;
+					}
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+			});
+			server.start();
+			this.servers.add(server);
+			urls.add(new URL("http", "127.0.0.1", server.getAddress().getPort(), ""));
+		}
+		ConnectorOptions options = new ConnectorOptions();
+		options.setSelectionStrategy(this.selectionStrategy);
+		this.connector = new LoadBalancedConnector(urls, "usertable", options);
+		this.nodeHealth = this.connector.getNodeHealth();
+	}
+
+	@TearDown
+	public void tearDown(){
+		this.connector.shutdown();
+		for(HttpServer server: this.servers){
+			server.stop(0);
+		}
+	}
+
+	@Benchmark
+	public int selectNode(){
+		int[] nodeOrder = this.connector.getNodeOrderForRead();
+		NodeHealth health = this.nodeHealth.get(nodeOrder[0]);
+		long startTime = health.startRequest();
+		health.recordSuccess(startTime);
+		return nodeOrder[0];
+	}
+}
@@ -0,0 +1,271 @@
+package couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.yahoo.ycsb.ByteIterator;
+import com.yahoo.ycsb.StringByteIterator;
+
+/*
+ * Single pass parser for an _all_docs response with include_docs=true.
+ * The response is consumed token by token; the top-level fields of every
+ * row's doc are copied straight into a result map, without building a
+ * tree of the response first. Nested values of a doc are skipped, except
+ * the field index and inlined attachment of a document written by
+ * DocumentWriter.writeAttachmentDocument (with attachments=true), which
+ * are decoded into its fields.
+ *
+ * Expected layout:
+ * {"total_rows":..,"offset":..,"rows":[{"id":..,"key":..,"value":..,"doc":{..}}, ..]}
+ *
+ * The parser also understands the response of a Mango query, in which
+ * the docs are listed directly (see forFindResponse):
+ * {"docs":[{..}, ..]}
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class AllDocsStreamParser implements ContentHandler {
+
+	// Nesting depth of the values we are interested in
+	private static final int ROWS_DEPTH = 2;
+	private static final int ROW_DEPTH = 3;
+
+	private final Set<String> fields;
+	private final List<HashMap<String, ByteIterator>> result;
+	private final List<String> ids;
+	// Name of the top-level array and depth of the docs in the response
+	private final String rowsKey;
+	private final int docDepth;
+	private int depth;
+	private boolean rowsEntry;
+	private boolean inRows;
+	private boolean docEntry;
+	private boolean rowIdEntry;
+	private String currentRowId;
+	private boolean rowDocAdded;
+	private HashMap<String, ByteIterator> currentDoc;
+	private String currentField;
+	// Field index and attachment of a packed doc, null for other docs
+	private JSONObject packedIndex;
+	private JSONArray packedPosition;
+	private boolean attachmentEntry;
+	private boolean dataEntry;
+	private byte[] packedData;
+
+	/*
+	 * When fields is null all top-level fields of the docs are copied.
+	 */
+	public AllDocsStreamParser(Set<String> fields, List<HashMap<String, ByteIterator>> result){
+		this(fields, result, null, "rows", ROW_DEPTH + 1);
+	}
+
+	/*
+	 * Also adds the id of every document to ids, in the order of the
+	 * result list.
+	 */
+	public AllDocsStreamParser(Set<String> fields, List<HashMap<String, ByteIterator>> result,
+			List<String> ids){
+		this(fields, result, ids, "rows", ROW_DEPTH + 1);
+		if(ids == null)
+			throw new IllegalArgumentException("ids is null");
+	}
+
+	private AllDocsStreamParser(Set<String> fields, List<HashMap<String, ByteIterator>> result,
+			List<String> ids, String rowsKey, int docDepth){
+		if(result == null)
+			throw new IllegalArgumentException("result is null");
+		this.fields = fields;
+		this.result = result;
+		this.ids = ids;
+		this.rowsKey = rowsKey;
+		this.docDepth = docDepth;
+	}
+
+	/*
+	 * Returns a parser for the response of a POST to _find.
+	 */
+	public static AllDocsStreamParser forFindResponse(Set<String> fields,
+			List<HashMap<String, ByteIterator>> result){
+		return new AllDocsStreamParser(fields, result, null, "docs", ROW_DEPTH);
+	}
+
+	private boolean isDocsAreRows(){
+		return this.docDepth == ROW_DEPTH;
+	}
+
+	/*
+	 * Parses the stream and adds one map per document to the result list.
+	 * The stream is not closed.
+	 */
+	public void parse(InputStream stream) throws IOException, ParseException {
+		Reader reader = new InputStreamReader(stream, "UTF-8");
+		new JSONParser().parse(reader, this);
+	}
+
+	@Override
+	public void startJSON() {
+		this.depth = 0;
+		this.rowsEntry = false;
+		this.inRows = false;
+		this.docEntry = false;
+		this.rowIdEntry = false;
+		this.currentRowId = null;
+		this.rowDocAdded = false;
+		this.currentDoc = null;
+		this.currentField = null;
+		this.resetPackedDoc();
+	}
+
+	private void resetPackedDoc(){
+		this.packedIndex = null;
+		this.packedPosition = null;
+		this.attachmentEntry = false;
+		this.dataEntry = false;
+		this.packedData = null;
+	}
+
+	private boolean isInField(String field){
+		return this.currentDoc != null && field.equals(this.currentField);
+	}
+
+	@Override
+	public void endJSON() {
+	}
+
+	@Override
+	public boolean startObject() {
+		this.depth++;
+		if(this.depth == ROW_DEPTH && this.inRows){
+			this.currentRowId = null;
+			this.rowDocAdded = false;
+		}
+		if(this.depth == this.docDepth && (this.docEntry || (this.isDocsAreRows() && this.inRows))){
+			this.currentDoc = new HashMap<String, ByteIterator>();
+			this.resetPackedDoc();
+		}
+		if(this.depth == this.docDepth + 1 && this.isInField(DocumentWriter.FIELD_INDEX))
+			this.packedIndex = new JSONObject();
+		return true;
+	}
+
+	@Override
+	public boolean endObject() {
+		if(this.depth == this.docDepth && this.currentDoc != null){
+			if(this.packedData != null && this.packedIndex != null)
+				PackedRecord.fromIndex(this.packedIndex, this.packedData).copyFields(this.fields, this.currentDoc);
+			this.result.add(this.currentDoc);
+			this.rowDocAdded = true;
+			this.currentDoc = null;
+		}
+		// The id of a row may come after its doc
+		if(this.depth == ROW_DEPTH && this.inRows && this.rowDocAdded && this.ids != null)
+			this.ids.add(this.currentRowId);
+		this.depth--;
+		return true;
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) {
+		if(this.depth == 1)
+			this.rowsEntry = key.equals(this.rowsKey);
+		else if(this.depth == this.docDepth && this.currentDoc != null)
+			this.currentField = key;
+		else if(this.depth == this.docDepth + 1 && this.isInField(DocumentWriter.FIELD_INDEX))
+			this.startPackedPosition(key);
+		else if(this.depth == this.docDepth + 1 && this.isInField("_attachments"))
+			this.attachmentEntry = key.equals(DocumentWriter.ATTACHMENT_NAME);
+		else if(this.depth == this.docDepth + 2 && this.attachmentEntry && this.isInField("_attachments"))
+			this.dataEntry = key.equals("data");
+		else if(this.depth == ROW_DEPTH && this.inRows){
+			this.docEntry = key.equals("doc");
+			this.rowIdEntry = key.equals("id");
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() {
+		if(this.depth == this.docDepth + 1){
+			this.packedPosition = null;
+			this.attachmentEntry = false;
+		} else if(this.depth == this.docDepth + 2)
+			this.dataEntry = false;
+		if(this.depth == this.docDepth)
+			this.currentField = null;
+		else if(this.depth == ROW_DEPTH){
+			this.docEntry = false;
+			this.rowIdEntry = false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startArray() {
+		this.depth++;
+		if(this.depth == ROWS_DEPTH && this.rowsEntry)
+			this.inRows = true;
+		return true;
+	}
+
+	@Override
+	public boolean endArray() {
+		if(this.depth == ROWS_DEPTH)
+			this.inRows = false;
+		this.depth--;
+		return true;
+	}
+
+	@Override
+	public boolean primitive(Object value) {
+		if(this.depth == ROW_DEPTH && this.rowIdEntry)
+			this.currentRowId = String.valueOf(value);
+		if(this.depth == this.docDepth + 2 && this.packedPosition != null)
+			this.addPackedPosition(value);
+		else if(this.depth == this.docDepth + 2 && this.dataEntry && value instanceof String)
+			this.packedData = PackedRecord.decodeBase64((String) value);
+		if(this.depth != this.docDepth || this.currentDoc == null || this.currentField == null)
+			return true;
+		if(this.fields == null || this.fields.contains(this.currentField))
+			this.currentDoc.put(this.currentField, new StringByteIterator(String.valueOf(value)));
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void startPackedPosition(String field){
+		this.packedPosition = new JSONArray();
+		this.packedIndex.put(field, this.packedPosition);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addPackedPosition(Object value){
+		this.packedPosition.add(value);
+	}
+}
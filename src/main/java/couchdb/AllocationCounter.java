@@ -0,0 +1,86 @@
+package couchdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Measures the bytes allocated by the current thread between start() and
+ * stop(), summed over all threads that share the counter. Relies on the
+ * HotSpot extension of ThreadMXBean; on other JVMs nothing is counted.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class AllocationCounter {
+
+	private final String name;
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final AtomicLong operations;
+	private final AtomicLong allocatedBytes;
+
+	public AllocationCounter(String name){
+		this.name = name;
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+			this.threadBean = (com.sun.management.ThreadMXBean) bean;
+		else
+			this.threadBean = null;
+		this.operations = new AtomicLong();
+		this.allocatedBytes = new AtomicLong();
+	}
+
+	public boolean isSupported(){
+		return this.threadBean != null;
+	}
+
+	/*
+	 * Returns the value to pass to stop().
+	 */
+	public long start(){
+		if(this.threadBean == null)
+			return 0;
+		return this.threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public void stop(long start){
+		if(this.threadBean == null)
+			return;
+		long end = this.threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		this.operations.incrementAndGet();
+		this.allocatedBytes.addAndGet(end - start);
+	}
+
+	public long getOperations(){
+		return this.operations.get();
+	}
+
+	public long getAllocatedBytes(){
+		return this.allocatedBytes.get();
+	}
+
+	@Override
+	public String toString(){
+		long ops = this.getOperations();
+		long perOp = ops == 0 ? 0 : this.getAllocatedBytes() / ops;
+		return "[ALLOCATION " + this.name + "] operations=" + ops
+				+ "; allocatedBytes=" + this.getAllocatedBytes()
+				+ "; allocatedBytesPerOperation=" + perOp;
+	}
+}
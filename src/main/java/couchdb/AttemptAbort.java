@@ -0,0 +1,106 @@
+package couchdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.http.HttpConnection;
+
+/*
+ * Lets another thread abort the attempt the current thread is making on
+ * a node. The HttpClient of the node registers the connection of every
+ * request in the Handle of the current thread, and abort() closes that
+ * connection, so the blocked read fails at once. Ektorp itself can not
+ * abort a request that was sent. The connection is closed, not shut down:
+ * HttpClient 4.1 may still return it to the pool when the response was
+ * read just before, and a shut down connection can never be opened again.
+ *
+ * Used by hedged reads: the read that answers first aborts the other one.
+ * A connection that was already released to the pool is detached from
+ * its handle, closing it then does nothing.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class AttemptAbort {
+
+	private final ThreadLocal<Handle> handle;
+
+	public AttemptAbort(){
+		this.handle = new ThreadLocal<Handle>();
+	}
+
+	// Makes the requests of the current thread abortable until clear()
+	public Handle start(){
+		Handle result = new Handle();
+		this.handle.set(result);
+		return result;
+	}
+
+	public void clear(){
+		this.handle.remove();
+	}
+
+	public boolean isAborted(){
+		Handle current = this.handle.get();
+		return current != null && current.isAborted();
+	}
+
+	/*
+	 * Called by the HttpClient before a request of the current thread is
+	 * sent. Fails the request when the attempt was aborted already.
+	 */
+	public void register(HttpConnection connection) throws IOException{
+		Handle current = this.handle.get();
+		if(current != null && !current.setConnection(connection))
+			throw new InterruptedIOException("Attempt aborted");
+	}
+
+	public static class Handle {
+
+		private HttpConnection connection;
+		private boolean aborted;
+
+		private Handle(){
+			this.connection = null;
+			this.aborted = false;
+		}
+
+		private synchronized boolean setConnection(HttpConnection connection){
+			if(this.aborted)
+				return false;
+			this.connection = connection;
+			return true;
+		}
+
+		public synchronized boolean isAborted(){
+			return this.aborted;
+		}
+
+		public synchronized void abort(){
+			this.aborted = true;
+			if(this.connection == null)
+				return;
+			try{
+				this.connection.close();
+			} catch(IOException exc){
+				// The request fails either way
+			}
+		}
+	}
+}
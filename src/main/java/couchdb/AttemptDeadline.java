@@ -0,0 +1,60 @@
+package couchdb;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The deadline of the attempt the current thread is making on a node. The
+ * HttpClient of the node lowers the socket timeout of the request to the
+ * time that is left, so a node that hangs fails the attempt when its
+ * share of the deadline of the operation is spent.
+ *
+ * The connect timeout of the HttpClient still applies to new connections.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class AttemptDeadline {
+
+	private final ThreadLocal<Long> deadline;
+
+	public AttemptDeadline(){
+		this.deadline = new ThreadLocal<Long>();
+	}
+
+	// deadlineNanos is a System.nanoTime()
+	public void set(long deadlineNanos){
+		this.deadline.set(deadlineNanos);
+	}
+
+	public void clear(){
+		this.deadline.remove();
+	}
+
+	/*
+	 * Returns the milliseconds left (at least 1), or -1 when the current
+	 * thread has no deadline.
+	 */
+	public int getRemainingMillis(){
+		Long deadlineNanos = this.deadline.get();
+		if(deadlineNanos == null)
+			return -1;
+		long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+		return (int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+	}
+}
@@ -0,0 +1,162 @@
+package couchdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.ChangesFeed;
+import org.ektorp.changes.DocumentChange;
+
+/*
+ * Keeps a DocumentCache in line with the database: one thread per node
+ * follows the continuous _changes feed of the node (since=now) and drops
+ * the changed documents from the cache, one feed per shard database. Every
+ * node reports the writes it received and, with replication or a 2.x
+ * cluster, the writes of the other nodes as well; a change that arrives
+ * twice is harmless.
+ *
+ * When a feed breaks it is reopened after reconnectMs. Changes made while
+ * it was down are not replayed, so the whole cache is cleared once the
+ * new feed is open.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ChangesListener {
+
+	private static final int MAX_HEARTBEAT_MS = 10000;
+
+	private final LoadBalancedConnector connector;
+	private final DocumentCache cache;
+	private final long reconnectMs;
+	private final int heartbeatMs;
+	private final ChangesFeed[] feeds;
+	private final List<Thread> threads;
+	private final AtomicLong changes;
+	private volatile boolean stopped;
+
+	/*
+	 * Opens the feeds before it returns, so the documents cached from then
+	 * on are covered. Nodes that can not be reached are retried by their
+	 * thread.
+	 */
+	public ChangesListener(LoadBalancedConnector connector, DocumentCache cache, long reconnectMs){
+		if(connector == null || cache == null)
+			throw new IllegalArgumentException("connector or cache is null");
+		this.connector = connector;
+		this.cache = cache;
+		this.reconnectMs = reconnectMs;
+		// Well within the socket timeout, an idle feed must not time out
+		int socketTimeoutMs = connector.getOptions().getSocketTimeoutMs();
+		this.heartbeatMs = socketTimeoutMs == 0 ? MAX_HEARTBEAT_MS : Math.min(MAX_HEARTBEAT_MS, socketTimeoutMs / 2);
+		this.feeds = new ChangesFeed[connector.getShardCount() * connector.getNodeCount()];
+		this.threads = new ArrayList<Thread>();
+		this.changes = new AtomicLong();
+		this.stopped = false;
+		for(int index=0; index<this.feeds.length; index++){
+			final int listenedFeed = index;
+			final ChangesFeed feed = this.openFeed(index);
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					listen(listenedFeed, feed);
+				}
+			}, "couchdb-changes-" + (index + 1));
+			thread.setDaemon(true);
+			thread.start();
+			this.threads.add(thread);
+		}
+	}
+
+	// Feed index = shard * nodes + node, returns null when the node can not be reached
+	private ChangesFeed openFeed(int index){
+		ChangesCommand command = new ChangesCommand.Builder()
+			.continuous(true)
+			.since("now")
+			.heartbeat(this.heartbeatMs)
+			.build();
+		try{
+			int nodes = this.connector.getNodeCount();
+			ChangesFeed result = this.connector.changesFeed(index / nodes, index % nodes, command);
+			synchronized(this.feeds){
+				this.feeds[index] = result;
+				if(this.stopped)
+					result.cancel();
+			}
+			return result;
+		} catch(RuntimeException exc){
+			return null;
+		}
+	}
+
+	private void listen(int index, ChangesFeed feed){
+		while(!this.stopped){
+			if(feed != null)
+				this.follow(feed);
+			if(this.stopped)
+				return;
+			try{
+				Thread.sleep(this.reconnectMs);
+			} catch(InterruptedException exc){
+				return;
+			}
+			feed = this.openFeed(index);
+			if(feed != null)
+				this.cache.clear();
+		}
+	}
+
+	// Returns when the feed broke or the listener is shut down
+	private void follow(ChangesFeed feed){
+		try{
+			while(!this.stopped){
+				DocumentChange change = feed.next();
+				this.changes.incrementAndGet();
+				this.cache.applyChange(change.getId(), change.getRevision());
+			}
+		} catch(InterruptedException exc){
+			// The feed was cancelled or broke
+		} catch(IllegalStateException exc){
+			// The feed is not alive anymore
+		}
+	}
+
+	public void shutdown(){
+		synchronized(this.feeds){
+			this.stopped = true;
+			for(ChangesFeed feed: this.feeds){
+				if(feed != null)
+					feed.cancel();
+			}
+		}
+		for(Thread thread: this.threads){
+			thread.interrupt();
+		}
+	}
+
+	public long getChanges(){
+		return this.changes.get();
+	}
+
+	@Override
+	public String toString(){
+		return "[CHANGES LISTENER] feeds=" + this.feeds.length + "; changes=" + this.getChanges();
+	}
+}
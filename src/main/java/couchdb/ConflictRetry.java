@@ -0,0 +1,128 @@
+package couchdb;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Retry policy for writes that got a conflict because another writer
+ * changed the document first: the caller re-reads the document, applies
+ * its change again and retries after backoff(), until the write succeeds
+ * or the attempts or the time budget run out.
+ *
+ * The backoff grows exponentially from the initial backoff up to the
+ * maximum and is jittered (a random delay up to that bound), so writers
+ * that collided do not collide again on their next attempt.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ConflictRetry {
+
+	private final String name;
+	private final int maxRetries;
+	private final long budgetNanos;
+	private final long initialBackoffNanos;
+	private final long maxBackoffNanos;
+	private final Random random;
+	private final AtomicLong conflicts;
+	private final AtomicLong retries;
+	private final AtomicLong resolved;
+	private final AtomicLong gaveUp;
+
+	/*
+	 * A budgetMs of 0 leaves the number of retries as the only limit.
+	 */
+	public ConflictRetry(String name, int maxRetries, long budgetMs,
+			long initialBackoffMicros, long maxBackoffMicros){
+		if(maxRetries <= 0 || budgetMs < 0 || initialBackoffMicros <= 0
+				|| maxBackoffMicros < initialBackoffMicros)
+			throw new IllegalArgumentException("Invalid retries, budget or backoff");
+		this.name = name;
+		this.maxRetries = maxRetries;
+		this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+		this.initialBackoffNanos = TimeUnit.MICROSECONDS.toNanos(initialBackoffMicros);
+		this.maxBackoffNanos = TimeUnit.MICROSECONDS.toNanos(maxBackoffMicros);
+		this.random = new Random();
+		this.conflicts = new AtomicLong();
+		this.retries = new AtomicLong();
+		this.resolved = new AtomicLong();
+		this.gaveUp = new AtomicLong();
+	}
+
+	/*
+	 * Called after the given number of retries of an operation that
+	 * started at startTime (System.nanoTime()) got a conflict. Sleeps the
+	 * backoff and returns true when the operation should be retried.
+	 */
+	public boolean backoff(int retriesDone, long startTime){
+		if(retriesDone >= this.maxRetries)
+			return false;
+		long bound = this.initialBackoffNanos << Math.min(retriesDone, 30);
+		if(bound <= 0 || bound > this.maxBackoffNanos)
+			bound = this.maxBackoffNanos;
+		long delay = (long) (this.random.nextDouble() * bound);
+		if(this.budgetNanos > 0 && System.nanoTime() + delay - startTime > this.budgetNanos)
+			return false;
+		try{
+			TimeUnit.NANOSECONDS.sleep(delay);
+		} catch(InterruptedException exc){
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Records an operation whose first attempt got a conflict, after its
+	 * last retry.
+	 */
+	public void record(int retriesDone, boolean succeeded){
+		this.conflicts.incrementAndGet();
+		this.retries.addAndGet(retriesDone);
+		if(succeeded)
+			this.resolved.incrementAndGet();
+		else
+			this.gaveUp.incrementAndGet();
+	}
+
+	public long getConflicts(){
+		return this.conflicts.get();
+	}
+
+	public long getRetries(){
+		return this.retries.get();
+	}
+
+	public long getResolved(){
+		return this.resolved.get();
+	}
+
+	public long getGaveUp(){
+		return this.gaveUp.get();
+	}
+
+	@Override
+	public String toString(){
+		return "[CONFLICT RETRY " + this.name + "] conflicts=" + this.getConflicts()
+				+ "; retries=" + this.getRetries()
+				+ "; resolved=" + this.getResolved()
+				+ "; gaveUp=" + this.getGaveUp();
+	}
+}
@@ -0,0 +1,298 @@
+package couchdb;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+/*
+ * Latency histograms and outcome counters of a LoadBalancedConnector,
+ * per node and per operation. Every attempt on a node is recorded, so
+ * failovers show up as failed attempts on one node followed by an
+ * attempt on the next one.
+ *
+ * Latencies are recorded in microseconds into an HdrHistogram Recorder,
+ * which any thread can write to without locking. The recorded values
+ * are moved into a cumulative histogram whenever an interval is taken,
+ * either by the interval log or by the summary.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ConnectorMetrics {
+
+	public enum Operation {
+		READ,
+		QUERY,
+		CREATE,
+		PUT,
+		UPDATE,
+		DELETE,
+		REVISION,
+		BULK
+	}
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private final List<NodeHealth> nodes;
+	// Indexed by node, then by Operation.ordinal()
+	private final OperationStats[][] stats;
+	// Time spent waiting for a connection of the pool, per node
+	private final OperationStats[] leaseWaits;
+	private final AtomicLong[] noNodeReachable;
+	private ScheduledExecutorService logger;
+	private PrintStream logStream;
+	private HistogramLogWriter logWriter;
+
+	public ConnectorMetrics(List<NodeHealth> nodes){
+		this.nodes = nodes;
+		Operation[] operations = Operation.values();
+		this.stats = new OperationStats[nodes.size()][operations.length];
+		for(int node=0; node<nodes.size(); node++){
+			for(Operation operation: operations){
+				String tag = "node" + node + "." + operation;
+				this.stats[node][operation.ordinal()] = new OperationStats(tag);
+			}
+		}
+		this.leaseWaits = new OperationStats[nodes.size()];
+		for(int node=0; node<nodes.size(); node++){
+			this.leaseWaits[node] = new OperationStats("node" + node + ".LEASE");
+		}
+		this.noNodeReachable = new AtomicLong[operations.length];
+		for(int i=0; i<operations.length; i++){
+			this.noNodeReachable[i] = new AtomicLong();
+		}
+	}
+
+	/*
+	 * An attempt that got an answer from the node.
+	 */
+	public void recordSuccess(int node, Operation operation, long startTime){
+		OperationStats stats = this.stats[node][operation.ordinal()];
+		stats.record(startTime);
+	}
+
+	public void recordConflict(int node, Operation operation, long startTime){
+		OperationStats stats = this.stats[node][operation.ordinal()];
+		stats.record(startTime);
+		stats.conflicts.incrementAndGet();
+	}
+
+	public void recordNotFound(int node, Operation operation, long startTime){
+		OperationStats stats = this.stats[node][operation.ordinal()];
+		stats.record(startTime);
+		stats.notFound.incrementAndGet();
+	}
+
+	/*
+	 * An attempt that failed; failedOver tells whether the operation was
+	 * retried on another node afterwards. The kind is null for failures
+	 * that FailureKind does not classify.
+	 */
+	public void recordFailure(int node, Operation operation, long startTime, FailureKind kind, boolean failedOver){
+		OperationStats stats = this.stats[node][operation.ordinal()];
+		stats.record(startTime);
+		stats.failures.incrementAndGet();
+		if(kind != null)
+			stats.failureKinds[kind.ordinal()].incrementAndGet();
+		if(failedOver)
+			stats.failovers.incrementAndGet();
+	}
+
+	public void recordNoNodeReachable(Operation operation){
+		this.noNodeReachable[operation.ordinal()].incrementAndGet();
+	}
+
+	/*
+	 * A request that got a connection of the pool of the node (or gave up
+	 * waiting for one).
+	 */
+	public void recordLeaseWait(int node, long startTime){
+		this.leaseWaits[node].record(startTime);
+	}
+
+	/*
+	 * Writes the histograms of every node and operation to the file every
+	 * intervalMs, in the HdrHistogram log format. Every histogram is
+	 * tagged with node<index>.<operation>, the lease waits with
+	 * node<index>.LEASE.
+	 */
+	public synchronized void startIntervalLog(String fileName, long intervalMs) throws IOException{
+		if(this.logger != null)
+			throw new IllegalStateException("Interval log already started");
+		this.logStream = new PrintStream(new FileOutputStream(fileName));
+		this.logWriter = new HistogramLogWriter(this.logStream);
+		this.logWriter.outputLogFormatVersion();
+		this.logWriter.outputStartTime(System.currentTimeMillis());
+		this.logWriter.outputLegend();
+		this.logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "couchdb-metrics-log");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.logger.scheduleAtFixedRate(new Runnable(){
+			@Override
+			public void run(){
+				takeIntervals();
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Stops the interval log after writing the last interval.
+	 */
+	public synchronized void stop(){
+		if(this.logger == null)
+			return;
+		this.logger.shutdownNow();
+		this.takeIntervals();
+		this.logStream.close();
+		this.logger = null;
+		this.logWriter = null;
+		this.logStream = null;
+	}
+
+	// Moves the recorded values into the cumulative histograms
+	private synchronized void takeIntervals(){
+		for(OperationStats[] nodeStats: this.stats){
+			for(OperationStats stats: nodeStats){
+				Histogram interval = stats.takeInterval();
+				if(this.logWriter != null && interval.getTotalCount() > 0)
+					this.logWriter.outputIntervalHistogram(interval);
+			}
+		}
+		for(OperationStats stats: this.leaseWaits){
+			Histogram interval = stats.takeInterval();
+			if(this.logWriter != null && interval.getTotalCount() > 0)
+				this.logWriter.outputIntervalHistogram(interval);
+		}
+	}
+
+	/*
+	 * One line per node and operation that was attempted and one line with
+	 * the lease waits per node, followed by the operations that failed on
+	 * all nodes.
+	 */
+	public synchronized String getSummary(){
+		this.takeIntervals();
+		StringBuilder result = new StringBuilder();
+		Operation[] operations = Operation.values();
+		for(int node=0; node<this.stats.length; node++){
+			for(Operation operation: operations){
+				OperationStats stats = this.stats[node][operation.ordinal()];
+				Histogram total = stats.total;
+				if(total.getTotalCount() == 0)
+					continue;
+				result.append("[NODE ").append(this.nodes.get(node).getName())
+					.append(' ').append(operation).append("] attempts=").append(total.getTotalCount())
+					.append("; failovers=").append(stats.failovers.get())
+					.append("; failures=").append(stats.failures.get())
+					.append("; timeouts=").append(stats.getFailures(FailureKind.TIMEOUT))
+					.append("; unreachable=").append(stats.getFailures(FailureKind.UNREACHABLE))
+					.append("; serverErrors=").append(stats.getFailures(FailureKind.SERVER_ERROR))
+					.append("; clientErrors=").append(stats.getFailures(FailureKind.CLIENT_ERROR))
+					.append("; conflicts=").append(stats.conflicts.get())
+					.append("; notFound=").append(stats.notFound.get())
+					.append("; meanUs=").append((long) total.getMean())
+					.append("; p50Us=").append(total.getValueAtPercentile(50))
+					.append("; p95Us=").append(total.getValueAtPercentile(95))
+					.append("; p99Us=").append(total.getValueAtPercentile(99))
+					.append("; maxUs=").append(total.getMaxValue())
+					.append('\n');
+			}
+		}
+		for(int node=0; node<this.leaseWaits.length; node++){
+			Histogram total = this.leaseWaits[node].total;
+			if(total.getTotalCount() == 0)
+				continue;
+			result.append("[POOL ").append(this.nodes.get(node).getName())
+				.append("] leases=").append(total.getTotalCount())
+				.append("; meanWaitUs=").append((long) total.getMean())
+				.append("; p50WaitUs=").append(total.getValueAtPercentile(50))
+				.append("; p95WaitUs=").append(total.getValueAtPercentile(95))
+				.append("; p99WaitUs=").append(total.getValueAtPercentile(99))
+				.append("; maxWaitUs=").append(total.getMaxValue())
+				.append('\n');
+		}
+		result.append("[NO NODE REACHABLE]");
+		for(Operation operation: operations){
+			result.append(' ').append(operation).append('=')
+				.append(this.noNodeReachable[operation.ordinal()].get());
+		}
+		return result.toString();
+	}
+
+	private static class OperationStats {
+
+		private final Recorder recorder;
+		private final Histogram total;
+		private final AtomicLong failovers;
+		private final AtomicLong failures;
+		// Indexed by FailureKind.ordinal()
+		private final AtomicLong[] failureKinds;
+		private final AtomicLong conflicts;
+		private final AtomicLong notFound;
+		private final String tag;
+		private Histogram interval;
+
+		OperationStats(String tag){
+			this.tag = tag;
+			this.recorder = new Recorder(SIGNIFICANT_DIGITS);
+			this.total = new Histogram(SIGNIFICANT_DIGITS);
+			this.failovers = new AtomicLong();
+			this.failures = new AtomicLong();
+			this.failureKinds = new AtomicLong[FailureKind.values().length];
+			for(int i=0; i<this.failureKinds.length; i++){
+				this.failureKinds[i] = new AtomicLong();
+			}
+			this.conflicts = new AtomicLong();
+			this.notFound = new AtomicLong();
+			this.interval = null;
+		}
+
+		void record(long startTime){
+			long latencyUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime);
+			this.recorder.recordValue(Math.max(latencyUs, 0));
+		}
+
+		long getFailures(FailureKind kind){
+			return this.failureKinds[kind.ordinal()].get();
+		}
+
+		// Caller holds the lock of the ConnectorMetrics
+		Histogram takeInterval(){
+			this.interval = this.recorder.getIntervalHistogram(this.interval);
+			this.interval.setTag(this.tag);
+			this.total.add(this.interval);
+			return this.interval;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package couchdb;
+
+/*
+ * Settings of a LoadBalancedConnector. CouchdbClient fills them in from the
+ * YCSB properties, the defaults match the behaviour of a connector that is
+ * created without options.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ConnectorOptions {
+
+	public enum RoutingMode {
+		// Mutations go to the first node, reads are spread round-robin
+		ROUND_ROBIN,
+		// Every document id is routed to its primary node on a hash ring
+		CONSISTENT_HASH
+	}
+
+	public enum SelectionStrategy {
+		// Plain rotation over the available nodes
+		ROUND_ROBIN,
+		// Node with the lowest moving average latency, weighted by its load
+		LEAST_LATENCY,
+		// Least outstanding requests out of two randomly chosen nodes
+		POWER_OF_TWO_CHOICES
+	}
+
+	// Default pool size of StdHttpClient
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_NODE = 20;
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+	public static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_PROBE_INTERVAL_MS = 1000;
+	public static final long DEFAULT_METRICS_INTERVAL_MS = 10000;
+	public static final int DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+	// Timeouts of StdHttpClient.Builder
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 1000;
+	public static final int DEFAULT_SOCKET_TIMEOUT_MS = 10000;
+	public static final double DEFAULT_HEDGE_MAX_RATE = 0.05;
+
+	private int maxConnectionsPerNode;
+	private RoutingMode routingMode;
+	private int virtualNodesPerNode;
+	private boolean routeReadsByKey;
+	private SelectionStrategy selectionStrategy;
+	private int breakerFailureThreshold;
+	private long probeIntervalMs;
+	private boolean installDesignDocument;
+	private String metricsLogFile;
+	private long metricsIntervalMs;
+	private boolean compression;
+	private int compressionMinBytes;
+	private int shards;
+	private int shardQ;
+	private int shardN;
+	private boolean keepAlive;
+	private boolean tcpNoDelay;
+	private boolean staleConnectionCheck;
+	private int connectTimeoutMs;
+	private int socketTimeoutMs;
+	private int operationTimeoutMs;
+	private boolean hedgeReads;
+	private long hedgeDelayMicros;
+	private double hedgeMaxRate;
+
+	public ConnectorOptions(){
+		this.maxConnectionsPerNode = DEFAULT_MAX_CONNECTIONS_PER_NODE;
+		this.routingMode = RoutingMode.ROUND_ROBIN;
+		this.virtualNodesPerNode = DEFAULT_VIRTUAL_NODES;
+		this.routeReadsByKey = false;
+		this.selectionStrategy = SelectionStrategy.ROUND_ROBIN;
+		this.breakerFailureThreshold = DEFAULT_BREAKER_FAILURE_THRESHOLD;
+		this.probeIntervalMs = DEFAULT_PROBE_INTERVAL_MS;
+		this.installDesignDocument = false;
+		this.metricsLogFile = null;
+		this.metricsIntervalMs = DEFAULT_METRICS_INTERVAL_MS;
+		this.compression = false;
+		this.compressionMinBytes = DEFAULT_COMPRESSION_MIN_BYTES;
+		this.shards = 1;
+		this.shardQ = 0;
+		this.shardN = 0;
+		this.keepAlive = true;
+		this.tcpNoDelay = true;
+		this.staleConnectionCheck = true;
+		this.connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+		this.socketTimeoutMs = DEFAULT_SOCKET_TIMEOUT_MS;
+		this.operationTimeoutMs = 0;
+		this.hedgeReads = false;
+		this.hedgeDelayMicros = 0;
+		this.hedgeMaxRate = DEFAULT_HEDGE_MAX_RATE;
+	}
+
+	public int getMaxConnectionsPerNode(){
+		return this.maxConnectionsPerNode;
+	}
+
+	public void setMaxConnectionsPerNode(int maxConnectionsPerNode){
+		if(maxConnectionsPerNode <= 0)
+			throw new IllegalArgumentException("maxConnectionsPerNode must be positive");
+		this.maxConnectionsPerNode = maxConnectionsPerNode;
+	}
+
+	public RoutingMode getRoutingMode(){
+		return this.routingMode;
+	}
+
+	public void setRoutingMode(RoutingMode routingMode){
+		if(routingMode == null)
+			throw new IllegalArgumentException("routingMode is null");
+		this.routingMode = routingMode;
+	}
+
+	public int getVirtualNodesPerNode(){
+		return this.virtualNodesPerNode;
+	}
+
+	public void setVirtualNodesPerNode(int virtualNodesPerNode){
+		if(virtualNodesPerNode <= 0)
+			throw new IllegalArgumentException("virtualNodesPerNode must be positive");
+		this.virtualNodesPerNode = virtualNodesPerNode;
+	}
+
+	/*
+	 * Only used in CONSISTENT_HASH mode: when true, reads are also sent to
+	 * the primary node of the document instead of round-robin.
+	 */
+	public boolean isRouteReadsByKey(){
+		return this.routeReadsByKey;
+	}
+
+	public void setRouteReadsByKey(boolean routeReadsByKey){
+		this.routeReadsByKey = routeReadsByKey;
+	}
+
+	/*
+	 * Strategy used to pick the node for reads that are not routed by key.
+	 */
+	public SelectionStrategy getSelectionStrategy(){
+		return this.selectionStrategy;
+	}
+
+	public void setSelectionStrategy(SelectionStrategy selectionStrategy){
+		if(selectionStrategy == null)
+			throw new IllegalArgumentException("selectionStrategy is null");
+		this.selectionStrategy = selectionStrategy;
+	}
+
+	/*
+	 * Number of consecutive failures after which a node is taken out of
+	 * rotation, 0 disables the circuit breakers.
+	 */
+	public int getBreakerFailureThreshold(){
+		return this.breakerFailureThreshold;
+	}
+
+	public void setBreakerFailureThreshold(int breakerFailureThreshold){
+		if(breakerFailureThreshold < 0)
+			throw new IllegalArgumentException("breakerFailureThreshold must not be negative");
+		this.breakerFailureThreshold = breakerFailureThreshold;
+	}
+
+	public long getProbeIntervalMs(){
+		return this.probeIntervalMs;
+	}
+
+	public void setProbeIntervalMs(long probeIntervalMs){
+		if(probeIntervalMs <= 0)
+			throw new IllegalArgumentException("probeIntervalMs must be positive");
+		this.probeIntervalMs = probeIntervalMs;
+	}
+
+	/*
+	 * When true, the connector installs the _design/ycsb document (see
+	 * DesignDocument) on every node when it is created.
+	 */
+	public boolean isInstallDesignDocument(){
+		return this.installDesignDocument;
+	}
+
+	public void setInstallDesignDocument(boolean installDesignDocument){
+		this.installDesignDocument = installDesignDocument;
+	}
+
+	/*
+	 * File the per-node latency histograms are written to every
+	 * metricsIntervalMs (HdrHistogram log format), null for no log.
+	 */
+	public String getMetricsLogFile(){
+		return this.metricsLogFile;
+	}
+
+	public void setMetricsLogFile(String metricsLogFile){
+		this.metricsLogFile = metricsLogFile;
+	}
+
+	public long getMetricsIntervalMs(){
+		return this.metricsIntervalMs;
+	}
+
+	public void setMetricsIntervalMs(long metricsIntervalMs){
+		if(metricsIntervalMs <= 0)
+			throw new IllegalArgumentException("metricsIntervalMs must be positive");
+		this.metricsIntervalMs = metricsIntervalMs;
+	}
+
+	/*
+	 * When true, the nodes are asked for gzip encoded responses and request
+	 * bodies of at least compressionMinBytes are sent gzipped (see
+	 * TrafficHttpClientBuilder).
+	 */
+	public boolean isCompression(){
+		return this.compression;
+	}
+
+	public void setCompression(boolean compression){
+		this.compression = compression;
+	}
+
+	public int getCompressionMinBytes(){
+		return this.compressionMinBytes;
+	}
+
+	public void setCompressionMinBytes(int compressionMinBytes){
+		if(compressionMinBytes < 0)
+			throw new IllegalArgumentException("compressionMinBytes must not be negative");
+		this.compressionMinBytes = compressionMinBytes;
+	}
+
+	/*
+	 * Number of databases the documents are spread over. With more than
+	 * one shard the databases are named name_0 .. name_(shards-1).
+	 */
+	public int getShards(){
+		return this.shards;
+	}
+
+	public void setShards(int shards){
+		if(shards <= 0)
+			throw new IllegalArgumentException("shards must be positive");
+		this.shards = shards;
+	}
+
+	/*
+	 * The q (number of shard ranges) and n (number of replicas) of the
+	 * databases the connector creates on CouchDB 2.0 and later; 0 leaves
+	 * it to the cluster default.
+	 */
+	public int getShardQ(){
+		return this.shardQ;
+	}
+
+	public void setShardQ(int shardQ){
+		if(shardQ < 0)
+			throw new IllegalArgumentException("shardQ must not be negative");
+		this.shardQ = shardQ;
+	}
+
+	public int getShardN(){
+		return this.shardN;
+	}
+
+	public void setShardN(int shardN){
+		if(shardN < 0)
+			throw new IllegalArgumentException("shardN must not be negative");
+		this.shardN = shardN;
+	}
+
+	/*
+	 * Whether connections are kept open and reused for the next request
+	 * to the node.
+	 */
+	public boolean isKeepAlive(){
+		return this.keepAlive;
+	}
+
+	public void setKeepAlive(boolean keepAlive){
+		this.keepAlive = keepAlive;
+	}
+
+	public boolean isTcpNoDelay(){
+		return this.tcpNoDelay;
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay){
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/*
+	 * Whether a pooled connection is checked for being closed by the node
+	 * before it is reused.
+	 */
+	public boolean isStaleConnectionCheck(){
+		return this.staleConnectionCheck;
+	}
+
+	public void setStaleConnectionCheck(boolean staleConnectionCheck){
+		this.staleConnectionCheck = staleConnectionCheck;
+	}
+
+	/*
+	 * Timeouts of opening a connection and of waiting for data on it, 0
+	 * waits forever.
+	 */
+	public int getConnectTimeoutMs(){
+		return this.connectTimeoutMs;
+	}
+
+	public void setConnectTimeoutMs(int connectTimeoutMs){
+		if(connectTimeoutMs < 0)
+			throw new IllegalArgumentException("connectTimeoutMs must not be negative");
+		this.connectTimeoutMs = connectTimeoutMs;
+	}
+
+	public int getSocketTimeoutMs(){
+		return this.socketTimeoutMs;
+	}
+
+	public void setSocketTimeoutMs(int socketTimeoutMs){
+		if(socketTimeoutMs < 0)
+			throw new IllegalArgumentException("socketTimeoutMs must not be negative");
+		this.socketTimeoutMs = socketTimeoutMs;
+	}
+
+	/*
+	 * Time an operation may take over all its attempts, 0 for no deadline.
+	 * Every attempt gets an equal share of the time that is left.
+	 */
+	public int getOperationTimeoutMs(){
+		return this.operationTimeoutMs;
+	}
+
+	public void setOperationTimeoutMs(int operationTimeoutMs){
+		if(operationTimeoutMs < 0)
+			throw new IllegalArgumentException("operationTimeoutMs must not be negative");
+		this.operationTimeoutMs = operationTimeoutMs;
+	}
+
+	/*
+	 * Whether a document read that is slow to answer is sent to a second
+	 * node as well (see ReadHedger).
+	 */
+	public boolean isHedgeReads(){
+		return this.hedgeReads;
+	}
+
+	public void setHedgeReads(boolean hedgeReads){
+		this.hedgeReads = hedgeReads;
+	}
+
+	/*
+	 * Time after which a read is hedged, 0 uses the 95th percentile of
+	 * the read latency of the node.
+	 */
+	public long getHedgeDelayMicros(){
+		return this.hedgeDelayMicros;
+	}
+
+	public void setHedgeDelayMicros(long hedgeDelayMicros){
+		if(hedgeDelayMicros < 0)
+			throw new IllegalArgumentException("hedgeDelayMicros must not be negative");
+		this.hedgeDelayMicros = hedgeDelayMicros;
+	}
+
+	// Fraction of the reads that may be hedged
+	public double getHedgeMaxRate(){
+		return this.hedgeMaxRate;
+	}
+
+	public void setHedgeMaxRate(double hedgeMaxRate){
+		if(hedgeMaxRate < 0 || hedgeMaxRate > 1)
+			throw new IllegalArgumentException("hedgeMaxRate must be between 0 and 1");
+		this.hedgeMaxRate = hedgeMaxRate;
+	}
+}
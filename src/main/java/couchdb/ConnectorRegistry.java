@@ -0,0 +1,88 @@
+package couchdb;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Process-wide registry of LoadBalancedConnectors. YCSB creates one
+ * CouchdbClient per thread; all clients that talk to the same hosts and
+ * database share one connector, and therefore one connection pool per
+ * node. The connector is created (and the database provisioned) by the
+ * first client and shut down when the last client releases it.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ConnectorRegistry {
+
+	private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private ConnectorRegistry(){
+	}
+
+	private static String getKey(List<URL> urls, String databaseName){
+		return urls.toString() + "/" + databaseName;
+	}
+
+	/*
+	 * The options are only used by the client that creates the connector.
+	 * All clients of a YCSB run share the same properties, so they would
+	 * ask for the same options anyway.
+	 */
+	public static synchronized LoadBalancedConnector acquire(List<URL> urls, String databaseName,
+			ConnectorOptions options){
+		if(urls == null)
+			throw new IllegalArgumentException("urls is null");
+		String key = getKey(urls, databaseName);
+		Entry entry = entries.get(key);
+		if(entry == null){
+			entry = new Entry(new LoadBalancedConnector(urls, databaseName, options));
+			entries.put(key, entry);
+		}
+		entry.referenceCount++;
+		return entry.connector;
+	}
+
+	public static synchronized void release(LoadBalancedConnector connector){
+		for(Map.Entry<String, Entry> mapEntry: entries.entrySet()){
+			Entry entry = mapEntry.getValue();
+			if(entry.connector != connector)
+				continue;
+			entry.referenceCount--;
+			if(entry.referenceCount == 0){
+				entries.remove(mapEntry.getKey());
+				connector.shutdown();
+			}
+			return;
+		}
+	}
+
+	private static class Entry {
+
+		private final LoadBalancedConnector connector;
+		private int referenceCount;
+
+		Entry(LoadBalancedConnector connector){
+			this.connector = connector;
+			this.referenceCount = 0;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package couchdb;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Consistent hash ring with virtual nodes. Every node is placed on the
+ * ring virtualNodesPerNode times; a key belongs to the first node found
+ * clockwise from the hash of the key. Walking further around the ring
+ * gives the failover order for that key.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ConsistentHashRing {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final TreeMap<Long, Integer> ring;
+	private final int numberOfNodes;
+
+	/*
+	 * The names identify the nodes on the ring (e.g. their url), the index
+	 * of a name in the list is the value returned for that node.
+	 */
+	public ConsistentHashRing(List<String> nodeNames, int virtualNodesPerNode){
+		if(nodeNames == null || nodeNames.isEmpty())
+			throw new IllegalArgumentException("At least one node required");
+		if(virtualNodesPerNode <= 0)
+			throw new IllegalArgumentException("virtualNodesPerNode must be positive");
+		this.ring = new TreeMap<Long, Integer>();
+		this.numberOfNodes = nodeNames.size();
+		for(int node=0; node<nodeNames.size(); node++){
+			for(int virtualNode=0; virtualNode<virtualNodesPerNode; virtualNode++){
+				long position = hash(nodeNames.get(node) + "#" + virtualNode);
+				// On a collision the node that was added first keeps the position
+				if(!this.ring.containsKey(position))
+					this.ring.put(position, node);
+			}
+		}
+	}
+
+	/*
+	 * 64 bit FNV-1a followed by the murmur3 finalizer to spread the bits of
+	 * short, similar keys (user1, user2, ...) over the whole ring.
+	 */
+	static long hash(String key){
+		long hash = FNV_OFFSET_BASIS;
+		for(int i=0; i<key.length(); i++){
+			hash ^= key.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= (hash >>> 33);
+		return hash;
+	}
+
+	public int getNumberOfNodes(){
+		return this.numberOfNodes;
+	}
+
+	public int getPrimaryNode(String key){
+		Map.Entry<Long, Integer> entry = this.ring.ceilingEntry(hash(key));
+		if(entry == null)
+			entry = this.ring.firstEntry();
+		return entry.getValue();
+	}
+
+	/*
+	 * Returns all nodes in the order in which they are encountered when
+	 * walking the ring clockwise from the key. The first element is the
+	 * primary node of the key.
+	 */
+	public int[] getNodeOrder(String key){
+		int[] result = new int[this.numberOfNodes];
+		boolean[] seen = new boolean[this.numberOfNodes];
+		int found = 0;
+		long keyHash = hash(key);
+		for(Integer node: this.ring.tailMap(keyHash, true).values()){
+			if(found == this.numberOfNodes)
+				return result;
+			if(!seen[node]){
+				seen[node] = true;
+				result[found++] = node;
+			}
+		}
+		for(Integer node: this.ring.headMap(keyHash, false).values()){
+			if(found == this.numberOfNodes)
+				return result;
+			if(!seen[node]){
+				seen[node] = true;
+				result[found++] = node;
+			}
+		}
+		return result;
+	}
+}
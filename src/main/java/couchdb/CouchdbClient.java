@@ -1,23 +1,38 @@
 package couchdb;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.ektorp.CouchDbConnector;
 import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
 import org.ektorp.UpdateConflictException;
 import org.ektorp.ViewQuery;
 import org.ektorp.ViewResult;
 import org.ektorp.ViewResult.Row;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import com.yahoo.ycsb.ByteArrayByteIterator;
 import com.yahoo.ycsb.ByteIterator;
 import com.yahoo.ycsb.DB;
 import com.yahoo.ycsb.DBException;
@@ -45,20 +60,192 @@ import couchdb.StringToStringMap;
  */
 public class CouchdbClient extends DB{
 	
+	// Where the requested fields of read and scan are selected
+	private enum ProjectionMode {
+		// Fetch whole documents and filter them in the client
+		CLIENT,
+		// Show function of the installed design document for reads, scans project in the client
+		SHOW,
+		// Mango queries (CouchDB 2.0 and later)
+		FIND
+	}
+	
+	// How delete finds the current revision of a document
+	private enum RevisionLookup {
+		// Read the whole document
+		READ,
+		// ETag of a HEAD request
+		HEAD,
+		// POST to _all_docs with the id as key
+		ALLDOCS
+	}
+	
+	// How the values of a record are stored in its document
+	private enum StorageMode {
+		// A JSON string per field
+		JSON,
+		// All values packed into one attachment, see DocumentWriter.writeAttachmentDocument
+		ATTACHMENT
+	}
+	
 	// Default configuration
 	private static final String DEFAULT_DATABASE_NAME = "usertable";
 	private static final int DEFAULT_COUCHDB_PORT_NUMBER = 5984;
 	private static final String PROTOCOL = "http";
-	// Database connector
-	private CouchDbConnector dbConnector;
+	private static final int DEFAULT_BULK_SIZE = 1;
+	private static final long DEFAULT_BULK_LINGER_MS = 1000;
+	private static final int DEFAULT_REVISION_CACHE_SIZE = 0;
+	private static final int DEFAULT_SCAN_PAGE_SIZE = 0;
+	private static final int DEFAULT_SCAN_THREADS_PER_CLIENT = 4;
+	private static final long DEFAULT_COALESCE_WINDOW_US = 0;
+	private static final int DEFAULT_COALESCE_BATCH_SIZE = 64;
+	private static final int DEFAULT_COALESCE_THREADS = 4;
+	private static final long DEFAULT_COMBINE_WINDOW_US = 0;
+	private static final int DEFAULT_COMBINE_BATCH_SIZE = 64;
+	private static final int DEFAULT_COMBINE_THREADS = 4;
+	private static final long DEFAULT_DOCUMENT_CACHE_BYTES = 0;
+	private static final long DEFAULT_CHANGES_RECONNECT_MS = 1000;
+	private static final int DEFAULT_CONFLICT_RETRIES = 0;
+	private static final long DEFAULT_CONFLICT_BUDGET_MS = 1000;
+	private static final long DEFAULT_CONFLICT_BACKOFF_US = 500;
+	private static final long DEFAULT_CONFLICT_MAX_BACKOFF_US = 50000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Properties
+	private static final String THREAD_COUNT_PROPERTY = "threadcount";
+	private static final String TABLE_PROPERTY = "table";
+	private static final String BULK_SIZE_PROPERTY = "couchdb.bulk.size";
+	private static final String BULK_LINGER_PROPERTY = "couchdb.bulk.lingerms";
+	private static final String REVISION_CACHE_SIZE_PROPERTY = "couchdb.revcache.size";
+	private static final String FULL_RECORD_UPDATES_PROPERTY = "couchdb.update.fullrecord";
+	private static final String ROUTING_PROPERTY = "couchdb.routing";
+	private static final String VIRTUAL_NODES_PROPERTY = "couchdb.routing.vnodes";
+	private static final String ROUTE_READS_PROPERTY = "couchdb.routing.reads";
+	private static final String SELECTION_PROPERTY = "couchdb.selection";
+	private static final String BREAKER_FAILURES_PROPERTY = "couchdb.breaker.failures";
+	private static final String BREAKER_PROBE_INTERVAL_PROPERTY = "couchdb.breaker.probems";
+	private static final String STREAMING_SCAN_PROPERTY = "couchdb.scan.streaming";
+	private static final String DIRECT_WRITES_PROPERTY = "couchdb.write.direct";
+	private static final String MEASURE_ALLOCATION_PROPERTY = "couchdb.measure.allocation";
+	private static final String PROJECTION_PROPERTY = "couchdb.projection";
+	private static final String UPDATE_HANDLER_PROPERTY = "couchdb.update.handler";
+	private static final String DELETE_REVISION_LOOKUP_PROPERTY = "couchdb.delete.revlookup";
+	private static final String SCAN_PAGE_SIZE_PROPERTY = "couchdb.scan.pagesize";
+	private static final String SCAN_THREADS_PROPERTY = "couchdb.scan.threads";
+	private static final String METRICS_LOG_PROPERTY = "couchdb.metrics.log";
+	private static final String METRICS_INTERVAL_PROPERTY = "couchdb.metrics.intervalms";
+	private static final String COMPRESSION_PROPERTY = "couchdb.compression";
+	private static final String COMPRESSION_MIN_BYTES_PROPERTY = "couchdb.compression.minbytes";
+	private static final String COALESCE_WINDOW_PROPERTY = "couchdb.read.coalesce.windowus";
+	private static final String COALESCE_BATCH_SIZE_PROPERTY = "couchdb.read.coalesce.batchsize";
+	private static final String COALESCE_THREADS_PROPERTY = "couchdb.read.coalesce.threads";
+	private static final String COMBINE_WINDOW_PROPERTY = "couchdb.write.combine.windowus";
+	private static final String COMBINE_BATCH_SIZE_PROPERTY = "couchdb.write.combine.batchsize";
+	private static final String COMBINE_THREADS_PROPERTY = "couchdb.write.combine.threads";
+	private static final String DOCUMENT_CACHE_BYTES_PROPERTY = "couchdb.cache.bytes";
+	private static final String CHANGES_FEED_PROPERTY = "couchdb.cache.changesfeed";
+	private static final String CHANGES_RECONNECT_PROPERTY = "couchdb.cache.reconnectms";
+	private static final String SHARDS_PROPERTY = "couchdb.shards";
+	private static final String SHARD_Q_PROPERTY = "couchdb.shards.q";
+	private static final String SHARD_N_PROPERTY = "couchdb.shards.n";
+	private static final String MAX_CONNECTIONS_PROPERTY = "couchdb.http.maxconnections";
+	private static final String KEEP_ALIVE_PROPERTY = "couchdb.http.keepalive";
+	private static final String TCP_NO_DELAY_PROPERTY = "couchdb.http.tcpnodelay";
+	private static final String STALE_CHECK_PROPERTY = "couchdb.http.stalecheck";
+	private static final String CONNECT_TIMEOUT_PROPERTY = "couchdb.http.connecttimeoutms";
+	private static final String SOCKET_TIMEOUT_PROPERTY = "couchdb.http.sockettimeoutms";
+	private static final String CONFLICT_RETRIES_PROPERTY = "couchdb.conflict.retries";
+	private static final String CONFLICT_BUDGET_PROPERTY = "couchdb.conflict.budgetms";
+	private static final String CONFLICT_BACKOFF_PROPERTY = "couchdb.conflict.backoffus";
+	private static final String CONFLICT_MAX_BACKOFF_PROPERTY = "couchdb.conflict.maxbackoffus";
+	private static final String OPERATION_TIMEOUT_PROPERTY = "couchdb.operation.timeoutms";
+	private static final String HEDGE_READS_PROPERTY = "couchdb.hedge.reads";
+	private static final String HEDGE_DELAY_PROPERTY = "couchdb.hedge.delayus";
+	private static final String HEDGE_MAX_RATE_PROPERTY = "couchdb.hedge.maxrate";
+	private static final String STORAGE_PROPERTY = "couchdb.storage";
+	// State shared by all client threads
+	private static final Object sharedStateLock = new Object();
+	private static int activeClients = 0;
+	private static RevisionCache sharedRevisionCache = null;
+	private static AllocationCounter sharedInsertAllocation = null;
+	private static ExecutorService sharedScanExecutor = null;
+	private static ReadCoalescer sharedReadCoalescer = null;
+	private static WriteCombiner sharedWriteCombiner = null;
+	private static DocumentCache sharedDocumentCache = null;
+	private static ChangesListener sharedChangesListener = null;
+	private static ConflictRetry sharedUpdateRetry = null;
+	private static ConflictRetry sharedDeleteRetry = null;
+	private static long documentsWritten = 0;
+	private static long documentBytesWritten = 0;
+	private static long documentBufferBytesAllocated = 0;
+	// Database connector (shared with the other clients when created by init())
+	private LoadBalancedConnector dbConnector;
+	private LoadBalancedConnector sharedConnector;
+	// Bulk insert state (bulk mode is disabled when bulkSize <= 1)
+	private int bulkSize;
+	private long bulkLingerMs;
+	private int bufferedDocuments;
+	private long firstBufferedAt;
+	// Revision cache (null when disabled)
+	private RevisionCache revisionCache;
+	// When true, an update carries all fields of the record
+	private boolean fullRecordUpdates;
+	// When true, scan results are parsed while they are streamed in
+	private boolean streamingScans;
+	// When true, documents are serialized by documentWriter instead of Ektorp
+	private boolean directWrites;
+	private final DocumentWriter documentWriter;
+	// Allocation of inserts (null when not measured)
+	private AllocationCounter insertAllocation;
+	private ProjectionMode projectionMode;
+	// When true, updates are merged on the server by the installed update handler
+	private boolean updateHandler;
+	private RevisionLookup deleteRevisionLookup;
+	private StorageMode storageMode;
+	// Parallel scans (scanExecutor is null when disabled)
+	private int scanPageSize;
+	private ExecutorService scanExecutor;
+	// Combines the reads of all clients (null when disabled)
+	private ReadCoalescer readCoalescer;
+	// Combines the inserts and updates of all clients (null when disabled)
+	private WriteCombiner writeCombiner;
+	// Documents read by all clients (null when disabled)
+	private DocumentCache documentCache;
+	// Retry of updates and deletes that got a conflict (null when disabled)
+	private ConflictRetry updateRetry;
+	private ConflictRetry deleteRetry;
 	// Return codes
 	private static final int OK = 0;
 	private static final int UPDATE_CONFLICT = -2;
 	private static final int DOC_NOT_FOUND = -3;
 	private static final int JSON_PARSING_FAULT = -4;
+	private static final int BULK_OPERATION_FAULT = -5;
+	private static final int TIMEOUT = -6;
+	private static final int CLIENT_ERROR = -7;
+	private static final int SERVER_ERROR = -8;
+	private static final int NODE_UNREACHABLE = -9;
 	
 	public CouchdbClient(){
 		this.dbConnector = null;
+		this.sharedConnector = null;
+		this.bulkSize = DEFAULT_BULK_SIZE;
+		this.bulkLingerMs = DEFAULT_BULK_LINGER_MS;
+		this.revisionCache = null;
+		this.fullRecordUpdates = false;
+		this.streamingScans = true;
+		this.directWrites = true;
+		this.documentWriter = new DocumentWriter();
+		this.insertAllocation = null;
+		this.projectionMode = ProjectionMode.CLIENT;
+		this.updateHandler = false;
+		this.deleteRevisionLookup = RevisionLookup.HEAD;
+		this.storageMode = StorageMode.JSON;
+		this.scanPageSize = DEFAULT_SCAN_PAGE_SIZE;
+		this.scanExecutor = null;
+		this.readCoalescer = null;
+		this.writeCombiner = null;
+		this.documentCache = null;
+		this.updateRetry = null;
+		this.deleteRetry = null;
 	}
 
 	// Constructor for testing purposes
@@ -66,6 +253,26 @@ public class CouchdbClient extends DB{
 		if(urls == null)
 			throw new IllegalArgumentException("urls is null");
 		this.dbConnector = new LoadBalancedConnector(urls, DEFAULT_DATABASE_NAME);
+		this.sharedConnector = null;
+		this.bulkSize = DEFAULT_BULK_SIZE;
+		this.bulkLingerMs = DEFAULT_BULK_LINGER_MS;
+		this.revisionCache = null;
+		this.fullRecordUpdates = false;
+		this.streamingScans = true;
+		this.directWrites = true;
+		this.documentWriter = new DocumentWriter();
+		this.insertAllocation = null;
+		this.projectionMode = ProjectionMode.CLIENT;
+		this.updateHandler = false;
+		this.deleteRevisionLookup = RevisionLookup.HEAD;
+		this.storageMode = StorageMode.JSON;
+		this.scanPageSize = DEFAULT_SCAN_PAGE_SIZE;
+		this.scanExecutor = null;
+		this.readCoalescer = null;
+		this.writeCombiner = null;
+		this.documentCache = null;
+		this.updateRetry = null;
+		this.deleteRetry = null;
 	}
 	
 	private List<URL> getUrlsForHosts() throws DBException{
@@ -96,54 +303,587 @@ public class CouchdbClient extends DB{
 		}
 	}
 	
+	private int getIntProperty(String name, int defaultValue) throws DBException{
+		String value = getProperties().getProperty(name);
+		if(value == null)
+			return defaultValue;
+		try{
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException exc){
+			throw new DBException("Invalid value specified for " + name);
+		}
+	}
+	
+	private long getLongProperty(String name, long defaultValue) throws DBException{
+		String value = getProperties().getProperty(name);
+		if(value == null)
+			return defaultValue;
+		try{
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException exc){
+			throw new DBException("Invalid value specified for " + name);
+		}
+	}
+	
+	private double getDoubleProperty(String name, double defaultValue) throws DBException{
+		String value = getProperties().getProperty(name);
+		if(value == null)
+			return defaultValue;
+		try{
+			return Double.parseDouble(value.trim());
+		} catch(NumberFormatException exc){
+			throw new DBException("Invalid value specified for " + name);
+		}
+	}
+	
+	private ProjectionMode getProjectionMode() throws DBException{
+		String projection = getProperties().getProperty(PROJECTION_PROPERTY, "client");
+		try{
+			return ProjectionMode.valueOf(projection.toUpperCase());
+		} catch(IllegalArgumentException exc){
+			throw new DBException("Invalid value specified for " + PROJECTION_PROPERTY);
+		}
+	}
+	
+	private RevisionLookup getDeleteRevisionLookup() throws DBException{
+		String lookup = getProperties().getProperty(DELETE_REVISION_LOOKUP_PROPERTY, "head");
+		try{
+			return RevisionLookup.valueOf(lookup.toUpperCase());
+		} catch(IllegalArgumentException exc){
+			throw new DBException("Invalid value specified for " + DELETE_REVISION_LOOKUP_PROPERTY);
+		}
+	}
+	
+	private StorageMode getStorageMode() throws DBException{
+		String storage = getProperties().getProperty(STORAGE_PROPERTY, "json");
+		try{
+			return StorageMode.valueOf(storage.toUpperCase());
+		} catch(IllegalArgumentException exc){
+			throw new DBException("Invalid value specified for " + STORAGE_PROPERTY);
+		}
+	}
+	
+	/*
+	 * Every thread that may wait for a node at the same time needs its own
+	 * connection: the requesting threads and the threads of the scans, the
+	 * read coalescer and the write combiner, plus one connection per shard
+	 * for the changes feeds. Every node gets a pool of that size, because
+	 * a node takes all requests when the others are down. The pool is not
+	 * made smaller than the default of StdHttpClient.
+	 */
+	private int getDefaultMaxConnectionsPerNode(int requestThreads, int shards) throws DBException{
+		int clientThreads = this.getIntProperty(THREAD_COUNT_PROPERTY, 1);
+		int result = requestThreads;
+		if(this.getIntProperty(SCAN_PAGE_SIZE_PROPERTY, DEFAULT_SCAN_PAGE_SIZE) > 0 || shards > 1)
+			result += this.getIntProperty(SCAN_THREADS_PROPERTY, DEFAULT_SCAN_THREADS_PER_CLIENT * clientThreads);
+		if(this.getLongProperty(COALESCE_WINDOW_PROPERTY, DEFAULT_COALESCE_WINDOW_US) > 0)
+			result += this.getIntProperty(COALESCE_THREADS_PROPERTY, DEFAULT_COALESCE_THREADS);
+		if(this.getLongProperty(COMBINE_WINDOW_PROPERTY, DEFAULT_COMBINE_WINDOW_US) > 0)
+			result += this.getIntProperty(COMBINE_THREADS_PROPERTY, DEFAULT_COMBINE_THREADS);
+		if(this.getLongProperty(DOCUMENT_CACHE_BYTES_PROPERTY, DEFAULT_DOCUMENT_CACHE_BYTES) > 0
+				&& Boolean.parseBoolean(getProperties().getProperty(CHANGES_FEED_PROPERTY, "true")))
+			result += shards;
+		return Math.max(result, ConnectorOptions.DEFAULT_MAX_CONNECTIONS_PER_NODE);
+	}
+	
+	private ConnectorOptions getConnectorOptions() throws DBException{
+		ConnectorOptions options = new ConnectorOptions();
+		try{
+			options.setInstallDesignDocument(this.projectionMode == ProjectionMode.SHOW
+					|| this.updateHandler);
+			// Any thread may send its request to any node
+			int clientThreads = this.getIntProperty(THREAD_COUNT_PROPERTY, 1);
+			options.setShards(this.getIntProperty(SHARDS_PROPERTY, 1));
+			options.setMaxConnectionsPerNode(this.getIntProperty(MAX_CONNECTIONS_PROPERTY,
+					this.getDefaultMaxConnectionsPerNode(clientThreads,
+							options.getShards())));
+			options.setKeepAlive(Boolean.parseBoolean(getProperties().getProperty(KEEP_ALIVE_PROPERTY, "true")));
+			options.setTcpNoDelay(Boolean.parseBoolean(getProperties().getProperty(TCP_NO_DELAY_PROPERTY, "true")));
+			options.setStaleConnectionCheck(Boolean.parseBoolean(getProperties().getProperty(STALE_CHECK_PROPERTY, "true")));
+			options.setConnectTimeoutMs(this.getIntProperty(CONNECT_TIMEOUT_PROPERTY,
+					ConnectorOptions.DEFAULT_CONNECT_TIMEOUT_MS));
+			options.setSocketTimeoutMs(this.getIntProperty(SOCKET_TIMEOUT_PROPERTY,
+					ConnectorOptions.DEFAULT_SOCKET_TIMEOUT_MS));
+			options.setOperationTimeoutMs(this.getIntProperty(OPERATION_TIMEOUT_PROPERTY, 0));
+			options.setHedgeReads(Boolean.parseBoolean(getProperties().getProperty(HEDGE_READS_PROPERTY, "false")));
+			options.setHedgeDelayMicros(this.getLongProperty(HEDGE_DELAY_PROPERTY, 0));
+			options.setHedgeMaxRate(this.getDoubleProperty(HEDGE_MAX_RATE_PROPERTY,
+					ConnectorOptions.DEFAULT_HEDGE_MAX_RATE));
+			String routing = getProperties().getProperty(ROUTING_PROPERTY, "roundrobin");
+			if(routing.equalsIgnoreCase("consistenthash"))
+				options.setRoutingMode(ConnectorOptions.RoutingMode.CONSISTENT_HASH);
+			else if(!routing.equalsIgnoreCase("roundrobin"))
+				throw new DBException("Invalid value specified for " + ROUTING_PROPERTY);
+			options.setVirtualNodesPerNode(this.getIntProperty(VIRTUAL_NODES_PROPERTY,
+					ConnectorOptions.DEFAULT_VIRTUAL_NODES));
+			options.setRouteReadsByKey(Boolean.parseBoolean(getProperties().getProperty(ROUTE_READS_PROPERTY, "false")));
+			String selection = getProperties().getProperty(SELECTION_PROPERTY, "roundrobin");
+			if(selection.equalsIgnoreCase("leastlatency"))
+				options.setSelectionStrategy(ConnectorOptions.SelectionStrategy.LEAST_LATENCY);
+			else if(selection.equalsIgnoreCase("p2c"))
+				options.setSelectionStrategy(ConnectorOptions.SelectionStrategy.POWER_OF_TWO_CHOICES);
+			else if(!selection.equalsIgnoreCase("roundrobin"))
+				throw new DBException("Invalid value specified for " + SELECTION_PROPERTY);
+			options.setBreakerFailureThreshold(this.getIntProperty(BREAKER_FAILURES_PROPERTY,
+					ConnectorOptions.DEFAULT_BREAKER_FAILURE_THRESHOLD));
+			options.setProbeIntervalMs(this.getLongProperty(BREAKER_PROBE_INTERVAL_PROPERTY,
+					ConnectorOptions.DEFAULT_PROBE_INTERVAL_MS));
+			options.setMetricsLogFile(getProperties().getProperty(METRICS_LOG_PROPERTY));
+			options.setMetricsIntervalMs(this.getLongProperty(METRICS_INTERVAL_PROPERTY,
+					ConnectorOptions.DEFAULT_METRICS_INTERVAL_MS));
+			options.setCompression(Boolean.parseBoolean(getProperties().getProperty(COMPRESSION_PROPERTY, "false")));
+			options.setCompressionMinBytes(this.getIntProperty(COMPRESSION_MIN_BYTES_PROPERTY,
+					ConnectorOptions.DEFAULT_COMPRESSION_MIN_BYTES));
+			options.setShardQ(this.getIntProperty(SHARD_Q_PROPERTY, 0));
+			options.setShardN(this.getIntProperty(SHARD_N_PROPERTY, 0));
+			// The show and _find queries are not split over the shards
+			if(options.getShards() > 1 && this.projectionMode != ProjectionMode.CLIENT)
+				throw new DBException(PROJECTION_PROPERTY + " must be client when " + SHARDS_PROPERTY + " > 1");
+		} catch(IllegalArgumentException exc){
+			throw new DBException(exc.getMessage());
+		}
+		return options;
+	}
+	
 	@Override
 	public void init() throws DBException{
 		List<URL> urls = getUrlsForHosts();
-		this.dbConnector = new LoadBalancedConnector(urls, DEFAULT_DATABASE_NAME);
+		this.projectionMode = this.getProjectionMode();
+		this.updateHandler = Boolean.parseBoolean(getProperties().getProperty(UPDATE_HANDLER_PROPERTY, "false"));
+		this.deleteRevisionLookup = this.getDeleteRevisionLookup();
+		this.storageMode = this.getStorageMode();
+		int conflictRetries = this.getIntProperty(CONFLICT_RETRIES_PROPERTY, DEFAULT_CONFLICT_RETRIES);
+		long conflictBudgetMs = this.getLongProperty(CONFLICT_BUDGET_PROPERTY, DEFAULT_CONFLICT_BUDGET_MS);
+		long conflictBackoffUs = this.getLongProperty(CONFLICT_BACKOFF_PROPERTY, DEFAULT_CONFLICT_BACKOFF_US);
+		long conflictMaxBackoffUs = this.getLongProperty(CONFLICT_MAX_BACKOFF_PROPERTY, DEFAULT_CONFLICT_MAX_BACKOFF_US);
+		if(conflictRetries < 0 || conflictBudgetMs < 0 || conflictBackoffUs <= 0
+				|| conflictMaxBackoffUs < conflictBackoffUs)
+			throw new DBException("Invalid value specified for " + CONFLICT_RETRIES_PROPERTY
+					+ ", " + CONFLICT_BUDGET_PROPERTY + ", " + CONFLICT_BACKOFF_PROPERTY
+					+ " or " + CONFLICT_MAX_BACKOFF_PROPERTY);
+		this.bulkSize = this.getIntProperty(BULK_SIZE_PROPERTY, DEFAULT_BULK_SIZE);
+		this.bulkLingerMs = this.getLongProperty(BULK_LINGER_PROPERTY, DEFAULT_BULK_LINGER_MS);
+		this.fullRecordUpdates = Boolean.parseBoolean(getProperties().getProperty(FULL_RECORD_UPDATES_PROPERTY, "false"));
+		this.streamingScans = Boolean.parseBoolean(getProperties().getProperty(STREAMING_SCAN_PROPERTY, "true"));
+		this.directWrites = Boolean.parseBoolean(getProperties().getProperty(DIRECT_WRITES_PROPERTY, "true"));
+		boolean measureAllocation = Boolean.parseBoolean(getProperties().getProperty(MEASURE_ALLOCATION_PROPERTY, "false"));
+		this.scanPageSize = this.getIntProperty(SCAN_PAGE_SIZE_PROPERTY, DEFAULT_SCAN_PAGE_SIZE);
+		int scanThreads = this.getIntProperty(SCAN_THREADS_PROPERTY,
+				DEFAULT_SCAN_THREADS_PER_CLIENT * this.getIntProperty(THREAD_COUNT_PROPERTY, 1));
+		if(this.scanPageSize < 0 || scanThreads <= 0)
+			throw new DBException("Invalid value specified for " + SCAN_PAGE_SIZE_PROPERTY
+					+ " or " + SCAN_THREADS_PROPERTY);
+		int revisionCacheSize = this.getIntProperty(REVISION_CACHE_SIZE_PROPERTY, DEFAULT_REVISION_CACHE_SIZE);
+		long coalesceWindowUs = this.getLongProperty(COALESCE_WINDOW_PROPERTY, DEFAULT_COALESCE_WINDOW_US);
+		int coalesceBatchSize = this.getIntProperty(COALESCE_BATCH_SIZE_PROPERTY, DEFAULT_COALESCE_BATCH_SIZE);
+		int coalesceThreads = this.getIntProperty(COALESCE_THREADS_PROPERTY, DEFAULT_COALESCE_THREADS);
+		if(coalesceWindowUs < 0 || coalesceBatchSize <= 0 || coalesceThreads <= 0)
+			throw new DBException("Invalid value specified for " + COALESCE_WINDOW_PROPERTY
+					+ ", " + COALESCE_BATCH_SIZE_PROPERTY + " or " + COALESCE_THREADS_PROPERTY);
+		long combineWindowUs = this.getLongProperty(COMBINE_WINDOW_PROPERTY, DEFAULT_COMBINE_WINDOW_US);
+		int combineBatchSize = this.getIntProperty(COMBINE_BATCH_SIZE_PROPERTY, DEFAULT_COMBINE_BATCH_SIZE);
+		int combineThreads = this.getIntProperty(COMBINE_THREADS_PROPERTY, DEFAULT_COMBINE_THREADS);
+		if(combineWindowUs < 0 || combineBatchSize <= 0 || combineThreads <= 0)
+			throw new DBException("Invalid value specified for " + COMBINE_WINDOW_PROPERTY
+					+ ", " + COMBINE_BATCH_SIZE_PROPERTY + " or " + COMBINE_THREADS_PROPERTY);
+		long documentCacheBytes = this.getLongProperty(DOCUMENT_CACHE_BYTES_PROPERTY, DEFAULT_DOCUMENT_CACHE_BYTES);
+		boolean changesFeed = Boolean.parseBoolean(getProperties().getProperty(CHANGES_FEED_PROPERTY, "true"));
+		long changesReconnectMs = this.getLongProperty(CHANGES_RECONNECT_PROPERTY, DEFAULT_CHANGES_RECONNECT_MS);
+		if(documentCacheBytes < 0 || changesReconnectMs < 0)
+			throw new DBException("Invalid value specified for " + DOCUMENT_CACHE_BYTES_PROPERTY
+					+ " or " + CHANGES_RECONNECT_PROPERTY);
+		// Only the reads and scans of whole documents decode the attachment
+		if(this.storageMode == StorageMode.ATTACHMENT && (this.projectionMode != ProjectionMode.CLIENT
+				|| this.updateHandler || this.isBulkModeEnabled() || !this.streamingScans
+				|| coalesceWindowUs > 0 || documentCacheBytes > 0))
+			throw new DBException(STORAGE_PROPERTY + " attachment requires client projection and streaming"
+					+ " scans, and no update handler, bulk inserts, read coalescing or document cache");
+		// The attachment is always written by the documentWriter
+		if(this.storageMode == StorageMode.ATTACHMENT)
+			this.directWrites = true;
+		// The table of the workload names the database (or the prefix of the shard databases).
+		// Everything above validates properties: nothing may throw once the connector is
+		// acquired, only cleanup() releases it.
+		String databaseName = getProperties().getProperty(TABLE_PROPERTY, DEFAULT_DATABASE_NAME);
+		this.sharedConnector = ConnectorRegistry.acquire(urls, databaseName, this.getConnectorOptions());
+		this.dbConnector = this.sharedConnector;
+		synchronized(sharedStateLock){
+			if(activeClients == 0){
+				if(revisionCacheSize > 0)
+					sharedRevisionCache = new RevisionCache(revisionCacheSize);
+				if(measureAllocation)
+					sharedInsertAllocation = new AllocationCounter("INSERT");
+				if(this.scanPageSize > 0 || this.sharedConnector.getShardCount() > 1)
+					sharedScanExecutor = createScanExecutor(scanThreads);
+				if(coalesceWindowUs > 0)
+					sharedReadCoalescer = new ReadCoalescer(this.sharedConnector, coalesceWindowUs,
+							coalesceBatchSize, coalesceThreads);
+				if(combineWindowUs > 0)
+					sharedWriteCombiner = new WriteCombiner(this.sharedConnector, combineWindowUs,
+							combineBatchSize, combineThreads);
+				if(documentCacheBytes > 0){
+					sharedDocumentCache = new DocumentCache(documentCacheBytes);
+					if(changesFeed)
+						sharedChangesListener = new ChangesListener(this.sharedConnector,
+								sharedDocumentCache, changesReconnectMs);
+				}
+				if(conflictRetries > 0){
+					sharedUpdateRetry = new ConflictRetry("UPDATE", conflictRetries, conflictBudgetMs,
+							conflictBackoffUs, conflictMaxBackoffUs);
+					sharedDeleteRetry = new ConflictRetry("DELETE", conflictRetries, conflictBudgetMs,
+							conflictBackoffUs, conflictMaxBackoffUs);
+				}
+				documentsWritten = 0;
+				documentBytesWritten = 0;
+				documentBufferBytesAllocated = 0;
+			}
+			activeClients++;
+			this.revisionCache = sharedRevisionCache;
+			this.insertAllocation = sharedInsertAllocation;
+			this.scanExecutor = sharedScanExecutor;
+			this.readCoalescer = sharedReadCoalescer;
+			this.writeCombiner = sharedWriteCombiner;
+			this.documentCache = sharedDocumentCache;
+			this.updateRetry = sharedUpdateRetry;
+			this.deleteRetry = sharedDeleteRetry;
+		}
 	}
 	
 	@Override
 	public void cleanup() throws DBException {
-		// Do nothing
+		int result = OK;
+		RuntimeException flushFailure = null;
+		// The client is unregistered also when the last writes fail
+		try{
+			result = this.flushBulkBuffer();
+		} catch(RuntimeException exc){
+			flushFailure = exc;
+		} finally{
+			this.unregister();
+		}
+		if(flushFailure != null)
+			throw new DBException("Flushing the bulk buffer failed: " + flushFailure.getMessage());
+		if(result != OK)
+			throw new DBException("Flushing the bulk buffer failed with return code " + result);
+	}
+	
+	/*
+	 * Adds the statistics of this client to the shared ones and releases
+	 * the shared state when this is the last client.
+	 */
+	private void unregister(){
+		synchronized(sharedStateLock){
+			activeClients--;
+			documentsWritten += this.documentWriter.getDocumentsWritten();
+			documentBytesWritten += this.documentWriter.getBytesWritten();
+			documentBufferBytesAllocated += this.documentWriter.getBytesAllocated();
+			if(activeClients == 0){
+				this.printStatistics();
+				sharedRevisionCache = null;
+				sharedInsertAllocation = null;
+				if(sharedScanExecutor != null)
+					sharedScanExecutor.shutdown();
+				sharedScanExecutor = null;
+				if(sharedReadCoalescer != null)
+					sharedReadCoalescer.shutdown();
+				sharedReadCoalescer = null;
+				if(sharedWriteCombiner != null)
+					sharedWriteCombiner.shutdown();
+				sharedWriteCombiner = null;
+				if(sharedChangesListener != null)
+					sharedChangesListener.shutdown();
+				sharedChangesListener = null;
+				sharedDocumentCache = null;
+				sharedUpdateRetry = null;
+				sharedDeleteRetry = null;
+			}
+		}
+		if(this.sharedConnector != null){
+			ConnectorRegistry.release(this.sharedConnector);
+			this.sharedConnector = null;
+		}
+	}
+	
+	// Called by the last client that is cleaned up
+	private void printStatistics(){
+		if(sharedRevisionCache != null)
+			System.err.println("[REVISION CACHE] " + sharedRevisionCache);
+		if(documentsWritten > 0)
+			System.err.println("[DOCUMENT WRITER] documents=" + documentsWritten
+					+ "; bytesWritten=" + documentBytesWritten
+					+ "; bufferBytesAllocated=" + documentBufferBytesAllocated);
+		if(sharedInsertAllocation != null)
+			System.err.println(sharedInsertAllocation);
+		if(sharedReadCoalescer != null)
+			System.err.println(sharedReadCoalescer);
+		if(sharedWriteCombiner != null)
+			System.err.println(sharedWriteCombiner);
+		if(sharedDocumentCache != null)
+			System.err.println(sharedDocumentCache);
+		if(sharedChangesListener != null)
+			System.err.println(sharedChangesListener);
+		if(sharedUpdateRetry != null){
+			System.err.println(sharedUpdateRetry);
+			System.err.println(sharedDeleteRetry);
+		}
+		if(this.sharedConnector != null){
+			if(this.sharedConnector.getReadHedger() != null)
+				System.err.println(this.sharedConnector.getReadHedger());
+			for(NodeHealth health: this.sharedConnector.getNodeHealth()){
+				System.err.println(health);
+			}
+			System.err.println(this.sharedConnector.getMetrics().getSummary());
+			String traffic = this.sharedConnector.getTraffic().toString();
+			if(traffic.length() > 0)
+				System.err.println(traffic);
+		}
+	}
+	
+	private void cacheRevision(String key, StringToStringMap document){
+		if(this.revisionCache != null && document != null)
+			this.revisionCache.put(key, document.get("_rev"));
 	}
 	
+	private String getCachedRevision(String key){
+		if(this.revisionCache == null)
+			return null;
+		return this.revisionCache.get(key);
+	}
+	
+	/*
+	 * Serves the document from the document cache when it is enabled, and
+	 * caches the fetched document on a miss.
+	 */
 	private StringToStringMap executeReadOperation(String key){
+		if(this.documentCache == null)
+			return this.fetchDocument(key);
+		StringToStringMap result = this.documentCache.get(key);
+		if(result != null){
+			this.cacheRevision(key, result);
+			return result;
+		}
+		long loadSequence = this.documentCache.startLoad();
+		result = this.fetchDocument(key);
+		this.documentCache.put(key, result, loadSequence);
+		return result;
+	}
+	
+	/*
+	 * The values are ByteIterators over the attachment of the document,
+	 * _id and _rev are added like for JSON documents.
+	 */
+	private int executePackedRead(String key, Set<String> fields, HashMap<String, ByteIterator> result){
+		PackedRecord record = this.fetchPackedRecord(key);
+		if(record == null)
+			return DOC_NOT_FOUND;
+		record.copyFields(fields, result);
+		result.put("_id", new StringByteIterator(key));
+		result.put("_rev", new StringByteIterator(record.getRevision()));
+		return OK;
+	}
+	
+	private PackedRecord fetchPackedRecord(String key){
+		try{
+			PackedRecord result = this.dbConnector.getPackedRecord(key);
+			if(this.revisionCache != null)
+				this.revisionCache.put(key, result.getRevision());
+			return result;
+		} catch(DocumentNotFoundException exc){
+			if(this.revisionCache != null)
+				this.revisionCache.remove(key);
+			return null;
+		}
+	}
+	
+	private void startCachedWrite(String key){
+		if(this.documentCache != null)
+			this.documentCache.startWrite(key);
+	}
+	
+	private void finishCachedWrite(String key, boolean written){
+		if(this.documentCache != null)
+			this.documentCache.finishWrite(key, written);
+	}
+	
+	private StringToStringMap fetchDocument(String key){
+		if(this.readCoalescer != null){
+			StringToStringMap result = this.readCoalescer.get(key);
+			if(result == null && this.revisionCache != null)
+				this.revisionCache.remove(key);
+			this.cacheRevision(key, result);
+			return result;
+		}
 		try{
-			return this.dbConnector.get(StringToStringMap.class, key);
+			StringToStringMap result = this.dbConnector.get(StringToStringMap.class, key);
+			this.cacheRevision(key, result);
+			return result;
 		} catch(DocumentNotFoundException exc){
+			if(this.revisionCache != null)
+				this.revisionCache.remove(key);
 			return null;
 		}
 	}
 	
 	private int executeWriteOperation(String key, StringToStringMap dataToWrite){
+		if(this.writeCombiner != null){
+			dataToWrite.put("_id", key);
+			return this.executeCombinedWrite(key, dataToWrite);
+		}
 		try{
 			dataToWrite.put("_id", key);
 			this.dbConnector.create(dataToWrite);
 		} catch(UpdateConflictException exc){
 			return UPDATE_CONFLICT;
 		}
+		this.cacheRevision(key, dataToWrite);
+		return OK;
+	}
+	
+	/*
+	 * Serializes the record with the documentWriter and writes it with a
+	 * single PUT. The revision is null for new documents.
+	 */
+	private int executeDirectWriteOperation(String key, String revision,
+			HashMap<String, ByteIterator> values){
+		this.serializeRecord(key, revision, values);
+		return this.executeSerializedWriteOperation(key, this.documentWriter.getBuffer(),
+				this.documentWriter.getLength());
+	}
+	
+	private void serializeRecord(String key, String revision, HashMap<String, ByteIterator> values){
+		if(this.storageMode == StorageMode.ATTACHMENT)
+			this.documentWriter.writeAttachmentDocument(key, revision, values);
+		else
+			this.documentWriter.writeDocument(key, revision, values);
+	}
+	
+	private int executeSerializedWriteOperation(String key, byte[] document, int length){
+		if(this.writeCombiner != null)
+			return this.getReturnCodeForCombinedWrite(key, this.writeCombiner.write(key, document, length));
+		try{
+			String newRevision = this.dbConnector.put(key, document, length);
+			if(this.revisionCache != null)
+				this.revisionCache.put(key, newRevision);
+		} catch(UpdateConflictException exc){
+			return UPDATE_CONFLICT;
+		} catch(DocumentNotFoundException exc){
+			return DOC_NOT_FOUND;
+		}
+		return OK;
+	}
+	
+	/*
+	 * Writes the document (with its _id and, for updates, its _rev) through
+	 * the write combiner. The new revision is put in the document.
+	 */
+	private int executeCombinedWrite(String key, StringToStringMap document){
+		byte[] serialized = JSONObject.toJSONString(document).getBytes(UTF8);
+		DocumentOperationResult result = this.writeCombiner.write(key, serialized, serialized.length);
+		if(!result.isErroneous())
+			document.put("_rev", result.getRevision());
+		return this.getReturnCodeForCombinedWrite(key, result);
+	}
+	
+	private int getReturnCodeForCombinedWrite(String key, DocumentOperationResult result){
+		if(result.isErroneous())
+			return "conflict".equals(result.getError()) ? UPDATE_CONFLICT : BULK_OPERATION_FAULT;
+		if(this.revisionCache != null)
+			this.revisionCache.put(key, result.getRevision());
+		return OK;
+	}
+	
+	private boolean isBulkModeEnabled(){
+		return this.bulkSize > 1;
+	}
+	
+	/*
+	 * Buffers the document and flushes the buffer once it holds bulkSize
+	 * documents or once the oldest buffered document is older than
+	 * bulkLingerMs. The linger time is only checked when a new insert
+	 * arrives: a thread that stops inserting keeps its partially filled
+	 * buffer until its next insert or cleanup().
+	 */
+	private int executeBufferedWriteOperation(String key, StringToStringMap dataToWrite){
+		dataToWrite.put("_id", key);
+		this.dbConnector.addToBulkBuffer(dataToWrite);
+		if(this.bufferedDocuments == 0)
+			this.firstBufferedAt = System.currentTimeMillis();
+		this.bufferedDocuments++;
+		long lingered = System.currentTimeMillis() - this.firstBufferedAt;
+		if(this.bufferedDocuments >= this.bulkSize || lingered >= this.bulkLingerMs)
+			return this.flushBulkBuffer();
 		return OK;
 	}
 	
+	private int flushBulkBuffer(){
+		if(this.bufferedDocuments == 0)
+			return OK;
+		// When _bulk_docs fails the documents that were not written stay buffered for the next flush
+		List<DocumentOperationResult> failures;
+		try{
+			failures = this.dbConnector.flushBulkBuffer();
+		} catch(RuntimeException exc){
+			this.bufferedDocuments = this.dbConnector.getBulkBufferSize();
+			throw exc;
+		}
+		this.bufferedDocuments = 0;
+		return this.getReturnCodeForBulkResults(failures);
+	}
+	
+	private int getReturnCodeForBulkResults(List<DocumentOperationResult> failures){
+		int result = OK;
+		for(DocumentOperationResult failure: failures){
+			if(!"conflict".equals(failure.getError()))
+				return BULK_OPERATION_FAULT;
+			result = UPDATE_CONFLICT;
+		}
+		return result;
+	}
+	
 	private int executeDeleteOperation(StringToStringMap dataToDelete){
 		try{
 			this.dbConnector.delete(dataToDelete);
 		} catch(UpdateConflictException exc){
 			return UPDATE_CONFLICT;
+		} catch(DocumentNotFoundException exc){
+			return DOC_NOT_FOUND;
 		}
 		return OK;
 	}
 	
 	private int executeUpdateOperation(StringToStringMap dataToUpdate){
+		if(this.writeCombiner != null)
+			return this.executeCombinedWrite(dataToUpdate.get("_id"), dataToUpdate);
 		try{
 			this.dbConnector.update(dataToUpdate);
 		} catch(UpdateConflictException exc){
 			return UPDATE_CONFLICT;
+		} catch(DocumentNotFoundException exc){
+			return DOC_NOT_FOUND;
 		}
 		return OK;
 	}
 	
-	private void copyRequestedFieldsToResultMap(Set<String> fields,
+	/*
+	 * Turns a failed request into the return code of its FailureKind, so
+	 * the failure is counted by YCSB instead of ending the client thread.
+	 * Anything else is a bug and is rethrown.
+	 */
+	private int getReturnCodeForFailure(RuntimeException exc){
+		FailureKind kind = FailureKind.classify(exc);
+		if(kind == null)
+			throw exc;
+		if(kind == FailureKind.TIMEOUT)
+			return TIMEOUT;
+		if(kind == FailureKind.CLIENT_ERROR)
+			return CLIENT_ERROR;
+		if(kind == FailureKind.SERVER_ERROR)
+			return SERVER_ERROR;
+		return NODE_UNREACHABLE;
+	}
+	
+	// Package-private for the benchmarks in src/jmh
+	void copyRequestedFieldsToResultMap(Set<String> fields,
 			StringToStringMap inputMap,
 			HashMap<String, ByteIterator> result){
 		for(String field: fields){
@@ -156,7 +896,7 @@ public class CouchdbClient extends DB{
 		result.put("_rev", _rev);
 	}
 	
-	private void copyAllFieldsToResultMap(StringToStringMap inputMap,
+	void copyAllFieldsToResultMap(StringToStringMap inputMap,
 			HashMap<String, ByteIterator> result){
 		for(String field: inputMap.keySet()){
 			ByteIterator value = inputMap.getAsByteIt(field);
@@ -168,6 +908,20 @@ public class CouchdbClient extends DB{
 	@Override
 	public int read(String table, String key, Set<String> fields,
 			HashMap<String, ByteIterator> result) {
+		try{
+			return this.readRecord(key, fields, result);
+		} catch(RuntimeException exc){
+			return this.getReturnCodeForFailure(exc);
+		}
+	}
+	
+	private int readRecord(String key, Set<String> fields, HashMap<String, ByteIterator> result){
+		if(fields != null && this.projectionMode == ProjectionMode.SHOW)
+			return this.executeShowRead(key, fields, result);
+		if(fields != null && this.projectionMode == ProjectionMode.FIND)
+			return this.executeFindRead(key, fields, result);
+		if(this.storageMode == StorageMode.ATTACHMENT)
+			return this.executePackedRead(key, fields, result);
 		StringToStringMap queryResult = this.executeReadOperation(key);
 		if(queryResult == null)
 			return DOC_NOT_FOUND;
@@ -182,6 +936,23 @@ public class CouchdbClient extends DB{
 	@Override
 	public int scan(String table, String startkey, int recordcount,
 			Set<String> fields, Vector<HashMap<String, ByteIterator>> result) {
+		try{
+			return this.scanRecords(startkey, recordcount, fields, result);
+		} catch(RuntimeException exc){
+			return this.getReturnCodeForFailure(exc);
+		}
+	}
+	
+	private int scanRecords(String startkey, int recordcount, Set<String> fields,
+			Vector<HashMap<String, ByteIterator>> result){
+		if(fields != null && this.projectionMode == ProjectionMode.FIND)
+			return this.executeFindScan(startkey, recordcount, fields, result);
+		if(this.dbConnector.getShardCount() > 1)
+			return this.executeShardedScan(startkey, recordcount, fields, result);
+		if(this.scanExecutor != null && this.scanPageSize > 0 && recordcount > this.scanPageSize)
+			return this.executeParallelScan(startkey, recordcount, fields, result);
+		if(this.streamingScans)
+			return this.executeStreamingScan(startkey, recordcount, fields, result);
 		ViewResult viewResult = this.executeView(startkey, recordcount);
 		for(Row row: viewResult.getRows()){
 			JSONObject jsonObj = this.parseAsJsonObject(row.getDoc());
@@ -198,16 +969,323 @@ public class CouchdbClient extends DB{
 		return OK;
 	}
 	
-	private ViewResult executeView(String startKey, int amountOfRecords){
-		ViewQuery query = new ViewQuery()
+	private ViewQuery createAllDocsQuery(String startKey, int amountOfRecords){
+		return this.includeAttachments(new ViewQuery()
 	      .viewName("_all_docs")
 	      .startKey(startKey)
 	      .limit(amountOfRecords)
-	      .includeDocs(true);
-		return this.dbConnector.queryView(query);
+	      .includeDocs(true));
+	}
+	
+	// The docs of a scan carry their attachment inline (base64)
+	private ViewQuery includeAttachments(ViewQuery query){
+		if(this.storageMode == StorageMode.ATTACHMENT)
+			query.queryParam("attachments", "true");
+		return query;
+	}
+	
+	private ViewResult executeView(String startKey, int amountOfRecords){
+		return this.dbConnector.queryView(this.createAllDocsQuery(startKey, amountOfRecords));
+	}
+	
+	/*
+	 * Parses the rows while the response is read, the requested fields of
+	 * every row end up in the result vector without an intermediate tree.
+	 */
+	private int executeStreamingScan(String startKey, int amountOfRecords,
+			Set<String> fields, Vector<HashMap<String, ByteIterator>> result){
+		ViewQuery query = this.createAllDocsQuery(startKey, amountOfRecords);
+		InputStream stream = this.dbConnector.queryForStream(query);
+		return this.parseDocuments(stream, new AllDocsStreamParser(fields, result));
+	}
+	
+	private static ExecutorService createScanExecutor(int threads){
+		final AtomicInteger threadNumber = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "couchdb-scan-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
-	private JSONObject parseAsJsonObject(String stringToParse){
+	/*
+	 * Splits a long scan into pages of scanPageSize documents. The ids in
+	 * the range are listed first (without the documents), then the pages
+	 * are fetched in parallel with _all_docs?keys=[..]. Every page is a
+	 * separate read, so the node selection spreads the pages over the
+	 * nodes. The calling thread fetches the first page itself. The pages
+	 * are added to the result in key order.
+	 */
+	private int executeParallelScan(String startKey, int amountOfRecords,
+			Set<String> fields, Vector<HashMap<String, ByteIterator>> result){
+		ViewQuery idQuery = new ViewQuery()
+			.viewName("_all_docs")
+			.startKey(startKey)
+			.limit(amountOfRecords);
+		List<String> ids = new ArrayList<String>();
+		for(Row row: this.dbConnector.queryView(idQuery).getRows()){
+			ids.add(row.getId());
+		}
+		List<Future<List<HashMap<String, ByteIterator>>>> pages =
+			new ArrayList<Future<List<HashMap<String, ByteIterator>>>>();
+		for(int from=this.scanPageSize; from<ids.size(); from+=this.scanPageSize){
+			final List<String> pageIds = ids.subList(from, Math.min(from + this.scanPageSize, ids.size()));
+			final Set<String> pageFields = fields;
+			pages.add(this.scanExecutor.submit(new Callable<List<HashMap<String, ByteIterator>>>(){
+				@Override
+				public List<HashMap<String, ByteIterator>> call() throws Exception{
+					return fetchPage(pageIds, pageFields);
+				}
+			}));
+		}
+		try{
+			result.addAll(this.fetchPage(ids.subList(0, Math.min(this.scanPageSize, ids.size())), fields));
+			for(Future<List<HashMap<String, ByteIterator>>> page: pages){
+				result.addAll(page.get());
+			}
+			return OK;
+		} catch(ParseException exc){
+			return JSON_PARSING_FAULT;
+		} catch(IOException exc){
+			return JSON_PARSING_FAULT;
+		} catch(InterruptedException exc){
+			// The scan is given up, the caller sees the interrupt
+			Thread.currentThread().interrupt();
+			return TIMEOUT;
+		} catch(ExecutionException exc){
+			return this.getReturnCodeForScanFailure(exc);
+		} finally{
+			for(Future<List<HashMap<String, ByteIterator>>> page: pages){
+				page.cancel(true);
+			}
+		}
+	}
+	
+	/*
+	 * Return code of a page or shard that was read on the scan executor.
+	 * Failures of the nodes are classified like on the calling thread, a
+	 * response that could not be read or parsed is a parsing fault.
+	 */
+	private int getReturnCodeForScanFailure(ExecutionException exc){
+		Throwable cause = exc.getCause();
+		if(cause instanceof RuntimeException)
+			return this.getReturnCodeForFailure((RuntimeException) cause);
+		if(cause instanceof Error)
+			throw (Error) cause;
+		return JSON_PARSING_FAULT;
+	}
+	
+	/*
+	 * Every shard holds a part of the key range, so the first recordcount
+	 * documents from startKey on are read from every shard (in parallel,
+	 * the calling thread reads shard 0) and merged in key order.
+	 */
+	private int executeShardedScan(String startKey, int amountOfRecords,
+			Set<String> fields, Vector<HashMap<String, ByteIterator>> result){
+		int shards = this.dbConnector.getShardCount();
+		List<Future<ShardScan>> scans = new ArrayList<Future<ShardScan>>();
+		for(int shard=1; shard<shards; shard++){
+			final int scannedShard = shard;
+			final String scanStartKey = startKey;
+			final int scanRecords = amountOfRecords;
+			final Set<String> scanFields = fields;
+			scans.add(this.scanExecutor.submit(new Callable<ShardScan>(){
+				@Override
+				public ShardScan call() throws Exception{
+					return scanShard(scannedShard, scanStartKey, scanRecords, scanFields);
+				}
+			}));
+		}
+		try{
+			List<ShardScan> shardScans = new ArrayList<ShardScan>();
+			shardScans.add(this.scanShard(0, startKey, amountOfRecords, fields));
+			for(Future<ShardScan> scan: scans){
+				shardScans.add(scan.get());
+			}
+			mergeShardScans(shardScans, amountOfRecords, result);
+			return OK;
+		} catch(ParseException exc){
+			return JSON_PARSING_FAULT;
+		} catch(IOException exc){
+			return JSON_PARSING_FAULT;
+		} catch(InterruptedException exc){
+			// The scan is given up, the caller sees the interrupt
+			Thread.currentThread().interrupt();
+			return TIMEOUT;
+		} catch(ExecutionException exc){
+			return this.getReturnCodeForScanFailure(exc);
+		} finally{
+			for(Future<ShardScan> scan: scans){
+				scan.cancel(true);
+			}
+		}
+	}
+	
+	private ShardScan scanShard(int shard, String startKey, int amountOfRecords, Set<String> fields)
+			throws IOException, ParseException{
+		ShardScan result = new ShardScan();
+		InputStream stream = this.dbConnector.queryForStream(
+				this.createAllDocsQuery(startKey, amountOfRecords), shard);
+		try{
+			new AllDocsStreamParser(fields, result.documents, result.ids).parse(stream);
+		} finally{
+			closeQuietly(stream);
+		}
+		return result;
+	}
+	
+	// Takes the smallest id of the heads of the shards until the result is full
+	private static void mergeShardScans(List<ShardScan> shardScans, int amountOfRecords,
+			Vector<HashMap<String, ByteIterator>> result){
+		int[] positions = new int[shardScans.size()];
+		while(result.size() < amountOfRecords){
+			int next = -1;
+			for(int i=0; i<shardScans.size(); i++){
+				ShardScan scan = shardScans.get(i);
+				if(positions[i] == scan.ids.size())
+					continue;
+				if(next == -1 || scan.ids.get(positions[i]).compareTo(
+						shardScans.get(next).ids.get(positions[next])) < 0)
+					next = i;
+			}
+			if(next == -1)
+				return;
+			result.add(shardScans.get(next).documents.get(positions[next]));
+			positions[next]++;
+		}
+	}
+	
+	// The documents of a shard with their ids, in key order
+	private static class ShardScan {
+		
+		private final List<HashMap<String, ByteIterator>> documents =
+			new ArrayList<HashMap<String, ByteIterator>>();
+		private final List<String> ids = new ArrayList<String>();
+	}
+	
+	private List<HashMap<String, ByteIterator>> fetchPage(List<String> ids, Set<String> fields)
+			throws IOException, ParseException{
+		List<HashMap<String, ByteIterator>> result = new ArrayList<HashMap<String, ByteIterator>>();
+		if(ids.isEmpty())
+			return result;
+		ViewQuery query = this.includeAttachments(new ViewQuery()
+			.viewName("_all_docs")
+			.includeDocs(true)
+			.keys(ids));
+		InputStream stream = this.dbConnector.queryForStream(query);
+		try{
+			new AllDocsStreamParser(fields, result).parse(stream);
+		} finally{
+			closeQuietly(stream);
+		}
+		return result;
+	}
+	
+	// Closes the stream
+	private int parseDocuments(InputStream stream, AllDocsStreamParser parser){
+		try{
+			parser.parse(stream);
+			return OK;
+		} catch(ParseException exc){
+			return JSON_PARSING_FAULT;
+		} catch(IOException exc){
+			return JSON_PARSING_FAULT;
+		} finally{
+			closeQuietly(stream);
+		}
+	}
+	
+	private static String joinFields(Set<String> fields){
+		StringBuilder result = new StringBuilder();
+		for(String field: fields){
+			if(result.length() > 0)
+				result.append(',');
+			result.append(field);
+		}
+		return result.toString();
+	}
+	
+	/*
+	 * Reads the requested fields with the show function of the design
+	 * document, so only those fields travel over the network. _id and _rev
+	 * are included, like in copyRequestedFieldsToResultMap.
+	 */
+	private int executeShowRead(String key, Set<String> fields,
+			HashMap<String, ByteIterator> result){
+		Set<String> requestedFields = new HashSet<String>(fields);
+		requestedFields.add("_id");
+		requestedFields.add("_rev");
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put(DesignDocument.FIELDS_PARAMETER, joinFields(requestedFields));
+		JSONObject document;
+		try{
+			document = this.dbConnector.show(DesignDocument.ID, DesignDocument.FIELDS_FUNCTION,
+					key, parameters);
+		} catch(DocumentNotFoundException exc){
+			return DOC_NOT_FOUND;
+		}
+		for(Object field: document.keySet()){
+			Object value = document.get(field);
+			result.put(field.toString(), new StringByteIterator(String.valueOf(value)));
+		}
+		return OK;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static String createFindQuery(Object idSelector, Set<String> fields, int limit){
+		JSONObject selector = new JSONObject();
+		selector.put("_id", idSelector);
+		JSONArray fieldList = new JSONArray();
+		fieldList.addAll(fields);
+		JSONObject idOrder = new JSONObject();
+		idOrder.put("_id", "asc");
+		JSONArray sort = new JSONArray();
+		sort.add(idOrder);
+		JSONObject query = new JSONObject();
+		query.put("selector", selector);
+		query.put("fields", fieldList);
+		query.put("sort", sort);
+		query.put("limit", limit);
+		return query.toJSONString();
+	}
+	
+	private int executeFindRead(String key, Set<String> fields,
+			HashMap<String, ByteIterator> result){
+		Set<String> requestedFields = new HashSet<String>(fields);
+		requestedFields.add("_id");
+		requestedFields.add("_rev");
+		InputStream stream = this.dbConnector.find(createFindQuery(key, requestedFields, 1));
+		Vector<HashMap<String, ByteIterator>> documents = new Vector<HashMap<String, ByteIterator>>();
+		int parseResult = this.parseDocuments(stream,
+				AllDocsStreamParser.forFindResponse(requestedFields, documents));
+		if(parseResult != OK)
+			return parseResult;
+		if(documents.isEmpty())
+			return DOC_NOT_FOUND;
+		result.putAll(documents.get(0));
+		return OK;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private int executeFindScan(String startKey, int amountOfRecords,
+			Set<String> fields, Vector<HashMap<String, ByteIterator>> result){
+		JSONObject fromStartKey = new JSONObject();
+		fromStartKey.put("$gte", startKey);
+		InputStream stream = this.dbConnector.find(createFindQuery(fromStartKey, fields, amountOfRecords));
+		return this.parseDocuments(stream, AllDocsStreamParser.forFindResponse(fields, result));
+	}
+	
+	private static void closeQuietly(InputStream stream){
+		try{
+			stream.close();
+		} catch(IOException exc){}
+	}
+	
+	// Package-private for the benchmarks in src/jmh
+	JSONObject parseAsJsonObject(String stringToParse){
 		JSONParser parser = new JSONParser();
 		try {
 			return (JSONObject) parser.parse(stringToParse);
@@ -217,7 +1295,7 @@ public class CouchdbClient extends DB{
 		}
 	}
 	
-	private HashMap<String, ByteIterator> getFieldsFromJsonObj(Set<String> fields, JSONObject jsonObj){
+	HashMap<String, ByteIterator> getFieldsFromJsonObj(Set<String> fields, JSONObject jsonObj){
 		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
 		for(String key: fields){
 			String value = jsonObj.get(key).toString();
@@ -230,11 +1308,161 @@ public class CouchdbClient extends DB{
 	@Override
 	public int update(String table, String key,
 			HashMap<String, ByteIterator> values) {
-		StringToStringMap queryResult = this.executeReadOperation(key);
+		try{
+			return this.updateRecord(key, values);
+		} catch(RuntimeException exc){
+			return this.getReturnCodeForFailure(exc);
+		}
+	}
+	
+	private int updateRecord(String key, HashMap<String, ByteIterator> values){
+		this.startCachedWrite(key);
+		boolean written = false;
+		try{
+			int result = this.executeUpdate(key, values);
+			written = result == OK;
+			return result;
+		} finally{
+			this.finishCachedWrite(key, written);
+		}
+	}
+	
+	private int executeUpdate(String key, HashMap<String, ByteIterator> values){
+		if(this.updateHandler)
+			return this.executeHandlerUpdateOperation(key, values);
+		if(this.fullRecordUpdates){
+			String revision = this.getCachedRevision(key);
+			if(revision != null){
+				int result = this.executeBlindUpdateOperation(key, revision, values);
+				if(result != UPDATE_CONFLICT)
+					return result;
+				// Cached revision was stale => refresh it and retry
+				this.revisionCache.markStale(key);
+			}
+		}
+		if(this.storageMode == StorageMode.ATTACHMENT)
+			return this.executePackedUpdate(key, values);
+		int result = this.executeMergedUpdate(key, values, false);
+		if(result != UPDATE_CONFLICT || this.updateRetry == null)
+			return result;
+		long startTime = System.nanoTime();
+		int retries = 0;
+		while(result == UPDATE_CONFLICT && this.updateRetry.backoff(retries, startTime)){
+			retries++;
+			result = this.executeMergedUpdate(key, values, true);
+		}
+		this.updateRetry.record(retries, result != UPDATE_CONFLICT);
+		return result;
+	}
+	
+	/*
+	 * Reads the document, merges the values into it and writes it back.
+	 * A retry after a conflict reads the document from the database, the
+	 * document cache may still hold the version that conflicted.
+	 */
+	private int executeMergedUpdate(String key, HashMap<String, ByteIterator> values, boolean retry){
+		StringToStringMap queryResult = retry ? this.fetchDocument(key) : this.executeReadOperation(key);
 		if(queryResult == null)
 			return DOC_NOT_FOUND;
 		StringToStringMap updatedMap = this.updateFields(queryResult, values);
-		return this.executeUpdateOperation(updatedMap);
+		int result = this.executeUpdateOperation(updatedMap);
+		if(result == OK)
+			this.cacheRevision(key, updatedMap);
+		return result;
+	}
+	
+	/*
+	 * Reads the packed values, replaces the updated ones and writes the
+	 * document back with the revision that was read. The new values are
+	 * copied first, a retry after a conflict needs them again.
+	 */
+	private int executePackedUpdate(String key, HashMap<String, ByteIterator> values){
+		Map<String, byte[]> changes = new HashMap<String, byte[]>();
+		for(Map.Entry<String, ByteIterator> value: values.entrySet()){
+			changes.put(value.getKey(), value.getValue().toArray());
+		}
+		int result = this.attemptPackedUpdate(key, changes);
+		if(result != UPDATE_CONFLICT || this.updateRetry == null)
+			return result;
+		long startTime = System.nanoTime();
+		int retries = 0;
+		while(result == UPDATE_CONFLICT && this.updateRetry.backoff(retries, startTime)){
+			retries++;
+			result = this.attemptPackedUpdate(key, changes);
+		}
+		this.updateRetry.record(retries, result != UPDATE_CONFLICT);
+		return result;
+	}
+	
+	private int attemptPackedUpdate(String key, Map<String, byte[]> changes){
+		PackedRecord record = this.fetchPackedRecord(key);
+		if(record == null)
+			return DOC_NOT_FOUND;
+		HashMap<String, ByteIterator> merged = new HashMap<String, ByteIterator>();
+		record.copyFields(null, merged);
+		for(Map.Entry<String, byte[]> change: changes.entrySet()){
+			merged.put(change.getKey(), new ByteArrayByteIterator(change.getValue()));
+		}
+		return this.executeDirectWriteOperation(key, record.getRevision(), merged);
+	}
+	
+	/*
+	 * Sends only the changed fields to the update handler of the design
+	 * document, which merges them into the stored document. The new
+	 * revision is not returned by the handler, so a cached revision of
+	 * the document is dropped.
+	 */
+	private int executeHandlerUpdateOperation(String key, HashMap<String, ByteIterator> values){
+		this.documentWriter.writeDocument(null, null, values);
+		return this.executeSerializedHandlerUpdate(key, this.documentWriter.getBuffer(),
+				this.documentWriter.getLength());
+	}
+	
+	// The handler merges the changes into the latest revision, so a retry needs no re-read
+	private int executeSerializedHandlerUpdate(String key, byte[] changes, int length){
+		int result = this.attemptSerializedHandlerUpdate(key, changes, length);
+		if(result != UPDATE_CONFLICT || this.updateRetry == null)
+			return result;
+		long startTime = System.nanoTime();
+		int retries = 0;
+		while(result == UPDATE_CONFLICT && this.updateRetry.backoff(retries, startTime)){
+			retries++;
+			result = this.attemptSerializedHandlerUpdate(key, changes, length);
+		}
+		this.updateRetry.record(retries, result != UPDATE_CONFLICT);
+		return result;
+	}
+	
+	private int attemptSerializedHandlerUpdate(String key, byte[] changes, int length){
+		try{
+			this.dbConnector.callUpdateHandler(DesignDocument.ID, DesignDocument.UPDATE_FUNCTION,
+					key, changes, length);
+			return OK;
+		} catch(UpdateConflictException exc){
+			return UPDATE_CONFLICT;
+		} catch(DocumentNotFoundException exc){
+			return DOC_NOT_FOUND;
+		} finally{
+			if(this.revisionCache != null)
+				this.revisionCache.remove(key);
+		}
+	}
+	
+	/*
+	 * Overwrites the document without reading it first. Only correct when
+	 * the update carries all fields of the record.
+	 */
+	private int executeBlindUpdateOperation(String key, String revision,
+			HashMap<String, ByteIterator> values){
+		if(this.directWrites)
+			return this.executeDirectWriteOperation(key, revision, values);
+		StringToStringMap dataToUpdate = new StringToStringMap(values);
+		dataToUpdate.put("_id", key);
+		dataToUpdate.put("_rev", revision);
+		int result = this.executeUpdateOperation(dataToUpdate);
+		if(result == OK)
+			this.cacheRevision(key, dataToUpdate);
+		return result;
 	}
 
 	private StringToStringMap updateFields(StringToStringMap toUpdate, 
@@ -250,6 +1478,29 @@ public class CouchdbClient extends DB{
 	@Override
 	public int insert(String table, String key,
 			HashMap<String, ByteIterator> values) {
+		try{
+			return this.insertRecord(key, values);
+		} catch(RuntimeException exc){
+			return this.getReturnCodeForFailure(exc);
+		}
+	}
+	
+	private int insertRecord(String key, HashMap<String, ByteIterator> values){
+		if(this.insertAllocation == null)
+			return this.executeInsert(key, values);
+		long allocationStart = this.insertAllocation.start();
+		try{
+			return this.executeInsert(key, values);
+		} finally{
+			this.insertAllocation.stop(allocationStart);
+		}
+	}
+	
+	private int executeInsert(String key, HashMap<String, ByteIterator> values){
+		if(this.isBulkModeEnabled())
+			return this.executeBufferedWriteOperation(key, new StringToStringMap(values));
+		if(this.directWrites)
+			return this.executeDirectWriteOperation(key, null, values);
 		StringToStringMap dataToInsert = new StringToStringMap(values);
 		return this.executeWriteOperation(key, dataToInsert);
 	}
@@ -257,10 +1508,87 @@ public class CouchdbClient extends DB{
 	// Table variable is not used => already contained in database connector
 	@Override
 	public int delete(String table, String key) {
-		StringToStringMap toDelete = this.executeReadOperation(key);
-		if(toDelete == null)
+		try{
+			return this.deleteRecord(key);
+		} catch(RuntimeException exc){
+			return this.getReturnCodeForFailure(exc);
+		}
+	}
+	
+	private int deleteRecord(String key){
+		this.startCachedWrite(key);
+		boolean written = false;
+		try{
+			int result = this.executeDelete(key);
+			written = result == OK;
+			return result;
+		} finally{
+			this.finishCachedWrite(key, written);
+		}
+	}
+	
+	private int executeDelete(String key){
+		String revision = this.getCachedRevision(key);
+		if(revision != null){
+			try{
+				this.dbConnector.delete(key, revision);
+				this.revisionCache.remove(key);
+				return OK;
+			} catch(UpdateConflictException exc){
+				// Cached revision was stale => refresh it and retry
+				this.revisionCache.markStale(key);
+			} catch(DocumentNotFoundException exc){
+				this.revisionCache.remove(key);
+				return DOC_NOT_FOUND;
+			}
+		}
+		int result = this.executeLookupDelete(key, false);
+		if(result == UPDATE_CONFLICT && this.deleteRetry != null){
+			long startTime = System.nanoTime();
+			int retries = 0;
+			while(result == UPDATE_CONFLICT && this.deleteRetry.backoff(retries, startTime)){
+				retries++;
+				result = this.executeLookupDelete(key, true);
+			}
+			this.deleteRetry.record(retries, result != UPDATE_CONFLICT);
+		}
+		if(result == OK && this.revisionCache != null)
+			this.revisionCache.remove(key);
+		return result;
+	}
+	
+	// Looks the current revision up and deletes it, a retry reads from the database
+	private int executeLookupDelete(String key, boolean retry){
+		if(this.deleteRevisionLookup == RevisionLookup.READ){
+			StringToStringMap toDelete = retry ? this.fetchDocument(key) : this.executeReadOperation(key);
+			if(toDelete == null)
+				return DOC_NOT_FOUND;
+			return this.executeDeleteOperation(toDelete);
+		}
+		return this.executeDeleteWithRevisionLookup(key);
+	}
+	
+	/*
+	 * Deletes the document with the revision found by a HEAD request or
+	 * an _all_docs lookup, so the document body is never transferred.
+	 */
+	private int executeDeleteWithRevisionLookup(String key){
+		try{
+			String revision;
+			if(this.deleteRevisionLookup == RevisionLookup.HEAD){
+				revision = this.dbConnector.getCurrentRevision(key);
+			} else{
+				revision = this.dbConnector.getCurrentRevisions(Collections.singletonList(key)).get(key);
+				if(revision == null)
+					return DOC_NOT_FOUND;
+			}
+			this.dbConnector.delete(key, revision);
+			return OK;
+		} catch(UpdateConflictException exc){
+			return UPDATE_CONFLICT;
+		} catch(DocumentNotFoundException exc){
 			return DOC_NOT_FOUND;
-		return this.executeDeleteOperation(toDelete);
+		}
 	}
 	
 }
@@ -0,0 +1,132 @@
+package couchdb;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.http.HttpClient;
+import org.ektorp.http.HttpResponse;
+import org.ektorp.http.URI;
+import org.json.simple.JSONObject;
+
+/*
+ * The _design/ycsb document the binding installs on every node. It holds
+ * the server-side function used by the show projection mode:
+ *
+ * - shows/fields: returns the fields of a document named in ?fields=a,b
+ *
+ * Scans read _all_docs and project in the client. The design document has
+ * no views: a view of all documents would be a second index of the whole
+ * database, built on its first query and updated on every write, and list
+ * functions can not run over _all_docs.
+ *
+ * It also holds the update handler used for partial updates:
+ *
+ * - updates/ycsb: merges the fields of the JSON request body into the
+ *   stored document
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class DesignDocument {
+
+	public static final String ID = "_design/ycsb";
+	public static final String FIELDS_FUNCTION = "fields";
+	public static final String FIELDS_PARAMETER = "fields";
+	public static final String UPDATE_FUNCTION = "ycsb";
+	// Increase when a function changes, so outdated installs get replaced
+	private static final long VERSION = 3;
+	private static final String VERSION_FIELD = "ycsb_version";
+
+	private static final String PROJECT_FUNCTION =
+		"function project(doc, req) {" +
+		"  if (!req.query.fields) return doc;" +
+		"  var fields = req.query.fields.split(',');" +
+		"  var result = {};" +
+		"  for (var i = 0; i < fields.length; i++) {" +
+		"    if (fields[i] in doc) result[fields[i]] = doc[fields[i]];" +
+		"  }" +
+		"  return result;" +
+		"}";
+
+	private static final String FIELDS_SHOW =
+		"function(doc, req) {" +
+		PROJECT_FUNCTION +
+		"  var headers = {'Content-Type': 'application/json'};" +
+		"  if (!doc) return {code: 404, headers: headers, body: '{\"error\":\"not_found\"}'};" +
+		"  return {headers: headers, body: JSON.stringify(project(doc, req))};" +
+		"}";
+
+	private static final String MERGE_UPDATE =
+		"function(doc, req) {" +
+		"  if (!doc) return [null, {code: 404, body: '{\"error\":\"not_found\"}'}];" +
+		"  var fields = JSON.parse(req.body);" +
+		"  for (var name in fields) doc[name] = fields[name];" +
+		"  return [doc, {headers: {'Content-Type': 'application/json'}, body: '{\"ok\":true}'}];" +
+		"}";
+
+	private DesignDocument(){
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject createContent(){
+		JSONObject shows = new JSONObject();
+		shows.put(FIELDS_FUNCTION, FIELDS_SHOW);
+		JSONObject updates = new JSONObject();
+		updates.put(UPDATE_FUNCTION, MERGE_UPDATE);
+		JSONObject result = new JSONObject();
+		result.put("_id", ID);
+		result.put("language", "javascript");
+		result.put(VERSION_FIELD, VERSION);
+		result.put("shows", shows);
+		result.put("updates", updates);
+		return result;
+	}
+
+	/*
+	 * Installs the design document in the database of the connector, or
+	 * replaces it when an older version is installed. Another client that
+	 * installs it at the same time is not an error.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void install(CouchDbConnector connector){
+		HttpClient httpClient = connector.getConnection();
+		String path = URI.of(connector.path()).append(ID).toString();
+		JSONObject content = createContent();
+		HttpResponse response = httpClient.get(path);
+		try{
+			JSONObject installed = HttpResponses.readJsonObject(response);
+			Object installedVersion = installed.get(VERSION_FIELD);
+			if(installedVersion != null && installedVersion.equals(VERSION))
+				return;
+			content.put("_rev", installed.get("_rev"));
+		} catch(DocumentNotFoundException exc){
+			// Not installed yet
+		} finally{
+			response.releaseConnection();
+		}
+		response = httpClient.put(path, content.toJSONString());
+		try{
+			HttpResponses.checkSuccessful(response);
+		} catch(UpdateConflictException exc){
+			// Installed concurrently by another client
+		} finally{
+			response.releaseConnection();
+		}
+	}
+}
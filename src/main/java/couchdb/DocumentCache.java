@@ -0,0 +1,523 @@
+package couchdb;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+
+/*
+ * Bounded read-through cache of whole documents shared by all client
+ * threads. Like the RevisionCache it is split in segments with an LRU map
+ * each, but the segments are sized in bytes and the documents are kept in
+ * a compact encoding (length-prefixed UTF-8 field names and values) that
+ * is decoded into a fresh StringToStringMap on every hit.
+ *
+ * A full segment only admits a new document when it was requested more
+ * often than the least recently used document it would evict (TinyLFU).
+ * The request frequencies are estimated by a small count-min sketch per
+ * segment that is halved periodically, so the hot documents of a skewed
+ * workload stay cached while one-off reads do not flush them out.
+ *
+ * Entries are dropped on the writes of this process and on the changes
+ * reported by the _changes feed (see ChangesListener). A document that is
+ * fetched while it is invalidated is not cached: every load takes a
+ * sequence number first, and put() refuses the document when the id was
+ * invalidated (or the cache cleared) after the load started.
+ *
+ * The staleness lag is the time between the end of a write of this
+ * process and the arrival of its change through the feed: the window in
+ * which the cache of another process would still serve the previous
+ * version. A change that arrives before the write returned counts as 0.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class DocumentCache {
+
+	private static final int NUMBER_OF_SEGMENTS = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Estimated heap overhead of an entry besides its encoded document
+	private static final int ENTRY_OVERHEAD_BYTES = 96;
+	// Expected mean size of a cached document, sizes the sketches
+	private static final int EXPECTED_DOCUMENT_BYTES = 1024;
+	// Invalidations remembered per segment for the loads in flight
+	private static final int REMEMBERED_INVALIDATIONS = 1024;
+	// Writes whose change has not arrived yet, for the staleness lag
+	private static final int MAXIMUM_PENDING_WRITES = 100000;
+	// States of a pending write besides the time it returned
+	private static final Long WRITING = Long.valueOf(-1);
+	private static final Long CHANGE_ARRIVED = Long.valueOf(-2);
+
+	private final Segment[] segments;
+	private final AtomicLong sequence;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+	private final AtomicLong rejections;
+	private final AtomicLong invalidations;
+	private final AtomicLong resyncs;
+	private final ConcurrentHashMap<String, Long> pendingWrites;
+	private final long startNanos;
+	private final Histogram stalenessLag;
+
+	public DocumentCache(long maximumBytes){
+		if(maximumBytes <= 0)
+			throw new IllegalArgumentException("maximumBytes must be positive");
+		long segmentBytes = Math.max(1, maximumBytes / NUMBER_OF_SEGMENTS);
+		this.segments = new Segment[NUMBER_OF_SEGMENTS];
+		for(int i=0; i<NUMBER_OF_SEGMENTS; i++){
+			this.segments[i] = new Segment(segmentBytes);
+		}
+		this.sequence = new AtomicLong();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		this.rejections = new AtomicLong();
+		this.invalidations = new AtomicLong();
+		this.resyncs = new AtomicLong();
+		this.pendingWrites = new ConcurrentHashMap<String, Long>();
+		this.startNanos = System.nanoTime();
+		// Microseconds, up to an hour
+		this.stalenessLag = new Histogram(TimeUnit.HOURS.toMicros(1), 3);
+	}
+
+	private static int hash(String id){
+		int hash = id.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	private Segment getSegment(int hash){
+		return this.segments[(hash & 0x7fffffff) % NUMBER_OF_SEGMENTS];
+	}
+
+	/*
+	 * Returns a copy of the cached document, or null when it is not cached.
+	 */
+	public StringToStringMap get(String id){
+		int hash = hash(id);
+		Segment segment = this.getSegment(hash);
+		Entry entry;
+		synchronized(segment){
+			segment.sketch.increment(hash);
+			entry = segment.entries.get(id);
+		}
+		if(entry == null){
+			this.misses.incrementAndGet();
+			return null;
+		}
+		this.hits.incrementAndGet();
+		return decode(entry.document);
+	}
+
+	/*
+	 * Called before the document is fetched, the result is passed to put().
+	 */
+	public long startLoad(){
+		return this.sequence.get();
+	}
+
+	/*
+	 * Caches the fetched document unless it was invalidated since the load
+	 * started, or the segment is full of documents that are requested more
+	 * often.
+	 */
+	public void put(String id, StringToStringMap document, long loadSequence){
+		if(id == null || document == null)
+			return;
+		Entry entry = new Entry(document.get("_rev"), encode(document));
+		int hash = hash(id);
+		Segment segment = this.getSegment(hash);
+		synchronized(segment){
+			if(segment.isInvalidatedSince(id, loadSequence))
+				return;
+			int weight = entry.getWeight(id);
+			if(weight > segment.maximumBytes){
+				this.rejections.incrementAndGet();
+				return;
+			}
+			Entry previous = segment.entries.get(id);
+			long freeBytes = segment.maximumBytes - segment.bytes + (previous == null ? 0 : previous.getWeight(id));
+			// Admission is decided before anything is dropped, a rejected put keeps the previous entry
+			if(weight > freeBytes && !this.admits(segment, id, hash))
+				return;
+			if(previous != null){
+				segment.entries.remove(id);
+				segment.bytes -= previous.getWeight(id);
+			}
+			Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = segment.entries.entrySet().iterator();
+			while(segment.bytes + weight > segment.maximumBytes){
+				Map.Entry<String, Entry> victim = leastRecentlyUsed.next();
+				segment.bytes -= victim.getValue().getWeight(victim.getKey());
+				leastRecentlyUsed.remove();
+				this.evictions.incrementAndGet();
+			}
+			segment.entries.put(id, entry);
+			segment.bytes += weight;
+		}
+	}
+
+	/*
+	 * Returns true when the document was requested more often than the
+	 * least recently used other document of the segment, the first one the
+	 * put would evict. Called with the lock of the segment held.
+	 */
+	private boolean admits(Segment segment, String id, int hash){
+		int frequency = segment.sketch.frequency(hash);
+		for(String victim: segment.entries.keySet()){
+			if(victim.equals(id))
+				continue;
+			if(segment.sketch.frequency(hash(victim)) < frequency)
+				return true;
+			break;
+		}
+		this.rejections.incrementAndGet();
+		return false;
+	}
+
+	/*
+	 * Called before a write of this process, the write must be followed by
+	 * finishWrite().
+	 */
+	public void startWrite(String id){
+		if(this.pendingWrites.size() < MAXIMUM_PENDING_WRITES)
+			this.pendingWrites.put(id, WRITING);
+	}
+
+	/*
+	 * Drops the document after a write of this process. The time a
+	 * successful write returned is kept until its change arrives.
+	 */
+	public void finishWrite(String id, boolean written){
+		this.remove(id, null);
+		Long state = this.pendingWrites.get(id);
+		if(state == null)
+			return;
+		if(!written){
+			this.pendingWrites.remove(id, state);
+		} else if(!state.equals(WRITING) || !this.pendingWrites.replace(id, WRITING, this.now())){
+			// The change arrived first
+			if(this.pendingWrites.remove(id, CHANGE_ARRIVED))
+				this.recordStalenessLag(0);
+		}
+	}
+
+	/*
+	 * Applies a change reported by the _changes feed: the document is
+	 * dropped unless the cached revision is the changed one already.
+	 */
+	public void applyChange(String id, String revision){
+		Long state = this.pendingWrites.get(id);
+		if(state != null){
+			if(state.equals(WRITING))
+				this.pendingWrites.replace(id, WRITING, CHANGE_ARRIVED);
+			else if(!state.equals(CHANGE_ARRIVED) && this.pendingWrites.remove(id, state))
+				this.recordStalenessLag(this.now() - state);
+		}
+		if(this.remove(id, revision))
+			this.invalidations.incrementAndGet();
+	}
+
+	// Nanoseconds since the cache was created, never negative
+	private long now(){
+		return System.nanoTime() - this.startNanos;
+	}
+
+	private void recordStalenessLag(long lagNanos){
+		long lagUs = TimeUnit.NANOSECONDS.toMicros(lagNanos);
+		synchronized(this.stalenessLag){
+			this.stalenessLag.recordValue(Math.min(Math.max(lagUs, 0), this.stalenessLag.getHighestTrackableValue()));
+		}
+	}
+
+	// Returns true when a cached document was dropped
+	private boolean remove(String id, String keptRevision){
+		Segment segment = this.getSegment(hash(id));
+		synchronized(segment){
+			segment.rememberInvalidation(id, this.sequence.incrementAndGet());
+			Entry entry = segment.entries.get(id);
+			if(entry == null || (keptRevision != null && keptRevision.equals(entry.revision)))
+				return false;
+			segment.entries.remove(id);
+			segment.bytes -= entry.getWeight(id);
+			return true;
+		}
+	}
+
+	/*
+	 * Drops all documents, called when changes may have been missed (the
+	 * feed was reconnected).
+	 */
+	public void clear(){
+		this.resyncs.incrementAndGet();
+		// Their changes may never arrive
+		this.pendingWrites.clear();
+		for(Segment segment: this.segments){
+			synchronized(segment){
+				segment.clear(this.sequence.incrementAndGet());
+			}
+		}
+	}
+
+	public long getHits(){
+		return this.hits.get();
+	}
+
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	public long getEvictions(){
+		return this.evictions.get();
+	}
+
+	public long getBytes(){
+		long result = 0;
+		for(Segment segment: this.segments){
+			synchronized(segment){
+				result += segment.bytes;
+			}
+		}
+		return result;
+	}
+
+	public int getSize(){
+		int result = 0;
+		for(Segment segment: this.segments){
+			synchronized(segment){
+				result += segment.entries.size();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String toString(){
+		long hits = this.getHits();
+		long lookups = hits + this.getMisses();
+		StringBuilder result = new StringBuilder("[DOCUMENT CACHE] hits=").append(hits)
+			.append("; misses=").append(this.getMisses())
+			.append("; hitRatio=").append(lookups == 0 ? "0" : String.format("%.3f", (double) hits / lookups))
+			.append("; documents=").append(this.getSize())
+			.append("; bytes=").append(this.getBytes())
+			.append("; evictions=").append(this.getEvictions())
+			.append("; rejected=").append(this.rejections.get())
+			.append("; invalidations=").append(this.invalidations.get())
+			.append("; resyncs=").append(this.resyncs.get());
+		synchronized(this.stalenessLag){
+			result.append("; stalenessLagChanges=").append(this.stalenessLag.getTotalCount());
+			if(this.stalenessLag.getTotalCount() > 0)
+				result.append("; stalenessLagP50Us=").append(this.stalenessLag.getValueAtPercentile(50))
+					.append("; stalenessLagP99Us=").append(this.stalenessLag.getValueAtPercentile(99))
+					.append("; stalenessLagMaxUs=").append(this.stalenessLag.getMaxValue());
+		}
+		return result.toString();
+	}
+
+	/*
+	 * Every field is written as the UTF-8 length of its name, the name, the
+	 * length of its value and the value. Lengths are variable-length ints,
+	 * a null value is written as length 0 and a string of n bytes as n + 1.
+	 */
+	static byte[] encode(StringToStringMap document){
+		byte[][] strings = new byte[2 * document.size()][];
+		int size = 0;
+		int index = 0;
+		for(Map.Entry<String, String> field: document.entrySet()){
+			strings[index] = field.getKey().getBytes(UTF8);
+			strings[index + 1] = field.getValue() == null ? null : field.getValue().getBytes(UTF8);
+			for(int i=index; i<index+2; i++){
+				int length = strings[i] == null ? 0 : strings[i].length + 1;
+				size += varIntLength(length) + Math.max(length - 1, 0);
+			}
+			index += 2;
+		}
+		byte[] result = new byte[size];
+		int position = 0;
+		for(byte[] string: strings){
+			position = writeString(result, position, string);
+		}
+		return result;
+	}
+
+	static StringToStringMap decode(byte[] document){
+		StringToStringMap result = new StringToStringMap();
+		int[] position = new int[1];
+		while(position[0] < document.length){
+			String name = readString(document, position);
+			result.put(name, readString(document, position));
+		}
+		return result;
+	}
+
+	private static int varIntLength(int value){
+		int result = 1;
+		while((value >>>= 7) != 0){
+			result++;
+		}
+		return result;
+	}
+
+	private static int writeString(byte[] buffer, int position, byte[] string){
+		int length = string == null ? 0 : string.length + 1;
+		while((length & ~0x7f) != 0){
+			buffer[position++] = (byte) ((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		buffer[position++] = (byte) length;
+		if(string == null)
+			return position;
+		System.arraycopy(string, 0, buffer, position, string.length);
+		return position + string.length;
+	}
+
+	private static String readString(byte[] buffer, int[] position){
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do{
+			b = buffer[position[0]++];
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		if(length == 0)
+			return null;
+		String result = new String(buffer, position[0], length - 1, UTF8);
+		position[0] += length - 1;
+		return result;
+	}
+
+	private static class Entry {
+
+		private final String revision;
+		private final byte[] document;
+
+		Entry(String revision, byte[] document){
+			this.revision = revision;
+			this.document = document;
+		}
+
+		int getWeight(String id){
+			return ENTRY_OVERHEAD_BYTES + 2 * id.length() + this.document.length;
+		}
+	}
+
+	private static class Segment {
+
+		private final long maximumBytes;
+		private final LinkedHashMap<String, Entry> entries;
+		private final FrequencySketch sketch;
+		private final LinkedHashMap<String, Long> invalidatedAt;
+		// Loads that started before this sequence are refused
+		private long forgottenUpTo;
+		private long bytes;
+
+		Segment(long maximumBytes){
+			this.maximumBytes = maximumBytes;
+			// 3rd parameter true => access order, which makes this an LRU map
+			this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+			this.sketch = new FrequencySketch((int) Math.min(1 << 24,
+					Math.max(64, maximumBytes / EXPECTED_DOCUMENT_BYTES)));
+			this.invalidatedAt = new LinkedHashMap<String, Long>();
+			this.forgottenUpTo = 0;
+			this.bytes = 0;
+		}
+
+		void rememberInvalidation(String id, long sequence){
+			this.invalidatedAt.remove(id);
+			this.invalidatedAt.put(id, sequence);
+			if(this.invalidatedAt.size() > REMEMBERED_INVALIDATIONS){
+				Iterator<Long> oldest = this.invalidatedAt.values().iterator();
+				this.forgottenUpTo = oldest.next();
+				oldest.remove();
+			}
+		}
+
+		boolean isInvalidatedSince(String id, long loadSequence){
+			if(loadSequence < this.forgottenUpTo)
+				return true;
+			Long sequence = this.invalidatedAt.get(id);
+			return sequence != null && sequence > loadSequence;
+		}
+
+		void clear(long sequence){
+			this.entries.clear();
+			this.invalidatedAt.clear();
+			this.forgottenUpTo = sequence;
+			this.bytes = 0;
+		}
+	}
+
+	/*
+	 * Count-min sketch of 4 rows with counters that saturate at 15. All
+	 * counters are halved once the number of increments reaches ten times
+	 * the width, so the frequencies follow a changing working set.
+	 */
+	private static class FrequencySketch {
+
+		private static final int ROWS = 4;
+		private static final int MAXIMUM_COUNT = 15;
+		private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f};
+
+		private final byte[] counters;
+		private final int mask;
+		private final int resetThreshold;
+		private int increments;
+
+		FrequencySketch(int expectedEntries){
+			int width = Integer.highestOneBit(Math.max(expectedEntries - 1, 1)) << 1;
+			this.counters = new byte[ROWS * width];
+			this.mask = width - 1;
+			this.resetThreshold = 10 * width;
+			this.increments = 0;
+		}
+
+		private int index(int hash, int row){
+			int h = (hash + row) * SEEDS[row];
+			h ^= h >>> 15;
+			return row * (this.mask + 1) + (h & this.mask);
+		}
+
+		void increment(int hash){
+			for(int row=0; row<ROWS; row++){
+				int index = this.index(hash, row);
+				if(this.counters[index] < MAXIMUM_COUNT)
+					this.counters[index]++;
+			}
+			if(++this.increments >= this.resetThreshold){
+				for(int i=0; i<this.counters.length; i++){
+					this.counters[i] >>= 1;
+				}
+				this.increments /= 2;
+			}
+		}
+
+		int frequency(int hash){
+			int result = MAXIMUM_COUNT;
+			for(int row=0; row<ROWS; row++){
+				result = Math.min(result, this.counters[this.index(hash, row)]);
+			}
+			return result;
+		}
+	}
+}
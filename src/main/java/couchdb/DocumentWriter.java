@@ -0,0 +1,319 @@
+package couchdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.yahoo.ycsb.ByteIterator;
+
+/*
+ * Serializes a YCSB record to a JSON document without going through
+ * Strings or an object mapper. The bytes of every ByteIterator are escaped
+ * straight into a buffer that is reused for the next document, so writing
+ * a document normally allocates nothing.
+ *
+ * A value byte b ends up in the document as the character (char) b, which
+ * is how ByteIterator.toString() (and therefore StringToStringMap) has
+ * always stored values.
+ *
+ * Instances are not thread safe, every client thread owns its own writer.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class DocumentWriter {
+
+	public static final String CONTENT_TYPE = "application/json";
+	// Attachment and field index of the documents of writeAttachmentDocument
+	public static final String ATTACHMENT_NAME = "values";
+	public static final String ATTACHMENT_CONTENT_TYPE = "application/octet-stream";
+	public static final String FIELD_INDEX = "fields";
+	private static final int DEFAULT_INITIAL_CAPACITY = 16 * 1024;
+	private static final int CHUNK_SIZE = 4096;
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] BASE64 =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+	private byte[] buffer;
+	private int length;
+	// Raw value bytes are read in chunks before they are escaped
+	private final byte[] chunk;
+	// Values of writeAttachmentDocument, before they are base64 encoded
+	private byte[] packed;
+	private int packedLength;
+	// Statistics
+	private long documentsWritten;
+	private long bytesWritten;
+	private long bytesAllocated;
+
+	public DocumentWriter(){
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+
+	public DocumentWriter(int initialCapacity){
+		if(initialCapacity <= 0)
+			throw new IllegalArgumentException("initialCapacity must be positive");
+		this.buffer = new byte[initialCapacity];
+		this.chunk = new byte[CHUNK_SIZE];
+		this.length = 0;
+		this.packed = null;
+		this.packedLength = 0;
+		this.bytesAllocated = initialCapacity + CHUNK_SIZE;
+	}
+
+	/*
+	 * Replaces the content of the buffer with the document. The revision
+	 * may be null for new documents. The ByteIterators are consumed.
+	 */
+	public void writeDocument(String id, String revision, Map<String, ByteIterator> fields){
+		this.length = 0;
+		this.writeByte('{');
+		boolean first = true;
+		if(id != null){
+			this.writeStringField("_id", id);
+			first = false;
+		}
+		if(revision != null){
+			if(!first)
+				this.writeByte(',');
+			this.writeStringField("_rev", revision);
+			first = false;
+		}
+		for(Map.Entry<String, ByteIterator> field: fields.entrySet()){
+			if(!first)
+				this.writeByte(',');
+			this.writeString(field.getKey());
+			this.writeByte(':');
+			this.writeValue(field.getValue());
+			first = false;
+		}
+		this.writeByte('}');
+		this.documentsWritten++;
+		this.bytesWritten += this.length;
+	}
+
+	/*
+	 * Like writeDocument, but the values are packed one after the other
+	 * into a single attachment that is inlined as base64, so they are not
+	 * escaped as JSON strings. The document keeps an index with the offset
+	 * and length of every field in the attachment:
+	 *
+	 * {"_id":..,"_rev":..,"fields":{"field0":[0,100],"field1":[100,100]},
+	 *  "_attachments":{"values":{"content_type":..,"data":"<base64>"}}}
+	 */
+	public void writeAttachmentDocument(String id, String revision, Map<String, ByteIterator> fields){
+		this.length = 0;
+		this.packedLength = 0;
+		this.writeByte('{');
+		if(id != null){
+			this.writeStringField("_id", id);
+			this.writeByte(',');
+		}
+		if(revision != null){
+			this.writeStringField("_rev", revision);
+			this.writeByte(',');
+		}
+		this.writeString(FIELD_INDEX);
+		this.writeByte(':');
+		this.writeByte('{');
+		boolean first = true;
+		for(Map.Entry<String, ByteIterator> field: fields.entrySet()){
+			if(!first)
+				this.writeByte(',');
+			int offset = this.packedLength;
+			this.pack(field.getValue());
+			this.writeString(field.getKey());
+			this.writeByte(':');
+			this.writeByte('[');
+			this.writeInt(offset);
+			this.writeByte(',');
+			this.writeInt(this.packedLength - offset);
+			this.writeByte(']');
+			first = false;
+		}
+		this.writeByte('}');
+		this.writeByte(',');
+		this.writeString("_attachments");
+		this.writeByte(':');
+		this.writeByte('{');
+		this.writeString(ATTACHMENT_NAME);
+		this.writeByte(':');
+		this.writeByte('{');
+		this.writeStringField("content_type", ATTACHMENT_CONTENT_TYPE);
+		this.writeByte(',');
+		this.writeString("data");
+		this.writeByte(':');
+		this.writeByte('"');
+		this.writeBase64(this.packed, this.packedLength);
+		this.writeByte('"');
+		this.writeByte('}');
+		this.writeByte('}');
+		this.writeByte('}');
+		this.documentsWritten++;
+		this.bytesWritten += this.length;
+	}
+
+	public byte[] getBuffer(){
+		return this.buffer;
+	}
+
+	public int getLength(){
+		return this.length;
+	}
+
+	public InputStream asInputStream(){
+		return new ByteArrayInputStream(this.buffer, 0, this.length);
+	}
+
+	public long getDocumentsWritten(){
+		return this.documentsWritten;
+	}
+
+	public long getBytesWritten(){
+		return this.bytesWritten;
+	}
+
+	/*
+	 * Total size of all buffers this writer ever allocated.
+	 */
+	public long getBytesAllocated(){
+		return this.bytesAllocated;
+	}
+
+	private void writeStringField(String name, String value){
+		this.writeString(name);
+		this.writeByte(':');
+		this.writeString(value);
+	}
+
+	private void writeString(String value){
+		// Worst case every character becomes a \\uXXXX escape
+		this.ensureCapacity(value.length() * 6 + 2);
+		this.buffer[this.length++] = '"';
+		for(int i=0; i<value.length(); i++){
+			this.writeEscaped(value.charAt(i));
+		}
+		this.buffer[this.length++] = '"';
+	}
+
+	private void writeValue(ByteIterator value){
+		this.writeByte('"');
+		while(value.hasNext()){
+			int end = value.nextBuf(this.chunk, 0);
+			this.ensureCapacity(end * 6);
+			for(int i=0; i<end; i++){
+				this.writeEscaped((char) this.chunk[i]);
+			}
+		}
+		this.writeByte('"');
+	}
+
+	private void pack(ByteIterator value){
+		this.ensurePackedCapacity((int) Math.min(value.bytesLeft(), Integer.MAX_VALUE - this.packedLength));
+		while(value.hasNext()){
+			if(this.packedLength == this.packed.length)
+				this.ensurePackedCapacity(CHUNK_SIZE);
+			this.packedLength = value.nextBuf(this.packed, this.packedLength);
+		}
+	}
+
+	private void writeBase64(byte[] data, int dataLength){
+		if(dataLength == 0)
+			return;
+		this.ensureCapacity((dataLength + 2) / 3 * 4);
+		int i = 0;
+		for(; i + 2 < dataLength; i += 3){
+			int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+			this.buffer[this.length++] = BASE64[bits >>> 18];
+			this.buffer[this.length++] = BASE64[(bits >>> 12) & 0x3f];
+			this.buffer[this.length++] = BASE64[(bits >>> 6) & 0x3f];
+			this.buffer[this.length++] = BASE64[bits & 0x3f];
+		}
+		if(i == dataLength)
+			return;
+		int bits = (data[i] & 0xff) << 16;
+		if(i + 1 < dataLength)
+			bits |= (data[i + 1] & 0xff) << 8;
+		this.buffer[this.length++] = BASE64[bits >>> 18];
+		this.buffer[this.length++] = BASE64[(bits >>> 12) & 0x3f];
+		this.buffer[this.length++] = i + 1 < dataLength ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+		this.buffer[this.length++] = '=';
+	}
+
+	private void writeInt(int value){
+		// At most 10 digits
+		this.ensureCapacity(10);
+		int start = this.length;
+		do{
+			this.buffer[this.length++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while(value > 0);
+		// The digits were written in reverse
+		for(int i=start, j=this.length-1; i<j; i++, j--){
+			byte digit = this.buffer[i];
+			this.buffer[i] = this.buffer[j];
+			this.buffer[j] = digit;
+		}
+	}
+
+	// Caller guarantees room for 6 bytes
+	private void writeEscaped(char c){
+		if(c >= 0x20 && c < 0x7f){
+			if(c == '"' || c == '\\')
+				this.buffer[this.length++] = '\\';
+			this.buffer[this.length++] = (byte) c;
+			return;
+		}
+		this.buffer[this.length++] = '\\';
+		this.buffer[this.length++] = 'u';
+		this.buffer[this.length++] = HEX[(c >> 12) & 0xf];
+		this.buffer[this.length++] = HEX[(c >> 8) & 0xf];
+		this.buffer[this.length++] = HEX[(c >> 4) & 0xf];
+		this.buffer[this.length++] = HEX[c & 0xf];
+	}
+
+	private void writeByte(char c){
+		this.ensureCapacity(1);
+		this.buffer[this.length++] = (byte) c;
+	}
+
+	private void ensurePackedCapacity(int extraBytes){
+		int required = this.packedLength + extraBytes;
+		if(this.packed != null && required <= this.packed.length)
+			return;
+		int newCapacity = Math.max(Math.max(required, CHUNK_SIZE),
+				this.packed == null ? 0 : this.packed.length * 2);
+		byte[] newPacked = new byte[newCapacity];
+		if(this.packed != null)
+			System.arraycopy(this.packed, 0, newPacked, 0, this.packedLength);
+		this.packed = newPacked;
+		this.bytesAllocated += newCapacity;
+	}
+
+	private void ensureCapacity(int extraBytes){
+		int required = this.length + extraBytes;
+		if(required <= this.buffer.length)
+			return;
+		int newCapacity = Math.max(required, this.buffer.length * 2);
+		byte[] newBuffer = new byte[newCapacity];
+		System.arraycopy(this.buffer, 0, newBuffer, 0, this.length);
+		this.buffer = newBuffer;
+		this.bytesAllocated += newCapacity;
+	}
+}
@@ -0,0 +1,94 @@
+package couchdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+
+/*
+ * Why an attempt on a node failed. Failures that another node (or a later
+ * attempt) may not have are retryable; a request the node rejected as
+ * invalid fails the same way on every node and is not retried.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public enum FailureKind {
+
+	// No connection could be made, or it broke before the answer
+	UNREACHABLE(true),
+	// The connection, the answer or the deadline of the operation timed out
+	TIMEOUT(true),
+	// 5xx
+	SERVER_ERROR(true),
+	// 4xx other than a missing document or a conflict
+	CLIENT_ERROR(false);
+
+	// Ektorp's DbAccessException message starts with "<status>:<reason>"
+	private static final Pattern EKTORP_STATUS = Pattern.compile("^(\\d{3}):");
+
+	private final boolean retryable;
+
+	private FailureKind(boolean retryable){
+		this.retryable = retryable;
+	}
+
+	public boolean isRetryable(){
+		return this.retryable;
+	}
+
+	/*
+	 * Returns the kind of the failure, or null when the exception is an
+	 * answer (a missing document or a conflict) or not a failure of the
+	 * request, like a document that could not be parsed.
+	 */
+	public static FailureKind classify(Throwable exc){
+		if(exc instanceof DocumentNotFoundException || exc instanceof UpdateConflictException)
+			return null;
+		for(Throwable cause = exc; cause != null; cause = cause.getCause()){
+			if(cause instanceof NoNodeReacheableException)
+				return ((NoNodeReacheableException) cause).getKind();
+			if(cause instanceof HttpStatusException)
+				return ofStatusCode(((HttpStatusException) cause).getStatusCode());
+			// Socket, connect and connection pool timeouts
+			if(cause instanceof InterruptedIOException)
+				return TIMEOUT;
+			if(cause instanceof IOException)
+				return UNREACHABLE;
+			if(cause instanceof DbAccessException && cause.getMessage() != null){
+				Matcher matcher = EKTORP_STATUS.matcher(cause.getMessage());
+				if(matcher.find())
+					return ofStatusCode(Integer.parseInt(matcher.group(1)));
+			}
+		}
+		return null;
+	}
+
+	private static FailureKind ofStatusCode(int statusCode){
+		if(statusCode >= 500)
+			return SERVER_ERROR;
+		if(statusCode >= 400)
+			return CLIENT_ERROR;
+		return null;
+	}
+}
@@ -0,0 +1,122 @@
+package couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.http.HttpResponse;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/*
+ * Helpers for requests that bypass Ektorp's object mapping and talk to
+ * the HttpClient of a node directly.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class HttpResponses {
+
+	private HttpResponses(){
+	}
+
+	/*
+	 * Translates an unsuccessful response into the exception Ektorp would
+	 * have thrown for it: 404 => DocumentNotFoundException, 409 =>
+	 * UpdateConflictException, anything else => HttpStatusException.
+	 */
+	public static DbAccessException createException(HttpResponse response){
+		int code = response.getCode();
+		String path = response.getRequestURI();
+		if(code == 404)
+			return new DocumentNotFoundException(path);
+		if(code == 409)
+			return new UpdateConflictException();
+		return new HttpStatusException(code, path);
+	}
+
+	/*
+	 * Throws the matching exception when the response was not successful.
+	 */
+	public static void checkSuccessful(HttpResponse response){
+		if(!response.isSuccessful())
+			throw createException(response);
+	}
+
+	/*
+	 * Parses the body of a successful response as a single JSON object.
+	 */
+	public static JSONObject readJsonObject(HttpResponse response){
+		Object parsed = readJson(response);
+		if(!(parsed instanceof JSONObject))
+			throw new DbAccessException("Expected a JSON object from " + response.getRequestURI());
+		return (JSONObject) parsed;
+	}
+
+	/*
+	 * Parses the body of a successful response as a JSON array, like the
+	 * response of _bulk_docs.
+	 */
+	public static JSONArray readJsonArray(HttpResponse response){
+		Object parsed = readJson(response);
+		if(!(parsed instanceof JSONArray))
+			throw new DbAccessException("Expected a JSON array from " + response.getRequestURI());
+		return (JSONArray) parsed;
+	}
+
+	private static Object readJson(HttpResponse response){
+		checkSuccessful(response);
+		InputStream content = response.getContent();
+		try{
+			return new JSONParser().parse(new InputStreamReader(content, "UTF-8"));
+		} catch(IOException exc){
+			throw new DbAccessException(exc);
+		} catch(ParseException exc){
+			throw new DbAccessException(exc);
+		}
+	}
+
+	/*
+	 * Returns the revision in the ETag header of a successful GET or HEAD
+	 * of a document. CouchDB quotes the ETag, the quotes are removed.
+	 */
+	public static String readETagRevision(HttpResponse response){
+		checkSuccessful(response);
+		String etag = response.getETag();
+		if(etag == null)
+			throw new DbAccessException("No ETag in the response for " + response.getRequestURI());
+		if(etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\""))
+			return etag.substring(1, etag.length() - 1);
+		return etag;
+	}
+
+	/*
+	 * Returns the revision of a successful document write
+	 * ({"ok":true,"id":..,"rev":..}).
+	 */
+	public static String readRevision(HttpResponse response){
+		Object revision = readJsonObject(response).get("rev");
+		return revision == null ? null : revision.toString();
+	}
+}
@@ -0,0 +1,43 @@
+package couchdb;
+
+import org.ektorp.DbAccessException;
+
+/*
+ * An unsuccessful response of a node that is not a missing document or a
+ * conflict, with its status code, so failures can be told apart by
+ * FailureKind.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class HttpStatusException extends DbAccessException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	public HttpStatusException(int statusCode, String path){
+		super("HTTP " + statusCode + " for " + path);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode(){
+		return this.statusCode;
+	}
+}
@@ -0,0 +1,97 @@
+package couchdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+
+/*
+ * Measures how long requests wait for a connection of the pool of a node
+ * and records it in the ConnectorMetrics. The latency of an attempt
+ * includes this wait; when the wait is a large part of it, the requests
+ * queue in the client rather than in the node and the pool is too small.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class LeaseTimingConnectionManager implements ClientConnectionManager {
+
+	private final ClientConnectionManager manager;
+	private final ConnectorMetrics metrics;
+	private final int node;
+
+	public LeaseTimingConnectionManager(ClientConnectionManager manager, ConnectorMetrics metrics, int node){
+		if(manager == null || metrics == null)
+			throw new IllegalArgumentException("manager or metrics is null");
+		this.manager = manager;
+		this.metrics = metrics;
+		this.node = node;
+	}
+
+	@Override
+	public SchemeRegistry getSchemeRegistry(){
+		return this.manager.getSchemeRegistry();
+	}
+
+	@Override
+	public ClientConnectionRequest requestConnection(HttpRoute route, Object state){
+		final ClientConnectionRequest request = this.manager.requestConnection(route, state);
+		return new ClientConnectionRequest(){
+			@Override
+			public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+					throws InterruptedException, ConnectionPoolTimeoutException{
+				long startTime = System.nanoTime();
+				try{
+					return request.getConnection(timeout, unit);
+				} finally{
+					metrics.recordLeaseWait(node, startTime);
+				}
+			}
+
+			@Override
+			public void abortRequest(){
+				request.abortRequest();
+			}
+		};
+	}
+
+	@Override
+	public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit timeUnit){
+		this.manager.releaseConnection(connection, validDuration, timeUnit);
+	}
+
+	@Override
+	public void closeExpiredConnections(){
+		this.manager.closeExpiredConnections();
+	}
+
+	@Override
+	public void closeIdleConnections(long idletime, TimeUnit timeUnit){
+		this.manager.closeIdleConnections(idletime, timeUnit);
+	}
+
+	@Override
+	public void shutdown(){
+		this.manager.shutdown();
+	}
+}
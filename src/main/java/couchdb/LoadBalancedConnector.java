@@ -1,16 +1,35 @@
 package couchdb;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ektorp.AttachmentInputStream;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
 import org.ektorp.DbInfo;
+import org.ektorp.DbPath;
 import org.ektorp.DesignDocInfo;
 import org.ektorp.DocumentNotFoundException;
 import org.ektorp.DocumentOperationResult;
@@ -30,14 +49,35 @@ import org.ektorp.changes.ChangesCommand;
 import org.ektorp.changes.ChangesFeed;
 import org.ektorp.changes.DocumentChange;
 import org.ektorp.http.HttpClient;
-import org.ektorp.http.StdHttpClient;
+import org.ektorp.http.HttpResponse;
+import org.ektorp.http.URI;
 import org.ektorp.impl.StdCouchDbInstance;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
 
 /*
  * This CouchDbConnector load balances the request to
- * the different nodes in the couchdb cluster.
+ * the different nodes in the couchdb cluster. A single instance is safe
+ * to share between all client threads (see ConnectorRegistry).
  * 
- * Note: Only the create, get, update and delete methods are implemented. 
+ * By default mutations are sent to the first node and reads are spread
+ * round-robin. In CONSISTENT_HASH routing mode every document id is mapped
+ * to a primary node on a hash ring. When a node fails, the operation fails
+ * over to the next node on the ring (or the next node in the list).
+ * 
+ * Every node has a circuit breaker (see NodeHealth). Nodes with an open
+ * breaker are skipped until a background probe finds them healthy again.
+ * Reads that are not routed by key are spread according to the configured
+ * selection strategy.
+ * 
+ * With more than one shard the documents are spread over the databases
+ * name_0 .. name_(n-1) on every node by a hash of their id. Operations on
+ * a document go to the database of its shard; queries without a document
+ * id must name the shard they are sent to.
+ * 
+ * Note: Only the create, get, update, delete, view, update handler and bulk
+ * methods are implemented. 
  * 
  * ***********************************************************************
  * 
@@ -60,111 +100,731 @@ import org.ektorp.impl.StdCouchDbInstance;
  */
 public class LoadBalancedConnector implements CouchDbConnector{
 
+	// Around the documents of executeSerializedBulk
+	private static final byte[] BULK_DOCS_START = "{\"docs\":[".getBytes();
+	private static final byte[] BULK_DOCS_END = "]}".getBytes();
+	// Asks for the attachments of a document as raw parts instead of base64
+	private static final Map<String, String> MULTIPART_HEADERS =
+			Collections.singletonMap("Accept", "multipart/related");
+
+	private final List<HttpClient> httpClients;
+	// Connectors per shard and node; connectors is the list of shard 0
+	private final List<List<CouchDbConnector>> shardConnectors;
 	private final List<CouchDbConnector> connectors;
-	private int nextConnector;
+	private final List<NodeHealth> nodeHealth;
+	private final AtomicInteger nextConnector;
+	private final ConnectorOptions options;
+	// Failover order of mutations in ROUND_ROBIN mode: 0, 1, ..., n-1
+	private final int[] defaultNodeOrder;
+	// Only used in CONSISTENT_HASH mode
+	private final ConsistentHashRing ring;
+	// Probes nodes with an open circuit breaker, null when breakers are disabled
+	private final ScheduledExecutorService prober;
+	// One generator per thread, a shared Random is contended by all client threads
+	private final ThreadLocal<Random> random = new ThreadLocal<Random>(){
+		@Override
+		protected Random initialValue(){
+			return new Random();
+		}
+	};
+	// Latency and outcome of every attempt, per node and operation
+	private final ConnectorMetrics metrics;
+	// Body bytes per operation, on the wire and before compression
+	private final TrafficCounter traffic;
+	// Null when reads are not hedged
+	private final ReadHedger hedger;
+	// Deadline of the attempt of the current thread, read by the http clients
+	private final AttemptDeadline attemptDeadline;
+	// Lets the read of a hedged read that answered first abort the other one
+	private final AttemptAbort attemptAbort;
+	// Documents added via addToBulkBuffer, one buffer per calling thread
+	private final ThreadLocal<List<Object>> bulkBuffer = new ThreadLocal<List<Object>>(){
+		@Override
+		protected List<Object> initialValue(){
+			return new ArrayList<Object>();
+		}
+	};
+	
+	/*
+	 * An operation that is executed on the connector of a single node.
+	 */
+	private interface NodeOperation<T> {
+		T executeOn(CouchDbConnector connector);
+	}
 	
 	public LoadBalancedConnector(List<URL> urlsOfNodesInCluster, String databaseName){
+		this(urlsOfNodesInCluster, databaseName, new ConnectorOptions());
+	}
+	
+	public LoadBalancedConnector(List<URL> urlsOfNodesInCluster, String databaseName,
+			ConnectorOptions options){
 		if(urlsOfNodesInCluster == null)
 			throw new IllegalArgumentException("urlsOfNodesInClusterIsNull");
 		if(urlsOfNodesInCluster.isEmpty())
 			throw new IllegalArgumentException("At least one node required");
-		this.connectors = this.createConnectors(urlsOfNodesInCluster, databaseName);
-		this.nextConnector = 0;
+		if(options == null)
+			throw new IllegalArgumentException("options is null");
+		this.options = options;
+		this.httpClients = new ArrayList<HttpClient>();
+		this.traffic = new TrafficCounter();
+		this.nodeHealth = new ArrayList<NodeHealth>();
+		for(URL url: urlsOfNodesInCluster){
+			this.nodeHealth.add(new NodeHealth(url.toString(), options.getBreakerFailureThreshold()));
+		}
+		// Before the connectors, the pools record their lease waits in it
+		this.metrics = new ConnectorMetrics(this.nodeHealth);
+		this.attemptDeadline = new AttemptDeadline();
+		this.attemptAbort = new AttemptAbort();
+		try{
+			this.shardConnectors = this.createConnectors(urlsOfNodesInCluster, databaseName);
+		} catch(RuntimeException exc){
+			// E.g. a node is down, the pools of the nodes before it are released
+			for(HttpClient httpClient: this.httpClients){
+				httpClient.shutdown();
+			}
+			throw exc;
+		}
+		this.connectors = this.shardConnectors.get(0);
+		if(options.isHedgeReads())
+			// A hedge needs a connection, so the pools bound the useful number of threads
+			this.hedger = new ReadHedger(urlsOfNodesInCluster.size(), options.getHedgeDelayMicros(),
+					options.getHedgeMaxRate(), options.getMaxConnectionsPerNode());
+		else
+			this.hedger = null;
+		this.nextConnector = new AtomicInteger(0);
+		this.defaultNodeOrder = new int[this.connectors.size()];
+		for(int i=0; i<this.defaultNodeOrder.length; i++){
+			this.defaultNodeOrder[i] = i;
+		}
+		if(options.getRoutingMode() == ConnectorOptions.RoutingMode.CONSISTENT_HASH)
+			this.ring = this.createRing(urlsOfNodesInCluster);
+		else
+			this.ring = null;
+		if(options.getBreakerFailureThreshold() > 0)
+			this.prober = this.startProber();
+		else
+			this.prober = null;
+		if(options.getMetricsLogFile() != null){
+			try{
+				this.metrics.startIntervalLog(options.getMetricsLogFile(), options.getMetricsIntervalMs());
+			} catch(IOException exc){
+				this.shutdown();
+				throw new DbAccessException(exc);
+			}
+		}
 	}
 	
-	private List<CouchDbConnector> createConnectors(List<URL> urlsForConnectors, String databaseName){
-		List<CouchDbConnector> result = new ArrayList<CouchDbConnector>();
-		for(URL url : urlsForConnectors){
-			HttpClient httpClient = new StdHttpClient.Builder().url(url).build();
+	/*
+	 * Name of the database that holds the given shard.
+	 */
+	public static String getShardDatabaseName(String databaseName, int shard, int shards){
+		return shards == 1 ? databaseName : databaseName + "_" + shard;
+	}
+	
+	// The connectors of all shards of a node share the http client of the node
+	private List<List<CouchDbConnector>> createConnectors(List<URL> urlsForConnectors, String databaseName){
+		int shards = this.options.getShards();
+		List<List<CouchDbConnector>> result = new ArrayList<List<CouchDbConnector>>();
+		for(int shard=0; shard<shards; shard++){
+			result.add(new ArrayList<CouchDbConnector>());
+		}
+		for(int node=0; node<urlsForConnectors.size(); node++){
+			HttpClient httpClient = new TrafficHttpClientBuilder(this.traffic,
+					this.options.isCompression(), this.options.getCompressionMinBytes())
+				.keepAlive(this.options.isKeepAlive())
+				.tcpNoDelay(this.options.isTcpNoDelay())
+				.staleConnectionCheck(this.options.isStaleConnectionCheck())
+				.leaseMetrics(this.metrics, node)
+				.attemptDeadline(this.attemptDeadline)
+				.attemptAbort(this.attemptAbort)
+				.url(urlsForConnectors.get(node))
+				.maxConnections(this.options.getMaxConnectionsPerNode())
+				.connectionTimeout(this.options.getConnectTimeoutMs())
+				.socketTimeout(this.options.getSocketTimeoutMs())
+				.build();
+			this.httpClients.add(httpClient);
 			CouchDbInstance dbInstance = new StdCouchDbInstance(httpClient);
-			// 2nd paramter true => Create database if not exists
-			CouchDbConnector dbConnector = dbInstance.createConnector(databaseName, true);
-			result.add(dbConnector);
+			String shardParameters = this.getShardParameters(httpClient);
+			for(int shard=0; shard<shards; shard++){
+				String shardDatabaseName = getShardDatabaseName(databaseName, shard, shards);
+				createDatabase(httpClient, dbInstance, shardDatabaseName, shardParameters);
+				// 2nd paramter false => the database was created above
+				CouchDbConnector dbConnector = dbInstance.createConnector(shardDatabaseName, false);
+				if(this.options.isInstallDesignDocument())
+					DesignDocument.install(dbConnector);
+				result.get(shard).add(dbConnector);
+			}
 		}
 		return result;
 	}
 	
-	private void updateNextConnector(){
-		this.nextConnector = (this.nextConnector+1) % this.connectors.size();
+	/*
+	 * The q and n parameters of a database creation, empty when none are
+	 * configured or the node does not support them (CouchDB before 2.0).
+	 */
+	private String getShardParameters(HttpClient httpClient){
+		int q = this.options.getShardQ();
+		int n = this.options.getShardN();
+		if(q == 0 && n == 0)
+			return "";
+		HttpResponse response = httpClient.get("/");
+		String version;
+		try{
+			Object versionField = HttpResponses.readJsonObject(response).get("version");
+			version = versionField == null ? "" : versionField.toString();
+		} finally{
+			response.releaseConnection();
+		}
+		int majorVersionEnd = version.indexOf('.');
+		try{
+			if(majorVersionEnd <= 0 || Integer.parseInt(version.substring(0, majorVersionEnd)) < 2)
+				return "";
+		} catch(NumberFormatException exc){
+			return "";
+		}
+		StringBuilder result = new StringBuilder();
+		if(q > 0)
+			result.append("q=").append(q);
+		if(n > 0)
+			result.append(result.length() > 0 ? "&" : "").append("n=").append(n);
+		return "?" + result;
+	}
+	
+	// A database created concurrently by another client (412) is fine
+	private static void createDatabase(HttpClient httpClient, CouchDbInstance dbInstance,
+			String databaseName, String shardParameters){
+		if(dbInstance.checkIfDbExists(new DbPath(databaseName)))
+			return;
+		HttpResponse response = httpClient.put("/" + databaseName + shardParameters);
+		try{
+			if(response.getCode() != 412)
+				HttpResponses.checkSuccessful(response);
+		} finally{
+			response.releaseConnection();
+		}
 	}
 	
-	private CouchDbConnector getConnector(){
-		CouchDbConnector result = this.connectors.get(this.nextConnector);
-		this.updateNextConnector();
+	private ConsistentHashRing createRing(List<URL> urlsOfNodesInCluster){
+		List<String> nodeNames = new ArrayList<String>();
+		for(URL url: urlsOfNodesInCluster){
+			nodeNames.add(url.toString());
+		}
+		return new ConsistentHashRing(nodeNames, this.options.getVirtualNodesPerNode());
+	}
+	
+	private ScheduledExecutorService startProber(){
+		ScheduledExecutorService result = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "couchdb-node-prober");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = this.options.getProbeIntervalMs();
+		result.scheduleWithFixedDelay(new Runnable(){
+			@Override
+			public void run(){
+				probeOpenNodes();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
 		return result;
 	}
-
-	private CouchDbConnector getConnectorForMutationOperations(){
-		return this.connectors.get(0);
+	
+	/*
+	 * Sends a cheap request (database info) to every node with an open
+	 * circuit breaker. A node that answers is put back into rotation.
+	 */
+	private void probeOpenNodes(){
+		for(int node=0; node<this.connectors.size(); node++){
+			NodeHealth health = this.nodeHealth.get(node);
+			if(!health.startProbe())
+				continue;
+			boolean succeeded;
+			try{
+				this.connectors.get(node).getDbInfo();
+				succeeded = true;
+			} catch(Exception exc){
+				succeeded = false;
+			}
+			health.finishProbe(succeeded);
+		}
 	}
 	
-	@Override
-	public void create(String id, Object o) {
-		boolean failed = true;
-		for(int i=0; i<this.connectors.size() && failed; i++){
+	/*
+	 * Releases the connection pools of all nodes. The connector can not be
+	 * used anymore afterwards.
+	 */
+	public void shutdown(){
+		if(this.prober != null)
+			this.prober.shutdownNow();
+		if(this.hedger != null)
+			this.hedger.shutdown();
+		this.metrics.stop();
+		for(HttpClient httpClient: this.httpClients){
+			httpClient.shutdown();
+		}
+	}
+	
+	public ConnectorMetrics getMetrics(){
+		return this.metrics;
+	}
+	
+	public TrafficCounter getTraffic(){
+		return this.traffic;
+	}
+	
+	/*
+	 * Returns the health of every node, in the order of the urls passed to
+	 * the constructor.
+	 */
+	public List<NodeHealth> getNodeHealth(){
+		return Collections.unmodifiableList(this.nodeHealth);
+	}
+	
+	/*
+	 * Executes the operation on the nodes in the given order until one of
+	 * them answers. Conflicts and missing documents are answers as well and
+	 * are passed on to the caller, like requests the node rejected (4xx),
+	 * which every node would reject. Timeouts, connection failures and
+	 * server errors are retried on the next node. With an operation timeout
+	 * every attempt gets an equal share of the time that is left.
+	 */
+	private <T> T execute(ConnectorMetrics.Operation type, int shard, int[] nodeOrder, NodeOperation<T> operation){
+		return this.execute(type, shard, nodeOrder, operation, false);
+	}
+	
+	/*
+	 * With hedgeSample, the latency of the attempt that answered is
+	 * recorded for the hedge delay of the node that answered it.
+	 */
+	private <T> T execute(ConnectorMetrics.Operation type, int shard, int[] nodeOrder,
+			NodeOperation<T> operation, boolean hedgeSample){
+		List<CouchDbConnector> connectorsOfShard = this.shardConnectors.get(shard);
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(this.options.getOperationTimeoutMs());
+		long deadline = System.nanoTime() + timeoutNanos;
+		FailureKind lastFailure = FailureKind.UNREACHABLE;
+		RuntimeException lastException = null;
+		for(int i=0; i<nodeOrder.length; i++){
+			int node = nodeOrder[i];
+			if(timeoutNanos > 0){
+				long now = System.nanoTime();
+				if(deadline - now <= 0){
+					lastFailure = FailureKind.TIMEOUT;
+					break;
+				}
+				this.attemptDeadline.set(now + (deadline - now) / (nodeOrder.length - i));
+			}
+			NodeHealth health = this.nodeHealth.get(node);
+			long startTime = health.startRequest();
+			ConnectorMetrics.Operation previousOperation = this.traffic.setCurrentOperation(type);
 			try{
-				this.getConnectorForMutationOperations().create(id, o);
-				failed = false;
+				T result = operation.executeOn(connectorsOfShard.get(node));
+				health.recordSuccess(startTime);
+				this.metrics.recordSuccess(node, type, startTime);
+				if(hedgeSample)
+					this.hedger.recordLatency(node, startTime);
+				return result;
 			} catch(UpdateConflictException exc){
+				health.recordSuccess(startTime);
+				this.metrics.recordConflict(node, type, startTime);
 				throw exc;
-			} catch(Exception exc){}
+			} catch(DocumentNotFoundException exc){
+				health.recordSuccess(startTime);
+				this.metrics.recordNotFound(node, type, startTime);
+				if(hedgeSample)
+					this.hedger.recordLatency(node, startTime);
+				throw exc;
+			} catch(RuntimeException exc){
+				if(this.attemptAbort.isAborted()){
+					// The other read of a hedged read answered first, the node is not to blame
+					health.recordSuccess(startTime);
+					throw exc;
+				}
+				FailureKind kind = FailureKind.classify(exc);
+				if(kind == null || !kind.isRetryable()){
+					// The node answered, or the failure is not one of the node
+					health.recordSuccess(startTime);
+					this.metrics.recordFailure(node, type, startTime, kind, false);
+					throw exc;
+				}
+				health.recordFailure(startTime);
+				this.metrics.recordFailure(node, type, startTime, kind, i < nodeOrder.length - 1);
+				lastFailure = kind;
+				lastException = exc;
+			} finally{
+				this.attemptDeadline.clear();
+				this.traffic.setCurrentOperation(previousOperation);
+			}
 		}
-		if(failed)
-			throw new NoNodeReacheableException();
+		this.metrics.recordNoNodeReachable(type);
+		throw new NoNodeReacheableException(lastFailure, lastException);
 	}
-
-	@Override
-	public void create(Object o) {
-		boolean failed = true;
-		for(int i=0; i<this.connectors.size() && failed; i++){
-			try{
-				this.getConnectorForMutationOperations().create(o);
-				failed = false;
-			} catch(UpdateConflictException exc){
+	
+	/*
+	 * Executes a read of a document, hedged when hedging is enabled and
+	 * there is a second node to hedge on. Only for reads that consume the
+	 * whole response: the answer of a hedge that lost is dropped.
+	 */
+	private <T> T executeRead(int shard, int[] nodeOrder, NodeOperation<T> operation){
+		if(this.hedger == null || nodeOrder.length < 2)
+			return this.execute(ConnectorMetrics.Operation.READ, shard, nodeOrder, operation);
+		return this.executeHedged(shard, nodeOrder, operation);
+	}
+	
+	/*
+	 * Runs the read on the nodes in the given order on the calling thread.
+	 * When it has not finished within the hedge delay of the first node,
+	 * the hedger starts it on the nodes from the second one on as well.
+	 * The read that answers first aborts the other one, the caller returns
+	 * the first answer. An answer of the first read is final, also when it
+	 * is not found or an error of the request: the caller only waits for
+	 * the hedge when its own read was aborted or reached no node.
+	 */
+	private <T> T executeHedged(final int shard, int[] nodeOrder, final NodeOperation<T> operation){
+		this.hedger.recordRead();
+		final int[] hedgeOrder = new int[nodeOrder.length];
+		System.arraycopy(nodeOrder, 1, hedgeOrder, 0, nodeOrder.length - 1);
+		hedgeOrder[nodeOrder.length - 1] = nodeOrder[0];
+		final ReadHedger.Race<T> race = new ReadHedger.Race<T>(this.attemptAbort.start());
+		ScheduledFuture<?> hedge = this.hedger.schedule(new Runnable(){
+			@Override
+			public void run(){
+				executeHedge(shard, hedgeOrder, operation, race);
+			}
+		}, this.hedger.getDelayNanos(nodeOrder[0]));
+		try{
+			T result = this.execute(ConnectorMetrics.Operation.READ, shard, nodeOrder, operation, true);
+			race.firstAnswered();
+			return result;
+		} catch(RuntimeException exc){
+			// Aborted because the hedge answered, or no node answered while the hedge may still
+			if(!this.attemptAbort.isAborted() && !(exc instanceof NoNodeReacheableException)){
+				race.firstAnswered();
 				throw exc;
-			} catch(Exception exc){}
+			}
+			if(!race.firstFailed())
+				throw exc;
+			T result = race.awaitHedge();
+			this.hedger.recordHedgeWon();
+			return result;
+		} finally{
+			hedge.cancel(false);
+			this.attemptAbort.clear();
+		}
+	}
+	
+	// Runs on a thread of the hedger
+	private <T> void executeHedge(int shard, int[] hedgeOrder, NodeOperation<T> operation, ReadHedger.Race<T> race){
+		if(!race.startHedge(this.attemptAbort.start())){
+			this.attemptAbort.clear();
+			return;
+		}
+		try{
+			race.hedgeAnswered(this.execute(ConnectorMetrics.Operation.READ, shard, hedgeOrder, operation, true));
+		} catch(RuntimeException exc){
+			race.hedgeFailed(exc);
+		} finally{
+			this.attemptAbort.clear();
+		}
+	}
+	
+	public ReadHedger getReadHedger(){
+		return this.hedger;
+	}
+	
+	public int getShardCount(){
+		return this.shardConnectors.size();
+	}
+	
+	/*
+	 * Returns the shard of the document. Documents without an id (the
+	 * database generates it) go to shard 0.
+	 */
+	public int getShard(String id){
+		if(id == null || this.shardConnectors.size() == 1)
+			return 0;
+		return (int) ((ConsistentHashRing.hash(id) >>> 1) % this.shardConnectors.size());
+	}
+	
+	// For the queries that are not about a single document
+	private int getOnlyShard(){
+		if(this.shardConnectors.size() > 1)
+			throw new IllegalStateException("The database is sharded, the query needs a shard");
+		return 0;
+	}
+	
+	private int nextRoundRobinIndex(){
+		// Mask the sign bit so the index stays valid when the counter overflows
+		return (this.nextConnector.getAndIncrement() & Integer.MAX_VALUE) % this.connectors.size();
+	}
+	
+	private boolean isRoutedByKey(String id){
+		return this.ring != null && id != null;
+	}
+	
+	/*
+	 * Moves the nodes with an open circuit breaker to the end of the given
+	 * order. They are only tried when all other nodes failed.
+	 */
+	private int[] skipUnavailableNodes(int[] nodeOrder){
+		boolean allAvailable = true;
+		for(int node: nodeOrder){
+			allAvailable &= this.nodeHealth.get(node).isAvailable();
+		}
+		if(allAvailable)
+			return nodeOrder;
+		int[] result = new int[nodeOrder.length];
+		int index = 0;
+		for(int node: nodeOrder){
+			if(this.nodeHealth.get(node).isAvailable())
+				result[index++] = node;
+		}
+		for(int node: nodeOrder){
+			if(!this.nodeHealth.get(node).isAvailable())
+				result[index++] = node;
+		}
+		return result;
+	}
+	
+	/*
+	 * Returns the nodes to try for a mutation of the given document, the
+	 * primary node first.
+	 */
+	private int[] getNodeOrderForMutation(String id){
+		if(this.isRoutedByKey(id))
+			return this.skipUnavailableNodes(this.ring.getNodeOrder(id));
+		return this.skipUnavailableNodes(this.defaultNodeOrder);
+	}
+	
+	/*
+	 * Returns the nodes to try for a read of the given document. Reads are
+	 * spread according to the selection strategy unless they are routed by
+	 * key as well.
+	 */
+	private int[] getNodeOrderForRead(String id){
+		if(this.isRoutedByKey(id) && this.options.isRouteReadsByKey())
+			return this.skipUnavailableNodes(this.ring.getNodeOrder(id));
+		return this.getNodeOrderForRead();
+	}
+	
+	// Package-private for the benchmarks in src/jmh
+	int[] getNodeOrderForRead(){
+		int start = this.nextRoundRobinIndex();
+		int[] result = new int[this.connectors.size()];
+		for(int i=0; i<result.length; i++){
+			result[i] = (start + i) % result.length;
 		}
-		if(failed)
-			throw new NoNodeReacheableException();
+		result = this.skipUnavailableNodes(result);
+		int selected = this.selectNode(result);
+		if(selected != 0){
+			int selectedNode = result[selected];
+			System.arraycopy(result, 0, result, 1, selected);
+			result[0] = selectedNode;
+		}
+		return result;
+	}
+	
+	/*
+	 * Returns the position in the candidate list of the node that should
+	 * handle the next read. Only available nodes are considered.
+	 */
+	private int selectNode(int[] candidates){
+		int available = 0;
+		while(available < candidates.length && this.nodeHealth.get(candidates[available]).isAvailable()){
+			available++;
+		}
+		if(available <= 1)
+			return 0;
+		switch(this.options.getSelectionStrategy()){
+		case LEAST_LATENCY:
+			int best = 0;
+			double bestScore = Double.MAX_VALUE;
+			for(int i=0; i<available; i++){
+				NodeHealth health = this.nodeHealth.get(candidates[i]);
+				double score = health.getEwmaLatencyMs() * (health.getOutstanding() + 1);
+				if(score < bestScore){
+					bestScore = score;
+					best = i;
+				}
+			}
+			return best;
+		case POWER_OF_TWO_CHOICES:
+			Random random = this.random.get();
+			int first = random.nextInt(available);
+			int second = random.nextInt(available - 1);
+			if(second >= first)
+				second++;
+			NodeHealth firstHealth = this.nodeHealth.get(candidates[first]);
+			NodeHealth secondHealth = this.nodeHealth.get(candidates[second]);
+			if(secondHealth.getOutstanding() < firstHealth.getOutstanding())
+				return second;
+			if(secondHealth.getOutstanding() == firstHealth.getOutstanding()
+					&& secondHealth.getEwmaLatencyMs() < firstHealth.getEwmaLatencyMs())
+				return second;
+			return first;
+		default:
+			return 0;
+		}
+	}
+	
+	private static String getDocumentId(Object o){
+		if(!(o instanceof Map))
+			return null;
+		Object id = ((Map<?, ?>) o).get("_id");
+		return id == null ? null : id.toString();
+	}
+	
+	@Override
+	public void create(final String id, final Object o) {
+		this.execute(ConnectorMetrics.Operation.CREATE, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<Void>(){
+			@Override
+			public Void executeOn(CouchDbConnector connector){
+				connector.create(id, o);
+				return null;
+			}
+		});
 	}
 
 	@Override
-	public void update(Object o) {
-		boolean failed = true;
-		for(int i=0; i<this.connectors.size() && failed; i++){
-			try{
-				this.getConnectorForMutationOperations().update(o);
-				failed = false;
-			} catch(UpdateConflictException exc){
-				throw exc;
-			} catch(Exception exc){}
-		}
-		if(failed)
-			throw new NoNodeReacheableException();
+	public void create(final Object o) {
+		String id = getDocumentId(o);
+		this.execute(ConnectorMetrics.Operation.CREATE, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<Void>(){
+			@Override
+			public Void executeOn(CouchDbConnector connector){
+				connector.create(o);
+				return null;
+			}
+		});
 	}
 
 	@Override
-	public String delete(Object o) {
-		for(int i=0; i<this.connectors.size(); i++){
-			try{
-				return this.getConnectorForMutationOperations().delete(o);
-			} catch(UpdateConflictException exc){
-				throw exc;
-			} catch(Exception exc){}
-		}
-		throw new NoNodeReacheableException();
+	public void update(final Object o) {
+		String id = getDocumentId(o);
+		this.execute(ConnectorMetrics.Operation.UPDATE, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<Void>(){
+			@Override
+			public Void executeOn(CouchDbConnector connector){
+				connector.update(o);
+				return null;
+			}
+		});
 	}
 
 	@Override
-	public String delete(String id, String revision) {
-		for(int i=0; i<this.connectors.size(); i++){
-			try{
-				return this.getConnectorForMutationOperations().delete(id, revision);
-			} catch(UpdateConflictException exc){
-				throw exc;
-			} catch(Exception exc){}
-		}
-		throw new NoNodeReacheableException();
+	public String delete(final Object o) {
+		String id = getDocumentId(o);
+		return this.execute(ConnectorMetrics.Operation.DELETE, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				return connector.delete(o);
+			}
+		});
+	}
+
+	@Override
+	public String delete(final String id, final String revision) {
+		return this.execute(ConnectorMetrics.Operation.DELETE, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				return connector.delete(id, revision);
+			}
+		});
+	}
+
+	/*
+	 * Writes the serialized document with a single PUT and returns the new
+	 * revision. The document must contain its _rev when it already exists.
+	 */
+	public String put(String id, DocumentWriter document) {
+		return this.put(id, document.getBuffer(), document.getLength());
+	}
+
+	/*
+	 * Like put(String, DocumentWriter), for the first length bytes of a
+	 * document that was serialized earlier.
+	 */
+	public String put(final String id, final byte[] document, final int length) {
+		return this.execute(ConnectorMetrics.Operation.PUT, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				String path = URI.of(connector.path()).append(id).toString();
+				HttpResponse response = connector.getConnection().put(path,
+						new ByteArrayInputStream(document, 0, length), DocumentWriter.CONTENT_TYPE, length);
+				try{
+					return HttpResponses.readRevision(response);
+				} finally{
+					response.releaseConnection();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Reads a document written by DocumentWriter.writeAttachmentDocument
+	 * with one request. The attachment is asked for as multipart/related,
+	 * so it arrives as raw bytes instead of base64 inside the JSON.
+	 */
+	public PackedRecord getPackedRecord(final String id) {
+		return this.executeRead(this.getShard(id), this.getNodeOrderForRead(id), new NodeOperation<PackedRecord>(){
+			@Override
+			public PackedRecord executeOn(CouchDbConnector connector){
+				String path = URI.of(connector.path()).append(id).param("attachments", "true").toString();
+				HttpResponse response = connector.getConnection().get(path, MULTIPART_HEADERS);
+				try{
+					HttpResponses.checkSuccessful(response);
+					return PackedRecord.read(response.getContentType(), response.getContentLength(),
+							response.getContent());
+				} catch(IOException exc){
+					throw new DbAccessException(exc);
+				} catch(ParseException exc){
+					throw new DbAccessException(exc);
+				} finally{
+					response.releaseConnection();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Calls a show function of the given design document for a document
+	 * and parses its output as a JSON object. Throws a
+	 * DocumentNotFoundException when the show function answers with 404.
+	 */
+	public JSONObject show(final String designDocId, final String showFunction,
+			final String id, final Map<String, String> parameters) {
+		return this.executeRead(this.getShard(id), this.getNodeOrderForRead(id), new NodeOperation<JSONObject>(){
+			@Override
+			public JSONObject executeOn(CouchDbConnector connector){
+				URI uri = URI.of(connector.path()).append(designDocId)
+					.append("_show").append(showFunction).append(id);
+				uri.params(parameters);
+				HttpResponse response = connector.getConnection().get(uri.toString());
+				try{
+					return HttpResponses.readJsonObject(response);
+				} finally{
+					response.releaseConnection();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Posts a Mango query to _find (CouchDB 2.0 and later) and returns the
+	 * raw response. The caller must close the stream.
+	 */
+	public InputStream find(final String query) {
+		return this.execute(ConnectorMetrics.Operation.QUERY, this.getOnlyShard(), this.getNodeOrderForRead(), new NodeOperation<InputStream>(){
+			@Override
+			public InputStream executeOn(CouchDbConnector connector){
+				String path = URI.of(connector.path()).append("_find").toString();
+				HttpResponse response = connector.getConnection().post(path, query);
+				if(!response.isSuccessful()){
+					response.releaseConnection();
+					throw HttpResponses.createException(response);
+				}
+				return response.getContent();
+			}
+		});
 	}
 
 	@Override
@@ -184,27 +844,23 @@ public class LoadBalancedConnector implements CouchDbConnector{
 	}
 
 	@Override
-	public <T> T get(Class<T> c, String id) {
-		for(int i=0; i<this.connectors.size(); i++){
-			try{
-				return this.getConnector().get(c, id);
-			} catch(DocumentNotFoundException exc){
-				throw exc;
-			} catch(Exception exc){}
-		}
-		throw new NoNodeReacheableException();
+	public <T> T get(final Class<T> c, final String id) {
+		return this.executeRead(this.getShard(id), this.getNodeOrderForRead(id), new NodeOperation<T>(){
+			@Override
+			public T executeOn(CouchDbConnector connector){
+				return connector.get(c, id);
+			}
+		});
 	}
 
 	@Override
-	public <T> T get(Class<T> c, String id, Options options) {
-		for(int i=0; i<this.connectors.size(); i++){
-			try{
-				return this.getConnector().get(c, id, options);
-			} catch(DocumentNotFoundException exc){
-				throw exc;
-			} catch(Exception exc){}
-		}
-		throw new NoNodeReacheableException();
+	public <T> T get(final Class<T> c, final String id, final Options options) {
+		return this.executeRead(this.getShard(id), this.getNodeOrderForRead(id), new NodeOperation<T>(){
+			@Override
+			public T executeOn(CouchDbConnector connector){
+				return connector.get(c, id, options);
+			}
+		});
 	}
 
 	@Override
@@ -255,31 +911,154 @@ public class LoadBalancedConnector implements CouchDbConnector{
 		throw new UnsupportedOperationException("not implemented");
 	}
 
+	/*
+	 * Looks the revision up with a HEAD request, so the document itself is
+	 * not transferred.
+	 */
 	// @Override
-	public String getCurrentRevision(String id) {
-		throw new UnsupportedOperationException("not implemented");
+	public String getCurrentRevision(final String id) {
+		return this.execute(ConnectorMetrics.Operation.REVISION, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				String path = URI.of(connector.path()).append(id).toString();
+				HttpResponse response = connector.getConnection().head(path);
+				try{
+					return HttpResponses.readETagRevision(response);
+				} finally{
+					response.releaseConnection();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Looks the revisions of many documents up with a POST to _all_docs,
+	 * one request per shard and primary node (in CONSISTENT_HASH mode).
+	 * Documents that do not exist (or are deleted) are missing from the
+	 * result.
+	 */
+	public Map<String, String> getCurrentRevisions(Collection<String> ids) {
+		Map<String, String> result = new HashMap<String, String>();
+		if(this.ring == null && this.getShardCount() == 1){
+			result.putAll(this.getCurrentRevisions(ids, 0, this.defaultNodeOrder));
+			return result;
+		}
+		Map<Integer, List<String>> idsPerGroup = new HashMap<Integer, List<String>>();
+		Map<Integer, int[]> nodeOrders = new HashMap<Integer, int[]>();
+		for(String id: ids){
+			int[] nodeOrder = this.getNodeOrderForMutation(id);
+			int group = this.getBulkGroup(id, nodeOrder);
+			List<String> idsForGroup = idsPerGroup.get(group);
+			if(idsForGroup == null){
+				idsForGroup = new ArrayList<String>();
+				idsPerGroup.put(group, idsForGroup);
+				nodeOrders.put(group, nodeOrder);
+			}
+			idsForGroup.add(id);
+		}
+		for(Map.Entry<Integer, List<String>> entry: idsPerGroup.entrySet()){
+			int[] nodeOrder = nodeOrders.get(entry.getKey());
+			int shard = entry.getKey() / this.getNodeCount();
+			result.putAll(this.getCurrentRevisions(entry.getValue(), shard, nodeOrder));
+		}
+		return result;
+	}
+	
+	/*
+	 * The documents of a bulk request share their shard and, in
+	 * CONSISTENT_HASH mode, their primary node.
+	 */
+	private int getBulkGroup(String id, int[] nodeOrder){
+		int primaryNode = this.ring == null ? 0 : nodeOrder[0];
+		return this.getShard(id) * this.getNodeCount() + primaryNode;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, String> getCurrentRevisions(final Collection<String> ids, int shard, int[] nodeOrder) {
+		final JSONObject query = new JSONObject();
+		JSONArray keys = new JSONArray();
+		keys.addAll(ids);
+		query.put("keys", keys);
+		return this.execute(ConnectorMetrics.Operation.REVISION, shard, nodeOrder, new NodeOperation<Map<String, String>>(){
+			@Override
+			public Map<String, String> executeOn(CouchDbConnector connector){
+				String path = URI.of(connector.path()).append("_all_docs").toString();
+				HttpResponse response = connector.getConnection().post(path, query.toJSONString());
+				try{
+					return readRevisions(HttpResponses.readJsonObject(response));
+				} finally{
+					response.releaseConnection();
+				}
+			}
+		});
+	}
+
+	// Rows: {"id":..,"key":..,"value":{"rev":..}} or {"key":..,"error":"not_found"}
+	private static Map<String, String> readRevisions(JSONObject allDocs){
+		Map<String, String> result = new HashMap<String, String>();
+		Object rows = allDocs.get("rows");
+		if(!(rows instanceof JSONArray))
+			return result;
+		for(Object row: (JSONArray) rows){
+			if(!(row instanceof JSONObject))
+				continue;
+			Object id = ((JSONObject) row).get("id");
+			Object value = ((JSONObject) row).get("value");
+			if(id == null || !(value instanceof JSONObject))
+				continue;
+			JSONObject revisionInfo = (JSONObject) value;
+			if(Boolean.TRUE.equals(revisionInfo.get("deleted")) || revisionInfo.get("rev") == null)
+				continue;
+			result.put(id.toString(), revisionInfo.get("rev").toString());
+		}
+		return result;
 	}
 
+	/*
+	 * The caller must close the stream. Not hedged, the stream of the read
+	 * that lost could not be closed.
+	 */
 	@Override
-	public AttachmentInputStream getAttachment(String id, String attachmentId) {
-		throw new UnsupportedOperationException("not implemented");
+	public AttachmentInputStream getAttachment(final String id, final String attachmentId) {
+		return this.execute(ConnectorMetrics.Operation.READ, this.getShard(id), this.getNodeOrderForRead(id), new NodeOperation<AttachmentInputStream>(){
+			@Override
+			public AttachmentInputStream executeOn(CouchDbConnector connector){
+				return connector.getAttachment(id, attachmentId);
+			}
+		});
 	}
 
 	@Override
-	public AttachmentInputStream getAttachment(String id, String attachmentId,
-			String revision) {
-		throw new UnsupportedOperationException("not implemented");
+	public AttachmentInputStream getAttachment(final String id, final String attachmentId,
+			final String revision) {
+		return this.execute(ConnectorMetrics.Operation.READ, this.getShard(id), this.getNodeOrderForRead(id), new NodeOperation<AttachmentInputStream>(){
+			@Override
+			public AttachmentInputStream executeOn(CouchDbConnector connector){
+				return connector.getAttachment(id, attachmentId, revision);
+			}
+		});
 	}
 
 	@Override
 	public String createAttachment(String docId, AttachmentInputStream data) {
-		throw new UnsupportedOperationException("not implemented");
+		return this.createAttachment(docId, null, data);
 	}
 
+	/*
+	 * The data stream can be sent only once, so the attachment is written
+	 * to the first available node without failing over.
+	 */
 	@Override
-	public String createAttachment(String docId, String revision,
-			AttachmentInputStream data) {
-		throw new UnsupportedOperationException("not implemented");
+	public String createAttachment(final String docId, final String revision,
+			final AttachmentInputStream data) {
+		int[] nodeOrder = this.getNodeOrderForMutation(docId);
+		return this.execute(ConnectorMetrics.Operation.PUT, this.getShard(docId),
+				Arrays.copyOf(nodeOrder, Math.min(nodeOrder.length, 1)), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				return connector.createAttachment(docId, revision, data);
+			}
+		});
 	}
 
 	@Override
@@ -305,23 +1084,42 @@ public class LoadBalancedConnector implements CouchDbConnector{
 	}
 
 	@Override
-	public ViewResult queryView(ViewQuery query) {
-		for(int i=0; i<this.connectors.size(); i++){
-			try{
-				return this.getConnector().queryView(query);
-			} catch(Exception exc){}
-		}
-		throw new NoNodeReacheableException();
+	public ViewResult queryView(final ViewQuery query) {
+		return this.execute(ConnectorMetrics.Operation.QUERY, this.getOnlyShard(), this.getNodeOrderForRead(), new NodeOperation<ViewResult>(){
+			@Override
+			public ViewResult executeOn(CouchDbConnector connector){
+				return connector.queryView(query);
+			}
+		});
 	}
 
 	@Override
-	public StreamingViewResult queryForStreamingView(ViewQuery query) {
-		throw new UnsupportedOperationException("not implemented");
-	}
-
+	public StreamingViewResult queryForStreamingView(final ViewQuery query) {
+		return this.execute(ConnectorMetrics.Operation.QUERY, this.getOnlyShard(), this.getNodeOrderForRead(), new NodeOperation<StreamingViewResult>(){
+			@Override
+			public StreamingViewResult executeOn(CouchDbConnector connector){
+				return connector.queryForStreamingView(query);
+			}
+		});
+	}
+
+	/*
+	 * Returns the raw response of the view. Failover only covers sending
+	 * the request, the caller must close the stream.
+	 */
 	@Override
 	public InputStream queryForStream(ViewQuery query) {
-		throw new UnsupportedOperationException("not implemented");
+		return this.queryForStream(query, this.getOnlyShard());
+	}
+	
+	// Queries the database of the given shard
+	public InputStream queryForStream(final ViewQuery query, int shard) {
+		return this.execute(ConnectorMetrics.Operation.QUERY, shard, this.getNodeOrderForRead(), new NodeOperation<InputStream>(){
+			@Override
+			public InputStream executeOn(CouchDbConnector connector){
+				return connector.queryForStream(query);
+			}
+		});
 	}
 
 	@Override
@@ -403,17 +1201,43 @@ public class LoadBalancedConnector implements CouchDbConnector{
 
 	@Override
 	public void addToBulkBuffer(Object o) {
-		throw new UnsupportedOperationException("not implemented");
+		this.bulkBuffer.get().add(o);
 	}
 
+	/*
+	 * Writes the documents buffered by the calling thread with _bulk_docs
+	 * (see executeBulk). Only the erroneous results are returned.
+	 */
 	@Override
 	public List<DocumentOperationResult> flushBulkBuffer() {
-		throw new UnsupportedOperationException("not implemented");
+		List<Object> buffered = this.bulkBuffer.get();
+		if(buffered.isEmpty())
+			return new ArrayList<DocumentOperationResult>();
+		// Only the documents of the failed and later groups stay buffered, a failed flush can be repeated
+		List<Object> written = new ArrayList<Object>();
+		try{
+			List<DocumentOperationResult> result = this.executeBulk(new ArrayList<Object>(buffered), written);
+			buffered.clear();
+			return result;
+		} catch(RuntimeException exc){
+			Set<Object> writtenSet = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+			writtenSet.addAll(written);
+			for(Iterator<Object> it = buffered.iterator(); it.hasNext();){
+				if(writtenSet.contains(it.next()))
+					it.remove();
+			}
+			throw exc;
+		}
+	}
+	
+	// The number of documents buffered by the calling thread
+	public int getBulkBufferSize() {
+		return this.bulkBuffer.get().size();
 	}
 
 	@Override
 	public void clearBulkBuffer() {
-		throw new UnsupportedOperationException("not implemented");
+		this.bulkBuffer.get().clear();
 	}
 
 	@Override
@@ -427,9 +1251,149 @@ public class LoadBalancedConnector implements CouchDbConnector{
 		throw new UnsupportedOperationException("not implemented");
 	}
 
+	/*
+	 * The documents are split per shard and, in CONSISTENT_HASH mode, per
+	 * primary node; every group gets its own _bulk_docs request.
+	 */
 	@Override
 	public List<DocumentOperationResult> executeBulk(Collection<?> objects) {
-		throw new UnsupportedOperationException("not implemented");
+		return this.executeBulk(objects, new ArrayList<Object>());
+	}
+	
+	// Adds the documents of every group to written once its request succeeded
+	private List<DocumentOperationResult> executeBulk(Collection<?> objects, List<Object> written) {
+		if(this.ring == null && this.getShardCount() == 1){
+			List<DocumentOperationResult> result = this.executeBulk(objects, 0, this.defaultNodeOrder);
+			written.addAll(objects);
+			return result;
+		}
+		Map<Integer, List<Object>> objectsPerGroup = new HashMap<Integer, List<Object>>();
+		Map<Integer, int[]> nodeOrders = new HashMap<Integer, int[]>();
+		for(Object o: objects){
+			String id = getDocumentId(o);
+			int[] nodeOrder = this.getNodeOrderForMutation(id);
+			int group = this.getBulkGroup(id, nodeOrder);
+			List<Object> objectsForGroup = objectsPerGroup.get(group);
+			if(objectsForGroup == null){
+				objectsForGroup = new ArrayList<Object>();
+				objectsPerGroup.put(group, objectsForGroup);
+				nodeOrders.put(group, nodeOrder);
+			}
+			objectsForGroup.add(o);
+		}
+		List<DocumentOperationResult> result = new ArrayList<DocumentOperationResult>();
+		for(Map.Entry<Integer, List<Object>> entry: objectsPerGroup.entrySet()){
+			int[] nodeOrder = nodeOrders.get(entry.getKey());
+			int shard = entry.getKey() / this.getNodeCount();
+			result.addAll(this.executeBulk(entry.getValue(), shard, nodeOrder));
+			written.addAll(entry.getValue());
+		}
+		return result;
+	}
+	
+	private List<DocumentOperationResult> executeBulk(final Collection<?> objects, int shard, int[] nodeOrder) {
+		return this.execute(ConnectorMetrics.Operation.BULK, shard, nodeOrder, new NodeOperation<List<DocumentOperationResult>>(){
+			@Override
+			public List<DocumentOperationResult> executeOn(CouchDbConnector connector){
+				return connector.executeBulk(objects);
+			}
+		});
+	}
+
+	/*
+	 * Writes documents serialized by a DocumentWriter with _bulk_docs, one
+	 * request per shard and primary node (see executeBulk). Unlike executeBulk,
+	 * the result of every document is returned, in the order of the ids:
+	 * the new revision, or the error (e.g. "conflict").
+	 * 
+	 * A failed request only fails the documents of its own group: their
+	 * result is null and the failure is put at their index in failures,
+	 * the results of the groups that were written are still returned.
+	 */
+	public List<DocumentOperationResult> executeSerializedBulk(List<String> ids, List<ByteBuffer> documents,
+			RuntimeException[] failures) {
+		if(ids.size() != documents.size() || failures.length != ids.size())
+			throw new IllegalArgumentException("One id and failure slot per document required");
+		DocumentOperationResult[] result = new DocumentOperationResult[ids.size()];
+		if(this.ring == null && this.getShardCount() == 1){
+			List<Integer> all = new ArrayList<Integer>();
+			for(int i=0; i<ids.size(); i++){
+				all.add(i);
+			}
+			this.executeSerializedBulk(ids, documents, all, 0, this.defaultNodeOrder, result, failures);
+			return Arrays.asList(result);
+		}
+		Map<Integer, List<Integer>> indexesPerGroup = new HashMap<Integer, List<Integer>>();
+		Map<Integer, int[]> nodeOrders = new HashMap<Integer, int[]>();
+		for(int i=0; i<ids.size(); i++){
+			int[] nodeOrder = this.getNodeOrderForMutation(ids.get(i));
+			int group = this.getBulkGroup(ids.get(i), nodeOrder);
+			List<Integer> indexesForGroup = indexesPerGroup.get(group);
+			if(indexesForGroup == null){
+				indexesForGroup = new ArrayList<Integer>();
+				indexesPerGroup.put(group, indexesForGroup);
+				nodeOrders.put(group, nodeOrder);
+			}
+			indexesForGroup.add(i);
+		}
+		for(Map.Entry<Integer, List<Integer>> entry: indexesPerGroup.entrySet()){
+			int[] nodeOrder = nodeOrders.get(entry.getKey());
+			int shard = entry.getKey() / this.getNodeCount();
+			this.executeSerializedBulk(ids, documents, entry.getValue(), shard, nodeOrder, result, failures);
+		}
+		return Arrays.asList(result);
+	}
+	
+	// Writes the documents at the given indexes, the results (or the failure) go to the same indexes
+	private void executeSerializedBulk(List<String> ids, List<ByteBuffer> documents,
+			List<Integer> indexes, int shard, int[] nodeOrder, DocumentOperationResult[] result,
+			RuntimeException[] failures) {
+		try{
+			this.executeSerializedBulk(ids, documents, indexes, shard, nodeOrder, result);
+		} catch(RuntimeException exc){
+			for(int index: indexes){
+				result[index] = null;
+				failures[index] = exc;
+			}
+		}
+	}
+	
+	private void executeSerializedBulk(List<String> ids, List<ByteBuffer> documents,
+			List<Integer> indexes, int shard, int[] nodeOrder, DocumentOperationResult[] result) {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(BULK_DOCS_START, 0, BULK_DOCS_START.length);
+		for(int i=0; i<indexes.size(); i++){
+			if(i > 0)
+				body.write(',');
+			ByteBuffer document = documents.get(indexes.get(i));
+			body.write(document.array(), document.arrayOffset() + document.position(), document.remaining());
+		}
+		body.write(BULK_DOCS_END, 0, BULK_DOCS_END.length);
+		JSONArray rows = this.execute(ConnectorMetrics.Operation.BULK, shard, nodeOrder, new NodeOperation<JSONArray>(){
+			@Override
+			public JSONArray executeOn(CouchDbConnector connector){
+				String path = URI.of(connector.path()).append("_bulk_docs").toString();
+				HttpResponse response = connector.getConnection().post(path,
+						new ByteArrayInputStream(body.toByteArray()));
+				try{
+					return HttpResponses.readJsonArray(response);
+				} finally{
+					response.releaseConnection();
+				}
+			}
+		});
+		if(rows.size() != indexes.size())
+			throw new DbAccessException("Expected " + indexes.size() + " results from _bulk_docs, got " + rows.size());
+		for(int i=0; i<indexes.size(); i++){
+			JSONObject row = (JSONObject) rows.get(i);
+			String id = ids.get(indexes.get(i));
+			Object error = row.get("error");
+			if(error != null)
+				result[indexes.get(i)] = DocumentOperationResult.newInstance(id, error.toString(),
+						String.valueOf(row.get("reason")));
+			else
+				result[indexes.get(i)] = DocumentOperationResult.newInstance(id, String.valueOf(row.get("rev")));
+		}
 	}
 
 	@Override
@@ -439,40 +1403,122 @@ public class LoadBalancedConnector implements CouchDbConnector{
 	}
 
 	@Override
-	public List<DocumentChange> changes(ChangesCommand cmd) {
-		throw new UnsupportedOperationException("not implemented");
+	public List<DocumentChange> changes(final ChangesCommand cmd) {
+		return this.execute(ConnectorMetrics.Operation.QUERY, this.getOnlyShard(), this.getNodeOrderForRead(), new NodeOperation<List<DocumentChange>>(){
+			@Override
+			public List<DocumentChange> executeOn(CouchDbConnector connector){
+				return connector.changes(cmd);
+			}
+		});
 	}
 
 	@Override
-	public StreamingChangesResult changesAsStream(ChangesCommand cmd) {
-		throw new UnsupportedOperationException("not implemented");
+	public StreamingChangesResult changesAsStream(final ChangesCommand cmd) {
+		return this.execute(ConnectorMetrics.Operation.QUERY, this.getOnlyShard(), this.getNodeOrderForRead(), new NodeOperation<StreamingChangesResult>(){
+			@Override
+			public StreamingChangesResult executeOn(CouchDbConnector connector){
+				return connector.changesAsStream(cmd);
+			}
+		});
 	}
 
 	@Override
-	public ChangesFeed changesFeed(ChangesCommand cmd) {
-		throw new UnsupportedOperationException("not implemented");
+	public ChangesFeed changesFeed(final ChangesCommand cmd) {
+		return this.execute(ConnectorMetrics.Operation.QUERY, this.getOnlyShard(), this.getNodeOrderForRead(), new NodeOperation<ChangesFeed>(){
+			@Override
+			public ChangesFeed executeOn(CouchDbConnector connector){
+				return connector.changesFeed(cmd);
+			}
+		});
+	}
+
+	/*
+	 * Opens a continuous changes feed of the shard on the given node (in
+	 * the order of the urls passed to the constructor). The feed holds a
+	 * connection of the node until it is cancelled. Its traffic is not
+	 * counted.
+	 */
+	public ChangesFeed changesFeed(int shard, int node, ChangesCommand cmd) {
+		return this.shardConnectors.get(shard).get(node).changesFeed(cmd);
+	}
+
+	public ConnectorOptions getOptions() {
+		return this.options;
+	}
+
+	public int getNodeCount() {
+		return this.connectors.size();
 	}
 
 	@Override
-	public String callUpdateHandler(String designDocID, String function,
-			String docId) {
-		throw new UnsupportedOperationException("not implemented");
+	public String callUpdateHandler(final String designDocID, final String function,
+			final String docId) {
+		return this.execute(ConnectorMetrics.Operation.UPDATE, this.getShard(docId), this.getNodeOrderForMutation(docId), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				return connector.callUpdateHandler(designDocID, function, docId);
+			}
+		});
 	}
 
 	@Override
-	public String callUpdateHandler(String designDocID, String function,
-			String docId, Map<String, String> params) {
-		throw new UnsupportedOperationException("not implemented");
+	public String callUpdateHandler(final String designDocID, final String function,
+			final String docId, final Map<String, String> params) {
+		return this.execute(ConnectorMetrics.Operation.UPDATE, this.getShard(docId), this.getNodeOrderForMutation(docId), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				return connector.callUpdateHandler(designDocID, function, docId, params);
+			}
+		});
 	}
 
 	@Override
-	public <T> T callUpdateHandler(UpdateHandlerRequest req, Class<T> c) {
-		throw new UnsupportedOperationException("not implemented");
+	public <T> T callUpdateHandler(final UpdateHandlerRequest req, final Class<T> c) {
+		return this.execute(ConnectorMetrics.Operation.UPDATE, this.getShard(req.getDocId()), this.getNodeOrderForMutation(req.getDocId()), new NodeOperation<T>(){
+			@Override
+			public T executeOn(CouchDbConnector connector){
+				return connector.callUpdateHandler(req, c);
+			}
+		});
 	}
 
 	@Override
-	public String callUpdateHandler(UpdateHandlerRequest req) {
-		throw new UnsupportedOperationException("not implemented");
+	public String callUpdateHandler(final UpdateHandlerRequest req) {
+		return this.execute(ConnectorMetrics.Operation.UPDATE, this.getShard(req.getDocId()), this.getNodeOrderForMutation(req.getDocId()), new NodeOperation<String>(){
+			@Override
+			public String executeOn(CouchDbConnector connector){
+				return connector.callUpdateHandler(req);
+			}
+		});
+	}
+
+	/*
+	 * Sends the serialized body to an update handler of the given design
+	 * document with a single PUT. Update handlers answer 404 and 409 like
+	 * a document write, these are thrown as the usual exceptions.
+	 */
+	public void callUpdateHandler(String designDocId, String function,
+			String docId, DocumentWriter body) {
+		this.callUpdateHandler(designDocId, function, docId, body.getBuffer(), body.getLength());
+	}
+
+	public void callUpdateHandler(final String designDocId, final String function,
+			final String docId, final byte[] body, final int length) {
+		this.execute(ConnectorMetrics.Operation.UPDATE, this.getShard(docId), this.getNodeOrderForMutation(docId), new NodeOperation<Void>(){
+			@Override
+			public Void executeOn(CouchDbConnector connector){
+				String path = URI.of(connector.path()).append(designDocId)
+					.append("_update").append(function).append(docId).toString();
+				HttpResponse response = connector.getConnection().put(path,
+						new ByteArrayInputStream(body, 0, length), DocumentWriter.CONTENT_TYPE, length);
+				try{
+					HttpResponses.checkSuccessful(response);
+					return null;
+				} finally{
+					response.releaseConnection();
+				}
+			}
+		});
 	}
 
 	@Override
@@ -487,18 +1533,14 @@ public class LoadBalancedConnector implements CouchDbConnector{
 	}
 
 	@Override
-	public void update(String id, InputStream document, long length,
-			Options options) {
-		boolean failed = true;
-		for(int i=0; i<this.connectors.size() && failed; i++){
-			try{
-				this.getConnectorForMutationOperations().update(id, document, length, options); 
-				failed = false;
-			} catch(UpdateConflictException exc){
-				throw exc;
-			} catch(Exception exc){}
-		}
-		if(failed)
-			throw new NoNodeReacheableException();
+	public void update(final String id, final InputStream document, final long length,
+			final Options options) {
+		this.execute(ConnectorMetrics.Operation.UPDATE, this.getShard(id), this.getNodeOrderForMutation(id), new NodeOperation<Void>(){
+			@Override
+			public Void executeOn(CouchDbConnector connector){
+				connector.update(id, document, length, options);
+				return null;
+			}
+		});
 	}
 }
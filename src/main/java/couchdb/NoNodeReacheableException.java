@@ -1,7 +1,22 @@
 package couchdb;
 
+/*
+ * Thrown when an operation failed on every node it was attempted on, or
+ * ran out of time. The kind is that of the last failure.
+ */
 public class NoNodeReacheableException extends RuntimeException {
 
 	private static final long serialVersionUID = 1L;
 	
+	private final FailureKind kind;
+	
+	public NoNodeReacheableException(FailureKind kind, Throwable cause){
+		super(kind.toString(), cause);
+		this.kind = kind;
+	}
+	
+	public FailureKind getKind(){
+		return this.kind;
+	}
+	
 }
@@ -0,0 +1,200 @@
+package couchdb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Health of a single node as seen by a LoadBalancedConnector: the number
+ * of outstanding requests, an exponentially weighted moving average of the
+ * latency and a circuit breaker. A failed request counts in the average
+ * with a penalty, so a node that fails fast (connection refused or
+ * reset) does not look faster than the others and attract traffic.
+ * The average decays with the time since the last sample of the node: a
+ * node that was slow once and is no longer selected looks faster again
+ * after a while, so it gets a request that measures it anew.
+ *
+ * The breaker opens after failureThreshold consecutive failures. An open
+ * node gets no traffic until a probe (see LoadBalancedConnector) succeeds.
+ * While the probe runs the breaker is half-open.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class NodeHealth {
+
+	public enum BreakerState {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	// Weight of the newest sample in the moving average
+	private static final double EWMA_ALPHA = 0.2;
+	// A failure counts as a request this many times slower than the average
+	private static final double FAILURE_PENALTY = 2;
+	// Time constant of the decay of the average of a node without samples
+	private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final String name;
+	private final int failureThreshold;
+	private final AtomicInteger outstanding;
+	private final AtomicInteger consecutiveFailures;
+	private final AtomicLong requests;
+	private final AtomicLong failures;
+	private final AtomicLong trips;
+	// Double.doubleToLongBits of the average, updated without a lock
+	private final AtomicLong ewmaLatencyNanos;
+	private volatile long lastSampleNanos;
+	private volatile BreakerState state;
+
+	/*
+	 * A failureThreshold of 0 disables the circuit breaker.
+	 */
+	public NodeHealth(String name, int failureThreshold){
+		if(failureThreshold < 0)
+			throw new IllegalArgumentException("failureThreshold must not be negative");
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.outstanding = new AtomicInteger();
+		this.consecutiveFailures = new AtomicInteger();
+		this.requests = new AtomicLong();
+		this.failures = new AtomicLong();
+		this.trips = new AtomicLong();
+		this.ewmaLatencyNanos = new AtomicLong(Double.doubleToLongBits(0));
+		this.lastSampleNanos = System.nanoTime();
+		this.state = BreakerState.CLOSED;
+	}
+
+	/*
+	 * Returns the start time to pass to recordSuccess or recordFailure.
+	 */
+	public long startRequest(){
+		this.outstanding.incrementAndGet();
+		this.requests.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/*
+	 * A request that got an answer from the node, even when that answer
+	 * was a conflict or a missing document.
+	 */
+	public void recordSuccess(long startTime){
+		this.outstanding.decrementAndGet();
+		this.updateLatency(System.nanoTime() - startTime);
+		this.consecutiveFailures.set(0);
+	}
+
+	public void recordFailure(long startTime){
+		this.outstanding.decrementAndGet();
+		long latencyNanos = System.nanoTime() - startTime;
+		this.updateLatency(Math.max(latencyNanos, (long) this.getEwmaLatencyNanos()) * FAILURE_PENALTY);
+		this.failures.incrementAndGet();
+		int failuresInARow = this.consecutiveFailures.incrementAndGet();
+		if(this.failureThreshold > 0 && failuresInARow >= this.failureThreshold)
+			this.trip();
+	}
+
+	private void updateLatency(double latencyNanos){
+		long now = System.nanoTime();
+		while(true){
+			long current = this.ewmaLatencyNanos.get();
+			double average = this.decay(Double.longBitsToDouble(current), now);
+			double updated = average == 0 ? latencyNanos : average + EWMA_ALPHA * (latencyNanos - average);
+			if(this.ewmaLatencyNanos.compareAndSet(current, Double.doubleToLongBits(updated))){
+				this.lastSampleNanos = now;
+				return;
+			}
+		}
+	}
+
+	private double getEwmaLatencyNanos(){
+		return this.decay(Double.longBitsToDouble(this.ewmaLatencyNanos.get()), System.nanoTime());
+	}
+
+	// Concurrent samples may decay the average from a slightly older sample time, which is harmless
+	private double decay(double average, long now){
+		long idle = now - this.lastSampleNanos;
+		if(idle <= 0)
+			return average;
+		return average * Math.exp(-(double) idle / DECAY_NANOS);
+	}
+
+	private synchronized void trip(){
+		if(this.state != BreakerState.CLOSED)
+			return;
+		this.state = BreakerState.OPEN;
+		this.trips.incrementAndGet();
+		System.err.println("[NODE " + this.name + "] circuit breaker opened after "
+				+ this.consecutiveFailures.get() + " consecutive failures");
+	}
+
+	/*
+	 * Moves an open breaker to half-open. Returns false when the breaker
+	 * was not open, in which case no probe is needed.
+	 */
+	public synchronized boolean startProbe(){
+		if(this.state != BreakerState.OPEN)
+			return false;
+		this.state = BreakerState.HALF_OPEN;
+		return true;
+	}
+
+	public synchronized void finishProbe(boolean succeeded){
+		if(this.state != BreakerState.HALF_OPEN)
+			return;
+		if(succeeded){
+			this.state = BreakerState.CLOSED;
+			this.consecutiveFailures.set(0);
+			System.err.println("[NODE " + this.name + "] circuit breaker closed, probe succeeded");
+		}else{
+			this.state = BreakerState.OPEN;
+		}
+	}
+
+	public boolean isAvailable(){
+		return this.state == BreakerState.CLOSED;
+	}
+
+	public BreakerState getState(){
+		return this.state;
+	}
+
+	public int getOutstanding(){
+		return this.outstanding.get();
+	}
+
+	public double getEwmaLatencyMs(){
+		return this.getEwmaLatencyNanos() / 1000000.0;
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	@Override
+	public String toString(){
+		return "[NODE " + this.name + "] state=" + this.state
+				+ "; ewmaLatencyMs=" + String.format("%.3f", this.getEwmaLatencyMs())
+				+ "; outstanding=" + this.getOutstanding()
+				+ "; requests=" + this.requests.get()
+				+ "; failures=" + this.failures.get()
+				+ "; trips=" + this.trips.get();
+	}
+}
@@ -0,0 +1,271 @@
+package couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.ektorp.DbAccessException;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.yahoo.ycsb.ByteArrayByteIterator;
+import com.yahoo.ycsb.ByteIterator;
+
+/*
+ * A record written by DocumentWriter.writeAttachmentDocument, read back.
+ * The values are ByteIterators over the bytes of the attachment, guided by
+ * the field index of the document, so no String is built per value.
+ *
+ * A GET of the document with attachments=true and Accept multipart/related
+ * returns the document as the first part and the raw attachment as the
+ * second one; without the Accept header (and in _all_docs) the attachment
+ * is inlined as base64.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class PackedRecord {
+
+	private static final byte[] HEADERS_END = { '\r', '\n', '\r', '\n' };
+	private static final int INITIAL_BODY_CAPACITY = 16 * 1024;
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+		byte[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+		for(int i=0; i<alphabet.length; i++){
+			BASE64_VALUES[alphabet[i]] = (byte) i;
+		}
+	}
+
+	private final String revision;
+	private final JSONObject index;
+	private final byte[] data;
+	private final int dataOffset;
+	private final int dataLength;
+
+	private PackedRecord(String revision, JSONObject index, byte[] data, int dataOffset, int dataLength){
+		this.revision = revision;
+		this.index = index == null ? new JSONObject() : index;
+		this.data = data;
+		this.dataOffset = dataOffset;
+		this.dataLength = dataLength;
+	}
+
+	/*
+	 * Reads the response of a GET of the document with attachments=true,
+	 * multipart or JSON depending on the content type. The stream is not
+	 * closed.
+	 */
+	public static PackedRecord read(String contentType, long contentLength, InputStream content)
+			throws IOException, ParseException{
+		int capacity = contentLength > 0 && contentLength < Integer.MAX_VALUE
+				? (int) contentLength : INITIAL_BODY_CAPACITY;
+		byte[] body = new byte[capacity];
+		int length = 0;
+		while(true){
+			// Only grown when there is more than the content length promised
+			if(length == body.length){
+				int next = content.read();
+				if(next < 0)
+					break;
+				body = Arrays.copyOf(body, body.length * 2);
+				body[length++] = (byte) next;
+			}
+			int read = content.read(body, length, body.length - length);
+			if(read < 0)
+				break;
+			length += read;
+		}
+		String boundary = getBoundary(contentType);
+		if(boundary == null)
+			return fromDocument(parseObject(body, 0, length));
+		return readMultipart(body, length, ("--" + boundary).getBytes("US-ASCII"));
+	}
+
+	/*
+	 * For a document with the attachment inlined as base64.
+	 */
+	public static PackedRecord fromDocument(JSONObject document){
+		JSONObject attachment = getAttachment(document);
+		if(attachment == null)
+			return new PackedRecord(getString(document, "_rev"), getIndex(document), new byte[0], 0, 0);
+		Object encoded = attachment.get("data");
+		if(!(encoded instanceof String))
+			throw new DbAccessException("The attachment of " + document.get("_id") + " is not inlined");
+		byte[] data = decodeBase64((String) encoded);
+		return new PackedRecord(getString(document, "_rev"), getIndex(document), data, 0, data.length);
+	}
+
+	/*
+	 * For a field index and attachment that were parsed separately, like
+	 * in a streamed _all_docs response.
+	 */
+	public static PackedRecord fromIndex(JSONObject index, byte[] data){
+		return new PackedRecord(null, index, data, 0, data.length);
+	}
+
+	public String getRevision(){
+		return this.revision;
+	}
+
+	/*
+	 * Adds a ByteIterator for every requested field, or for all fields
+	 * when fields is null, to the result.
+	 */
+	public void copyFields(Set<String> fields, Map<String, ByteIterator> result){
+		for(Object entry: this.index.entrySet()){
+			@SuppressWarnings("unchecked")
+			Map.Entry<String, Object> field = (Map.Entry<String, Object>) entry;
+			if(fields != null && !fields.contains(field.getKey()))
+				continue;
+			result.put(field.getKey(), this.getValue(field.getKey(), field.getValue()));
+		}
+	}
+
+	private ByteIterator getValue(String name, Object position){
+		if(!(position instanceof JSONArray) || ((JSONArray) position).size() != 2)
+			throw new DbAccessException("Invalid index entry for " + name);
+		long offset = ((Number) ((JSONArray) position).get(0)).longValue();
+		long length = ((Number) ((JSONArray) position).get(1)).longValue();
+		if(offset < 0 || length < 0 || offset + length > this.dataLength)
+			throw new DbAccessException("Index entry of " + name + " is outside the attachment");
+		return new ByteArrayByteIterator(this.data, this.dataOffset + (int) offset, (int) length);
+	}
+
+	/*
+	 * The parts start with --boundary and a blank line ends their headers.
+	 * The attachment part is as long as the stub in the document says, so
+	 * its bytes are never searched for the boundary.
+	 */
+	private static PackedRecord readMultipart(byte[] body, int length, byte[] delimiter)
+			throws IOException, ParseException{
+		int documentStart = skipHeaders(body, length, indexOf(body, length, delimiter, 0));
+		int documentEnd = indexOf(body, length, delimiter, documentStart);
+		if(documentEnd < 0)
+			throw new IOException("Incomplete multipart response");
+		JSONObject document = parseObject(body, documentStart, documentEnd - documentStart);
+		JSONObject attachment = getAttachment(document);
+		if(attachment == null || attachment.get("data") != null)
+			return fromDocument(document);
+		Object attachmentLength = attachment.get("length");
+		if(!(attachmentLength instanceof Number))
+			throw new IOException("No length in the attachment stub");
+		int dataStart = skipHeaders(body, length, documentEnd);
+		int dataLength = ((Number) attachmentLength).intValue();
+		if(dataStart + dataLength > length)
+			throw new IOException("Incomplete attachment in the multipart response");
+		return new PackedRecord(getString(document, "_rev"), getIndex(document), body, dataStart, dataLength);
+	}
+
+	// Returns the start of the body of the part that starts at partStart
+	private static int skipHeaders(byte[] body, int length, int partStart) throws IOException{
+		if(partStart < 0)
+			throw new IOException("No multipart boundary in the response");
+		int headersEnd = indexOf(body, length, HEADERS_END, partStart);
+		if(headersEnd < 0)
+			throw new IOException("Incomplete multipart response");
+		return headersEnd + HEADERS_END.length;
+	}
+
+	private static int indexOf(byte[] data, int length, byte[] pattern, int from){
+		outer:
+		for(int i=from; i<=length-pattern.length; i++){
+			for(int j=0; j<pattern.length; j++){
+				if(data[i + j] != pattern[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	// multipart/related; boundary="..." => the boundary, null for other types
+	private static String getBoundary(String contentType){
+		if(contentType == null || !contentType.toLowerCase().startsWith("multipart/"))
+			return null;
+		int start = contentType.indexOf("boundary=");
+		if(start < 0)
+			return null;
+		String boundary = contentType.substring(start + "boundary=".length());
+		int end = boundary.indexOf(';');
+		if(end >= 0)
+			boundary = boundary.substring(0, end);
+		boundary = boundary.trim();
+		if(boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\""))
+			boundary = boundary.substring(1, boundary.length() - 1);
+		return boundary;
+	}
+
+	private static JSONObject parseObject(byte[] body, int offset, int length)
+			throws IOException, ParseException{
+		Object parsed = new JSONParser().parse(new String(body, offset, length, "UTF-8"));
+		if(!(parsed instanceof JSONObject))
+			throw new DbAccessException("Expected a JSON document");
+		return (JSONObject) parsed;
+	}
+
+	private static JSONObject getAttachment(JSONObject document){
+		Object attachments = document.get("_attachments");
+		if(!(attachments instanceof JSONObject))
+			return null;
+		Object attachment = ((JSONObject) attachments).get(DocumentWriter.ATTACHMENT_NAME);
+		return attachment instanceof JSONObject ? (JSONObject) attachment : null;
+	}
+
+	private static JSONObject getIndex(JSONObject document){
+		Object index = document.get(DocumentWriter.FIELD_INDEX);
+		return index instanceof JSONObject ? (JSONObject) index : null;
+	}
+
+	private static String getString(JSONObject document, String name){
+		Object value = document.get(name);
+		return value == null ? null : value.toString();
+	}
+
+	/*
+	 * Decodes standard base64, as CouchDB inlines attachments.
+	 */
+	public static byte[] decodeBase64(String encoded){
+		int length = encoded.length();
+		while(length > 0 && encoded.charAt(length - 1) == '=')
+			length--;
+		byte[] result = new byte[length * 3 / 4];
+		int bits = 0;
+		int bitCount = 0;
+		int position = 0;
+		for(int i=0; i<length; i++){
+			char c = encoded.charAt(i);
+			int value = c < 128 ? BASE64_VALUES[c] : -1;
+			if(value < 0)
+				throw new DbAccessException("Invalid base64 character in an attachment");
+			bits = (bits << 6) | value;
+			bitCount += 6;
+			if(bitCount >= 8){
+				bitCount -= 8;
+				result[position++] = (byte) (bits >> bitCount);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,176 @@
+package couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.ViewQuery;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/*
+ * Combines the document reads of all client threads into multi-key
+ * fetches (see RequestBatcher): a batch of reads is fetched with one POST
+ * to _all_docs?include_docs=true with the ids as keys, and every caller
+ * gets the row of its document.
+ *
+ * A batch of a single read is sent as a plain GET. Reads of the same id
+ * in one batch share the row.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ReadCoalescer extends RequestBatcher<ReadCoalescer.PendingRead> {
+
+	private final LoadBalancedConnector connector;
+
+	public ReadCoalescer(LoadBalancedConnector connector, long windowMicros, int maxBatchSize, int fetchThreads){
+		super("couchdb-read-fetch", windowMicros, maxBatchSize, fetchThreads);
+		if(connector == null)
+			throw new IllegalArgumentException("connector is null");
+		this.connector = connector;
+		this.start();
+	}
+
+	/*
+	 * Reads the document as part of the next batch. Returns null when the
+	 * document does not exist (or is deleted).
+	 */
+	public StringToStringMap get(String id){
+		PendingRead read = new PendingRead(id);
+		this.submit(read);
+		return read.result;
+	}
+
+	@Override
+	protected void execute(List<PendingRead> batch){
+		if(batch.size() == 1){
+			PendingRead read = batch.get(0);
+			read.complete(this.fetchOne(read.id));
+			return;
+		}
+		Map<String, List<PendingRead>> readsPerId = new HashMap<String, List<PendingRead>>();
+		for(PendingRead read: batch){
+			List<PendingRead> readsOfId = readsPerId.get(read.id);
+			if(readsOfId == null){
+				readsOfId = new ArrayList<PendingRead>();
+				readsPerId.put(read.id, readsOfId);
+			}
+			readsOfId.add(read);
+		}
+		Map<String, JSONObject> documents = this.fetchAll(readsPerId.keySet());
+		for(Map.Entry<String, List<PendingRead>> entry: readsPerId.entrySet()){
+			JSONObject document = documents.get(entry.getKey());
+			for(PendingRead read: entry.getValue()){
+				// Every caller gets its own map, they may modify it
+				read.complete(document == null ? null : StringToStringMap.fromJsonObject(document));
+			}
+		}
+	}
+
+	private StringToStringMap fetchOne(String id){
+		try{
+			return this.connector.get(StringToStringMap.class, id);
+		} catch(DocumentNotFoundException exc){
+			return null;
+		}
+	}
+
+	// One _all_docs request per shard
+	private Map<String, JSONObject> fetchAll(Collection<String> ids){
+		if(this.connector.getShardCount() == 1)
+			return this.fetchAll(new ArrayList<String>(ids), 0);
+		Map<Integer, List<String>> idsPerShard = new HashMap<Integer, List<String>>();
+		for(String id: ids){
+			int shard = this.connector.getShard(id);
+			List<String> idsOfShard = idsPerShard.get(shard);
+			if(idsOfShard == null){
+				idsOfShard = new ArrayList<String>();
+				idsPerShard.put(shard, idsOfShard);
+			}
+			idsOfShard.add(id);
+		}
+		Map<String, JSONObject> result = new HashMap<String, JSONObject>();
+		for(Map.Entry<Integer, List<String>> entry: idsPerShard.entrySet()){
+			result.putAll(this.fetchAll(entry.getValue(), entry.getKey()));
+		}
+		return result;
+	}
+
+	/*
+	 * Rows of missing ids carry an error, rows of deleted documents have
+	 * no doc; both are left out of the result.
+	 */
+	private Map<String, JSONObject> fetchAll(List<String> ids, int shard){
+		ViewQuery query = new ViewQuery()
+			.viewName("_all_docs")
+			.includeDocs(true)
+			.keys(ids);
+		InputStream stream = this.connector.queryForStream(query, shard);
+		try{
+			JSONObject response = (JSONObject) new JSONParser().parse(new InputStreamReader(stream, "UTF-8"));
+			Map<String, JSONObject> result = new HashMap<String, JSONObject>();
+			for(Object row: (JSONArray) response.get("rows")){
+				Object doc = ((JSONObject) row).get("doc");
+				if(doc instanceof JSONObject)
+					result.put(String.valueOf(((JSONObject) row).get("key")), (JSONObject) doc);
+			}
+			return result;
+		} catch(IOException exc){
+			throw new DbAccessException(exc);
+		} catch(ParseException exc){
+			throw new DbAccessException(exc);
+		} finally{
+			try{
+				stream.close();
+			} catch(IOException exc){
+				// The rows are read already
+			}
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "[READ COALESCER] " + super.toString();
+	}
+
+	static class PendingRead extends RequestBatcher.PendingRequest {
+
+		private final String id;
+		private StringToStringMap result;
+
+		PendingRead(String id){
+			this.id = id;
+		}
+
+		void complete(StringToStringMap result){
+			this.result = result;
+			this.complete();
+		}
+	}
+}
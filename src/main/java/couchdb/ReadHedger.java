@@ -0,0 +1,323 @@
+package couchdb;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.ektorp.DbAccessException;
+
+/*
+ * State of the hedged reads of a LoadBalancedConnector. A read that has
+ * not been answered by its node within the hedge delay is sent to a
+ * second node as well, and the first answer is used. The delay is either
+ * fixed or the 95th percentile of the recent read latencies of the node,
+ * so only reads that are slow for that node are hedged.
+ *
+ * The extra load is bounded by maxRate with a token bucket: every read
+ * adds maxRate tokens, a hedge takes one, and the bucket holds at most
+ * BURST tokens. Budget that was not used during a quiet phase is not
+ * saved up, so the hedges never exceed the rate by more than the burst,
+ * also when a node is slow for all reads at once.
+ *
+ * The first read runs on the calling thread. A timer of the hedger
+ * starts the hedge on a bounded pool once the delay has passed; when the
+ * pool has no free thread the hedge is skipped (counted as rejected).
+ * The read that answers first aborts the other one (see AttemptAbort),
+ * so the caller does not wait for a slow node once the hedge answered.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ReadHedger {
+
+	private static final int SIGNIFICANT_DIGITS = 2;
+	private static final double PERCENTILE = 95;
+	// Latencies needed before the percentile of a node is (re)computed
+	private static final int MIN_SAMPLES = 100;
+	// Size of the token bucket: hedges allowed on top of the rate at once
+	private static final int BURST = 10;
+	// Fixed point scale of the tokens
+	private static final long TOKEN = 1000000;
+	// Delay of a node without enough samples yet
+	private static final long INITIAL_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final long fixedDelayNanos;
+	// Tokens a read adds to the bucket
+	private final long tokensPerRead;
+	private final AtomicLong tokens;
+	// Starts the hedges once their delay passed
+	private final ScheduledExecutorService timer;
+	// Runs the hedges, at most maxThreads at once
+	private final ThreadPoolExecutor hedgePool;
+	private final NodeLatency[] nodes;
+	private final AtomicLong reads;
+	private final AtomicLong hedges;
+	private final AtomicLong hedgesWon;
+	private final AtomicLong capped;
+	private final AtomicLong rejected;
+
+	/*
+	 * A fixedDelayMicros of 0 uses the 95th percentile of every node.
+	 */
+	public ReadHedger(int nodeCount, long fixedDelayMicros, double maxRate, int maxThreads){
+		if(fixedDelayMicros < 0 || maxRate < 0 || maxRate > 1 || maxThreads <= 0)
+			throw new IllegalArgumentException("Invalid delay, rate or number of threads");
+		this.fixedDelayNanos = TimeUnit.MICROSECONDS.toNanos(fixedDelayMicros);
+		this.tokensPerRead = Math.round(maxRate * TOKEN);
+		this.tokens = new AtomicLong(BURST * TOKEN);
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ThreadFactory threadFactory = new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "couchdb-hedge-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		// No queue: a hedge that can not start at once is of no use
+		this.hedgePool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), threadFactory);
+		this.nodes = new NodeLatency[nodeCount];
+		for(int i=0; i<nodeCount; i++){
+			this.nodes[i] = new NodeLatency();
+		}
+		this.reads = new AtomicLong();
+		this.hedges = new AtomicLong();
+		this.hedgesWon = new AtomicLong();
+		this.capped = new AtomicLong();
+		this.rejected = new AtomicLong();
+	}
+
+	/*
+	 * Runs the hedge on the pool after the delay, when the rate allows it
+	 * and a thread is free. Cancel the returned future when the first read
+	 * finished before.
+	 */
+	public ScheduledFuture<?> schedule(final Runnable hedge, long delayNanos){
+		return this.timer.schedule(new Runnable(){
+			@Override
+			public void run(){
+				if(!tryHedge())
+					return;
+				try{
+					hedgePool.execute(hedge);
+				} catch(RejectedExecutionException exc){
+					hedges.decrementAndGet();
+					tokens.addAndGet(TOKEN);
+					rejected.incrementAndGet();
+				}
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/*
+	 * Records the latency of a read on the node, hedged or not.
+	 */
+	public void recordLatency(int node, long startTime){
+		long latencyUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime);
+		this.nodes[node].recorder.recordValue(Math.max(latencyUs, 0));
+	}
+
+	public long getDelayNanos(int node){
+		if(this.fixedDelayNanos > 0)
+			return this.fixedDelayNanos;
+		return this.nodes[node].getPercentileNanos();
+	}
+
+	public void recordRead(){
+		this.reads.incrementAndGet();
+		while(true){
+			long current = this.tokens.get();
+			long refilled = Math.min(current + this.tokensPerRead, BURST * TOKEN);
+			if(refilled == current || this.tokens.compareAndSet(current, refilled))
+				return;
+		}
+	}
+
+	/*
+	 * Returns whether a hedge may be sent within the rate, and takes its
+	 * token and counts it when it may.
+	 */
+	private boolean tryHedge(){
+		while(true){
+			long current = this.tokens.get();
+			if(current < TOKEN){
+				this.capped.incrementAndGet();
+				return false;
+			}
+			if(this.tokens.compareAndSet(current, current - TOKEN)){
+				this.hedges.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	public void recordHedgeWon(){
+		this.hedgesWon.incrementAndGet();
+	}
+
+	public void shutdown(){
+		this.timer.shutdownNow();
+		this.hedgePool.shutdownNow();
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder result = new StringBuilder("[HEDGED READS] reads=").append(this.reads.get())
+			.append("; hedged=").append(this.hedges.get())
+			.append("; hedgesWon=").append(this.hedgesWon.get())
+			.append("; capped=").append(this.capped.get())
+			.append("; rejected=").append(this.rejected.get())
+			.append("; delayUs=");
+		for(int node=0; node<this.nodes.length; node++){
+			if(node > 0)
+				result.append(',');
+			result.append(TimeUnit.NANOSECONDS.toMicros(this.getDelayNanos(node)));
+		}
+		return result.toString();
+	}
+
+	/*
+	 * The outcome of one hedged read: which read answered first, and the
+	 * answer of the hedge for a caller whose own read was aborted or found
+	 * no node.
+	 */
+	public static class Race<T> {
+
+		private final AttemptAbort.Handle first;
+		private AttemptAbort.Handle hedge;
+		private boolean decided;
+		private boolean hedgeDone;
+		private T hedgeResult;
+		private RuntimeException hedgeFailure;
+
+		public Race(AttemptAbort.Handle first){
+			this.first = first;
+			this.hedge = null;
+			this.decided = false;
+			this.hedgeDone = false;
+		}
+
+		// Returns false when the first read finished already, the hedge is not needed
+		public synchronized boolean startHedge(AttemptAbort.Handle hedge){
+			if(this.decided)
+				return false;
+			this.hedge = hedge;
+			return true;
+		}
+
+		public synchronized void firstAnswered(){
+			if(this.decided)
+				return;
+			this.decided = true;
+			if(this.hedge != null)
+				this.hedge.abort();
+		}
+
+		/*
+		 * Returns true when a hedge was started, the caller then waits for
+		 * its answer with awaitHedge().
+		 */
+		public synchronized boolean firstFailed(){
+			this.decided = true;
+			return this.hedge != null;
+		}
+
+		public synchronized void hedgeAnswered(T result){
+			this.hedgeResult = result;
+			this.hedgeDone = true;
+			this.notifyAll();
+			if(this.decided)
+				return;
+			this.decided = true;
+			this.first.abort();
+		}
+
+		public synchronized void hedgeFailed(RuntimeException failure){
+			this.hedgeFailure = failure;
+			this.hedgeDone = true;
+			this.notifyAll();
+		}
+
+		public synchronized T awaitHedge(){
+			try{
+				while(!this.hedgeDone)
+					this.wait();
+			} catch(InterruptedException exc){
+				Thread.currentThread().interrupt();
+				throw new DbAccessException(exc);
+			}
+			if(this.hedgeFailure != null)
+				throw this.hedgeFailure;
+			return this.hedgeResult;
+		}
+	}
+
+	/*
+	 * The percentile is recomputed from the latencies recorded since the
+	 * last computation, once there are enough of them, so it follows a
+	 * node that slows down.
+	 */
+	private static class NodeLatency {
+
+		private final Recorder recorder;
+		private final Histogram window;
+		private Histogram interval;
+		private volatile long percentileNanos;
+		private volatile long nextUpdate;
+
+		NodeLatency(){
+			this.recorder = new Recorder(SIGNIFICANT_DIGITS);
+			this.window = new Histogram(SIGNIFICANT_DIGITS);
+			this.interval = null;
+			this.percentileNanos = INITIAL_DELAY_NANOS;
+			this.nextUpdate = 0;
+		}
+
+		long getPercentileNanos(){
+			long now = System.nanoTime();
+			if(now - this.nextUpdate >= 0)
+				this.update(now);
+			return this.percentileNanos;
+		}
+
+		// At most one update per millisecond
+		private synchronized void update(long now){
+			if(now - this.nextUpdate < 0)
+				return;
+			this.nextUpdate = now + TimeUnit.MILLISECONDS.toNanos(1);
+			this.interval = this.recorder.getIntervalHistogram(this.interval);
+			this.window.add(this.interval);
+			if(this.window.getTotalCount() < MIN_SAMPLES)
+				return;
+			this.percentileNanos = TimeUnit.MICROSECONDS.toNanos(this.window.getValueAtPercentile(PERCENTILE));
+			this.window.reset();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package couchdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ektorp.DbAccessException;
+
+/*
+ * Combines the requests of all client threads into batches. Every batch
+ * thread takes the first waiting request, collects the requests that
+ * arrive within the window (or until the batch is full) and executes the
+ * batch. The caller of submit() blocks until its request is completed.
+ *
+ * While all batch threads wait for a response, the requests pile up in
+ * the queue, so the batches grow with the load while a lone request
+ * waits at most the window.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public abstract class RequestBatcher<T extends RequestBatcher.PendingRequest> {
+
+	private final String name;
+	private final long windowNanos;
+	private final int maxBatchSize;
+	private final int threadCount;
+	private final BlockingQueue<T> queue;
+	private final List<Thread> threads;
+	private final AtomicLong requests;
+	private final AtomicLong batches;
+	private volatile boolean stopped;
+
+	protected RequestBatcher(String name, long windowMicros, int maxBatchSize, int threadCount){
+		if(windowMicros < 0 || maxBatchSize <= 0 || threadCount <= 0)
+			throw new IllegalArgumentException("Invalid window, batch size or thread count");
+		this.name = name;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatchSize = maxBatchSize;
+		this.threadCount = threadCount;
+		this.queue = new LinkedBlockingQueue<T>();
+		this.threads = new ArrayList<Thread>();
+		this.requests = new AtomicLong();
+		this.batches = new AtomicLong();
+		this.stopped = false;
+	}
+
+	/*
+	 * Starts the batch threads, called at the end of the constructor of
+	 * the subclass.
+	 */
+	protected void start(){
+		for(int i=0; i<this.threadCount; i++){
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					executeBatches();
+				}
+			}, this.name + "-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			this.threads.add(thread);
+		}
+	}
+
+	/*
+	 * Executes the requests of the batch and completes (or fails) every
+	 * one of them. A RuntimeException fails the requests that are not
+	 * completed yet.
+	 */
+	protected abstract void execute(List<T> batch);
+
+	/*
+	 * Queues the request and waits until a batch thread completed it.
+	 * Rethrows the failure of the request.
+	 */
+	protected void submit(T request){
+		if(this.stopped)
+			throw new IllegalStateException(this.name + " is shut down");
+		this.queue.add(request);
+		this.requests.incrementAndGet();
+		PendingRequest pending = request;
+		try{
+			pending.done.await();
+		} catch(InterruptedException exc){
+			Thread.currentThread().interrupt();
+			throw new DbAccessException(exc);
+		}
+		if(pending.failure != null)
+			throw pending.failure;
+	}
+
+	/*
+	 * Stops the batch threads after the batches in flight.
+	 */
+	public void shutdown(){
+		this.stopped = true;
+		for(Thread thread: this.threads){
+			thread.interrupt();
+		}
+		try{
+			for(Thread thread: this.threads){
+				thread.join();
+			}
+		} catch(InterruptedException exc){
+			Thread.currentThread().interrupt();
+		}
+		// Requests that were queued while stopping
+		List<T> left = new ArrayList<T>();
+		this.queue.drainTo(left);
+		fail(left, new DbAccessException(this.name + " is shut down"));
+	}
+
+	private void executeBatches(){
+		while(!this.stopped){
+			List<T> batch = new ArrayList<T>();
+			try{
+				batch.add(this.queue.take());
+				long deadline = System.nanoTime() + this.windowNanos;
+				while(batch.size() < this.maxBatchSize){
+					this.queue.drainTo(batch, this.maxBatchSize - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if(batch.size() >= this.maxBatchSize || remaining <= 0)
+						break;
+					T next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if(next == null)
+						break;
+					batch.add(next);
+				}
+			} catch(InterruptedException exc){
+				fail(batch, new DbAccessException(this.name + " is shut down"));
+				return;
+			}
+			this.batches.incrementAndGet();
+			try{
+				this.execute(batch);
+			} catch(RuntimeException exc){
+				fail(batch, exc);
+			}
+		}
+	}
+
+	private static void fail(List<? extends PendingRequest> batch, RuntimeException failure){
+		for(PendingRequest request: batch){
+			request.fail(failure);
+		}
+	}
+
+	public long getRequests(){
+		return this.requests.get();
+	}
+
+	public long getBatches(){
+		return this.batches.get();
+	}
+
+	@Override
+	public String toString(){
+		long batches = this.getBatches();
+		long requests = this.getRequests();
+		return "requests=" + requests + "; batches=" + batches
+			+ "; meanBatchSize=" + (batches == 0 ? "0" : String.format("%.2f", (double) requests / batches));
+	}
+
+	public static class PendingRequest {
+
+		private final CountDownLatch done;
+		private volatile boolean completed;
+		private RuntimeException failure;
+
+		protected PendingRequest(){
+			this.done = new CountDownLatch(1);
+			this.completed = false;
+		}
+
+		/*
+		 * Wakes the caller up. The subclass stores the result first; the
+		 * latch publishes it to the waiting thread.
+		 */
+		protected void complete(){
+			this.completed = true;
+			this.done.countDown();
+		}
+
+		// Ignored when the request was completed already
+		void fail(RuntimeException failure){
+			if(this.completed)
+				return;
+			this.failure = failure;
+			this.completed = true;
+			this.done.countDown();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package couchdb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bounded key->revision cache shared by all client threads. The cache is
+ * split in segments that each hold an LRU map guarded by their own lock,
+ * so threads working on different keys rarely contend.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class RevisionCache {
+
+	private static final int NUMBER_OF_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong stale;
+
+	public RevisionCache(int maximumSize){
+		if(maximumSize <= 0)
+			throw new IllegalArgumentException("maximumSize must be positive");
+		int segmentSize = Math.max(1, maximumSize / NUMBER_OF_SEGMENTS);
+		this.segments = new Segment[NUMBER_OF_SEGMENTS];
+		for(int i=0; i<NUMBER_OF_SEGMENTS; i++){
+			this.segments[i] = new Segment(segmentSize);
+		}
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.stale = new AtomicLong();
+	}
+
+	private Segment getSegment(String key){
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return this.segments[(hash & 0x7fffffff) % NUMBER_OF_SEGMENTS];
+	}
+
+	/*
+	 * Returns the cached revision of the given key or null if the
+	 * revision is unknown.
+	 */
+	public String get(String key){
+		Segment segment = this.getSegment(key);
+		String revision;
+		synchronized(segment){
+			revision = segment.get(key);
+		}
+		if(revision == null)
+			this.misses.incrementAndGet();
+		else
+			this.hits.incrementAndGet();
+		return revision;
+	}
+
+	public void put(String key, String revision){
+		if(key == null || revision == null)
+			return;
+		Segment segment = this.getSegment(key);
+		synchronized(segment){
+			segment.put(key, revision);
+		}
+	}
+
+	public void remove(String key){
+		Segment segment = this.getSegment(key);
+		synchronized(segment){
+			segment.remove(key);
+		}
+	}
+
+	/*
+	 * Removes a revision that was rejected by the database.
+	 */
+	public void markStale(String key){
+		this.stale.incrementAndGet();
+		this.remove(key);
+	}
+
+	public long getHits(){
+		return this.hits.get();
+	}
+
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	public long getStale(){
+		return this.stale.get();
+	}
+
+	@Override
+	public String toString(){
+		return "hits=" + this.getHits() + "; misses=" + this.getMisses()
+				+ "; stale=" + this.getStale();
+	}
+
+	private static class Segment extends LinkedHashMap<String, String> {
+
+		private static final long serialVersionUID = 1L;
+		private final int maximumSize;
+
+		Segment(int maximumSize){
+			// 3rd parameter true => access order, which makes this an LRU map
+			super(16, 0.75f, true);
+			this.maximumSize = maximumSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest){
+			return this.size() > this.maximumSize;
+		}
+	}
+}
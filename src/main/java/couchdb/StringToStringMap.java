@@ -60,6 +60,19 @@ public class StringToStringMap extends HashMap<String, String> {
 		super();
 		JSONParser parser = new JSONParser();
 		JSONObject jsonObj = (JSONObject) parser.parse(contentOfMapAsJson);
+		this.putStringValues(jsonObj);
+	}
+
+	/*
+	 * Same as the json string constructor, for an already parsed object.
+	 */
+	public static StringToStringMap fromJsonObject(JSONObject jsonObj) {
+		StringToStringMap result = new StringToStringMap();
+		result.putStringValues(jsonObj);
+		return result;
+	}
+
+	private void putStringValues(JSONObject jsonObj) {
 		@SuppressWarnings("unchecked")
 		Set<String> keys = jsonObj.keySet();
 		for (String key : keys) {
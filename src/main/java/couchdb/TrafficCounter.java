@@ -0,0 +1,99 @@
+package couchdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counts the bytes of the request and response bodies of a
+ * LoadBalancedConnector per operation, both as they travel over the
+ * network (wire) and as the binding produces and consumes them (logical).
+ * Without compression both are equal; with compression their ratio is the
+ * saving. Headers are not counted.
+ *
+ * LoadBalancedConnector sets the operation of the calling thread around
+ * every attempt on a node, the interceptors of TrafficHttpClientBuilder
+ * pick up the counters of that operation. Requests that are sent outside
+ * an operation (creating the database, probes) are not counted.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class TrafficCounter {
+
+	private final Counters[] counters;
+	private final ThreadLocal<ConnectorMetrics.Operation> currentOperation;
+
+	public TrafficCounter(){
+		ConnectorMetrics.Operation[] operations = ConnectorMetrics.Operation.values();
+		this.counters = new Counters[operations.length];
+		for(int i=0; i<operations.length; i++){
+			this.counters[i] = new Counters();
+		}
+		this.currentOperation = new ThreadLocal<ConnectorMetrics.Operation>();
+	}
+
+	/*
+	 * Sets the operation the requests of the calling thread are counted
+	 * for and returns the previous one, null stops counting.
+	 */
+	public ConnectorMetrics.Operation setCurrentOperation(ConnectorMetrics.Operation operation){
+		ConnectorMetrics.Operation previous = this.currentOperation.get();
+		this.currentOperation.set(operation);
+		return previous;
+	}
+
+	/*
+	 * The counters of the operation of the calling thread, null when the
+	 * thread is not executing an operation.
+	 */
+	public Counters getCurrentCounters(){
+		ConnectorMetrics.Operation operation = this.currentOperation.get();
+		if(operation == null)
+			return null;
+		return this.counters[operation.ordinal()];
+	}
+
+	/*
+	 * One line per operation that sent or received a body.
+	 */
+	@Override
+	public String toString(){
+		StringBuilder result = new StringBuilder();
+		for(ConnectorMetrics.Operation operation: ConnectorMetrics.Operation.values()){
+			Counters counters = this.counters[operation.ordinal()];
+			if(counters.requestWireBytes.get() == 0 && counters.responseWireBytes.get() == 0)
+				continue;
+			if(result.length() > 0)
+				result.append('\n');
+			result.append("[TRAFFIC ").append(operation)
+				.append("] requestBytes=").append(counters.requestBytes.get())
+				.append("; requestWireBytes=").append(counters.requestWireBytes.get())
+				.append("; responseBytes=").append(counters.responseBytes.get())
+				.append("; responseWireBytes=").append(counters.responseWireBytes.get());
+		}
+		return result.toString();
+	}
+
+	public static class Counters {
+
+		final AtomicLong requestBytes = new AtomicLong();
+		final AtomicLong requestWireBytes = new AtomicLong();
+		final AtomicLong responseBytes = new AtomicLong();
+		final AtomicLong responseWireBytes = new AtomicLong();
+	}
+}
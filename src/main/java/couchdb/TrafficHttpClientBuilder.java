@@ -0,0 +1,411 @@
+package couchdb;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.ektorp.http.StdHttpClient;
+
+/*
+ * Builds the StdHttpClient of a node like StdHttpClient.Builder does, with
+ * interceptors on the underlying Apache client that count the body bytes
+ * of every request and response in a TrafficCounter.
+ *
+ * With compression enabled the client also asks for gzip encoded
+ * responses (Accept-Encoding) and decodes them while they are read, and
+ * gzips the request bodies of at least compressionMinBytes, as well as the
+ * bodies of unknown length (the streamed bulk requests). Compressed bodies
+ * are sent chunked, so they are compressed while they are written.
+ *
+ * It also sets the socket options and the connection reuse of the pool,
+ * and with leaseMetrics() the wait for a pooled connection is measured
+ * (see LeaseTimingConnectionManager).
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class TrafficHttpClientBuilder extends StdHttpClient.Builder {
+
+	private static final Header GZIP_ENCODING = new BasicHeader("Content-Encoding", "gzip");
+
+	private final TrafficCounter traffic;
+	private final boolean compression;
+	private final int compressionMinBytes;
+	private boolean keepAlive;
+	private boolean tcpNoDelay;
+	private boolean staleConnectionCheck;
+	private ConnectorMetrics leaseMetrics;
+	private int leaseNode;
+	private AttemptDeadline attemptDeadline;
+	private AttemptAbort attemptAbort;
+
+	public TrafficHttpClientBuilder(TrafficCounter traffic, boolean compression, int compressionMinBytes){
+		if(traffic == null)
+			throw new IllegalArgumentException("traffic is null");
+		this.traffic = traffic;
+		this.compression = compression;
+		this.compressionMinBytes = compressionMinBytes;
+		// The defaults of StdHttpClient.Builder and HttpClient
+		this.keepAlive = true;
+		this.tcpNoDelay = true;
+		this.staleConnectionCheck = true;
+		this.leaseMetrics = null;
+		this.attemptDeadline = null;
+		this.attemptAbort = null;
+	}
+
+	// Without keep-alive every request opens a new connection
+	public TrafficHttpClientBuilder keepAlive(boolean keepAlive){
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	public TrafficHttpClientBuilder tcpNoDelay(boolean tcpNoDelay){
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	/*
+	 * Checks whether a pooled connection was closed by the node before it
+	 * is reused, at the cost of a short blocking read per request.
+	 */
+	public TrafficHttpClientBuilder staleConnectionCheck(boolean staleConnectionCheck){
+		this.staleConnectionCheck = staleConnectionCheck;
+		return this;
+	}
+
+	// Records the lease waits of the pool as the given node
+	public TrafficHttpClientBuilder leaseMetrics(ConnectorMetrics metrics, int node){
+		this.leaseMetrics = metrics;
+		this.leaseNode = node;
+		return this;
+	}
+
+	// Lowers the socket timeout of a request to the time left for the attempt
+	public TrafficHttpClientBuilder attemptDeadline(AttemptDeadline attemptDeadline){
+		this.attemptDeadline = attemptDeadline;
+		return this;
+	}
+
+	// Registers the connection of every request so another thread can abort it
+	public TrafficHttpClientBuilder attemptAbort(AttemptAbort attemptAbort){
+		this.attemptAbort = attemptAbort;
+		return this;
+	}
+
+	@Override
+	public ClientConnectionManager configureConnectionManager(HttpParams params){
+		ClientConnectionManager manager = super.configureConnectionManager(params);
+		if(this.leaseMetrics == null)
+			return manager;
+		return new LeaseTimingConnectionManager(manager, this.leaseMetrics, this.leaseNode);
+	}
+
+	/*
+	 * Called by build(), before the client is wrapped in the response cache,
+	 * so responses served from the cache are not counted.
+	 */
+	@Override
+	public HttpClient configureClient(){
+		AbstractHttpClient client = (AbstractHttpClient) super.configureClient();
+		HttpConnectionParams.setTcpNoDelay(client.getParams(), this.tcpNoDelay);
+		HttpConnectionParams.setStaleCheckingEnabled(client.getParams(), this.staleConnectionCheck);
+		if(!this.keepAlive)
+			client.setReuseStrategy(new NoConnectionReuseStrategy());
+		// First, so the default interceptors see the compressed entity
+		client.addRequestInterceptor(new RequestCounter(), 0);
+		// In order: wire bytes, decoding, logical bytes
+		client.addResponseInterceptor(new ResponseCounter(true));
+		if(this.compression){
+			client.addRequestInterceptor(new RequestAcceptEncoding());
+			client.addResponseInterceptor(new ResponseContentEncoding());
+		}
+		client.addResponseInterceptor(new ResponseCounter(false));
+		if(this.attemptDeadline != null)
+			client.addRequestInterceptor(new AttemptTimeout(this.attemptDeadline));
+		if(this.attemptAbort != null)
+			client.addRequestInterceptor(new AbortRegistration(this.attemptAbort));
+		return client;
+	}
+
+	private boolean shouldCompress(HttpEntity entity){
+		if(!this.compression || entity.getContentEncoding() != null)
+			return false;
+		long length = entity.getContentLength();
+		return length < 0 || length >= this.compressionMinBytes;
+	}
+
+	private class RequestCounter implements HttpRequestInterceptor {
+
+		@Override
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException{
+			if(!(request instanceof HttpEntityEnclosingRequest))
+				return;
+			HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+			HttpEntity entity = enclosingRequest.getEntity();
+			TrafficCounter.Counters counters = traffic.getCurrentCounters();
+			// Already wrapped when the request is retried
+			if(entity == null || entity instanceof RequestEntity || counters == null)
+				return;
+			enclosingRequest.setEntity(new RequestEntity(entity, counters, shouldCompress(entity)));
+		}
+	}
+
+	/*
+	 * Runs after HttpClient set the socket timeout of the connection from
+	 * its parameters, the connection is reset for the next request.
+	 */
+	private static class AttemptTimeout implements HttpRequestInterceptor {
+
+		private final AttemptDeadline deadline;
+
+		AttemptTimeout(AttemptDeadline deadline){
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException{
+			int remaining = this.deadline.getRemainingMillis();
+			HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			if(remaining < 0 || connection == null)
+				return;
+			int timeout = connection.getSocketTimeout();
+			if(timeout <= 0 || remaining < timeout)
+				connection.setSocketTimeout(remaining);
+		}
+	}
+
+	private static class AbortRegistration implements HttpRequestInterceptor {
+
+		private final AttemptAbort abort;
+
+		AbortRegistration(AttemptAbort abort){
+			this.abort = abort;
+		}
+
+		@Override
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException{
+			HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			if(connection != null)
+				this.abort.register(connection);
+		}
+	}
+
+	private class ResponseCounter implements HttpResponseInterceptor {
+
+		private final boolean wire;
+
+		ResponseCounter(boolean wire){
+			this.wire = wire;
+		}
+
+		@Override
+		public void process(HttpResponse response, HttpContext context) throws HttpException, IOException{
+			HttpEntity entity = response.getEntity();
+			TrafficCounter.Counters counters = traffic.getCurrentCounters();
+			if(entity == null || counters == null)
+				return;
+			AtomicLong counter = this.wire ? counters.responseWireBytes : counters.responseBytes;
+			response.setEntity(new ResponseEntity(entity, counter));
+		}
+	}
+
+	/*
+	 * Counts the body while it is written, gzips it in between when asked.
+	 */
+	private static class RequestEntity extends HttpEntityWrapper {
+
+		private final TrafficCounter.Counters counters;
+		private final boolean gzip;
+
+		RequestEntity(HttpEntity entity, TrafficCounter.Counters counters, boolean gzip){
+			super(entity);
+			this.counters = counters;
+			this.gzip = gzip;
+		}
+
+		@Override
+		public long getContentLength(){
+			return this.gzip ? -1 : super.getContentLength();
+		}
+
+		@Override
+		public boolean isChunked(){
+			return this.gzip || super.isChunked();
+		}
+
+		@Override
+		public Header getContentEncoding(){
+			return this.gzip ? GZIP_ENCODING : super.getContentEncoding();
+		}
+
+		@Override
+		public InputStream getContent() throws IOException{
+			if(this.gzip)
+				throw new UnsupportedOperationException("Compressed request bodies can only be written");
+			return super.getContent();
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException{
+			CountingOutputStream wire = new CountingOutputStream(out, this.counters.requestWireBytes);
+			if(!this.gzip){
+				this.wrappedEntity.writeTo(wire);
+				this.counters.requestBytes.addAndGet(wire.count);
+				return;
+			}
+			FastGZIPOutputStream compressor = new FastGZIPOutputStream(wire);
+			CountingOutputStream logical = new CountingOutputStream(compressor, this.counters.requestBytes);
+			this.wrappedEntity.writeTo(logical);
+			compressor.finish();
+		}
+	}
+
+	/*
+	 * Counts the body while it is read. Like the decompressing entities of
+	 * HttpClient, a streamed body hands out the same stream every time.
+	 */
+	private static class ResponseEntity extends HttpEntityWrapper {
+
+		private final AtomicLong counter;
+		private InputStream content;
+
+		ResponseEntity(HttpEntity entity, AtomicLong counter){
+			super(entity);
+			this.counter = counter;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException{
+			if(!this.wrappedEntity.isStreaming())
+				return new CountingInputStream(this.wrappedEntity.getContent(), this.counter);
+			if(this.content == null)
+				this.content = new CountingInputStream(this.wrappedEntity.getContent(), this.counter);
+			return this.content;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException{
+			InputStream in = this.getContent();
+			try{
+				byte[] buffer = new byte[4096];
+				int read;
+				while((read = in.read(buffer)) != -1){
+					out.write(buffer, 0, read);
+				}
+			} finally{
+				in.close();
+			}
+		}
+	}
+
+	// Speed matters more than the last percent of ratio for YCSB values
+	private static class FastGZIPOutputStream extends GZIPOutputStream {
+
+		FastGZIPOutputStream(OutputStream out) throws IOException{
+			super(out);
+			this.def.setLevel(Deflater.BEST_SPEED);
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private final AtomicLong counter;
+		private long count;
+
+		CountingOutputStream(OutputStream out, AtomicLong counter){
+			super(out);
+			this.counter = counter;
+			this.count = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException{
+			this.out.write(b);
+			this.count++;
+			this.counter.incrementAndGet();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException{
+			this.out.write(b, off, len);
+			this.count += len;
+			this.counter.addAndGet(len);
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		private final AtomicLong counter;
+
+		CountingInputStream(InputStream in, AtomicLong counter){
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException{
+			int result = this.in.read();
+			if(result != -1)
+				this.counter.incrementAndGet();
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException{
+			int result = this.in.read(b, off, len);
+			if(result > 0)
+				this.counter.addAndGet(result);
+			return result;
+		}
+
+		@Override
+		public long skip(long n) throws IOException{
+			long result = this.in.skip(n);
+			this.counter.addAndGet(result);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package couchdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ektorp.DocumentOperationResult;
+
+/*
+ * Group commit of the document writes of all client threads (see
+ * RequestBatcher): a batch of inserts and updates is written with one
+ * _bulk_docs request, so the nodes pay one commit for the whole batch.
+ * Unlike the bulk buffer of a client, every caller waits for its own
+ * write and gets its own result, the new revision or the conflict.
+ *
+ * Two writes of the same document in one batch behave like two
+ * concurrent PUTs: one of them gets a conflict.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class WriteCombiner extends RequestBatcher<WriteCombiner.PendingWrite> {
+
+	private final LoadBalancedConnector connector;
+	private final AtomicLong conflicts;
+
+	public WriteCombiner(LoadBalancedConnector connector, long windowMicros, int maxBatchSize, int threads){
+		super("couchdb-write-combine", windowMicros, maxBatchSize, threads);
+		if(connector == null)
+			throw new IllegalArgumentException("connector is null");
+		this.connector = connector;
+		this.conflicts = new AtomicLong();
+		this.start();
+	}
+
+	/*
+	 * Writes the first length bytes of the serialized document (including
+	 * its _id, and its _rev when it exists already) as part of the next
+	 * batch. The caller must not touch the buffer until this returns.
+	 */
+	public DocumentOperationResult write(String id, byte[] document, int length){
+		PendingWrite write = new PendingWrite(id, ByteBuffer.wrap(document, 0, length));
+		this.submit(write);
+		return write.result;
+	}
+
+	@Override
+	protected void execute(List<PendingWrite> batch){
+		List<String> ids = new ArrayList<String>(batch.size());
+		List<ByteBuffer> documents = new ArrayList<ByteBuffer>(batch.size());
+		for(PendingWrite write: batch){
+			ids.add(write.id);
+			documents.add(write.document);
+		}
+		RuntimeException[] failures = new RuntimeException[batch.size()];
+		List<DocumentOperationResult> results = this.connector.executeSerializedBulk(ids, documents, failures);
+		for(int i=0; i<batch.size(); i++){
+			// Only the writes of a group whose request failed
+			if(failures[i] != null){
+				batch.get(i).fail(failures[i]);
+				continue;
+			}
+			DocumentOperationResult result = results.get(i);
+			if(result.isErroneous() && "conflict".equals(result.getError()))
+				this.conflicts.incrementAndGet();
+			batch.get(i).complete(result);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "[WRITE COMBINER] " + super.toString() + "; conflicts=" + this.conflicts.get();
+	}
+
+	static class PendingWrite extends RequestBatcher.PendingRequest {
+
+		private final String id;
+		private final ByteBuffer document;
+		private DocumentOperationResult result;
+
+		PendingWrite(String id, ByteBuffer document){
+			this.id = id;
+			this.document = document;
+		}
+
+		void complete(DocumentOperationResult result){
+			this.result = result;
+			this.complete();
+		}
+	}
+}
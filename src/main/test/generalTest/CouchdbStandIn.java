@@ -0,0 +1,751 @@
+package generalTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import couchdb.PackedRecord;
+
+/*
+ * In-process stand-in for a CouchDB node, good enough to run the binding
+ * without a real cluster. It implements the endpoints the binding uses:
+ *
+ * - HEAD/PUT /db                    database check and creation
+ * - GET/HEAD/PUT/DELETE /db/id      documents, with MVCC revisions;
+ *                                   attachments=true inlines the
+ *                                   attachments, or sends them as raw
+ *                                   multipart/related parts when the
+ *                                   client accepts that
+ * - POST /db                        document with a generated id
+ * - GET/POST /db/_all_docs          include_docs, attachments, startkey,
+ *                                   limit, skip, keys
+ * - POST /db/_bulk_docs
+ * - GET /db/_changes?feed=continuous  the changes from the request on,
+ *                                     with heartbeat; since is ignored
+ * - PUT /db/_design/x/_update/f/id  merges the JSON body into the document
+ *
+ * Attachments are only accepted inline (base64) in the documents that are
+ * written, and are returned as stubs unless attachments=true.
+ *
+ * Gzipped request bodies are accepted, and responses are gzipped when the
+ * client asks for it with Accept-Encoding.
+ *
+ * Show and list functions and _find are not implemented. Several stand-ins
+ * can share one Storage to simulate the nodes of a cluster. Every request
+ * can be delayed by a fixed latency, and a fraction of the requests can be
+ * answered with 500 to exercise failover.
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class CouchdbStandIn {
+
+	static{
+		// Without it small responses wait for delayed ACKs (~40ms per request)
+		if(System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final Storage storage;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random;
+	private volatile long latencyMs;
+	private volatile double failureRate;
+
+	public CouchdbStandIn(Storage storage) throws IOException{
+		this(storage, 0);
+	}
+
+	/*
+	 * Port 0 picks a free port, see getUrl().
+	 */
+	public CouchdbStandIn(Storage storage, int port) throws IOException{
+		if(storage == null)
+			throw new IllegalArgumentException("storage is null");
+		this.storage = storage;
+		this.random = new Random();
+		this.latencyMs = 0;
+		this.failureRate = 0;
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		this.executor = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException{
+				handleExchange(exchange);
+			}
+		});
+		this.server.start();
+	}
+
+	public URL getUrl(){
+		try{
+			return new URL("http", "127.0.0.1", this.server.getAddress().getPort(), "");
+		} catch(IOException exc){
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	/*
+	 * Delay added to every request.
+	 */
+	public void setLatencyMs(long latencyMs){
+		this.latencyMs = latencyMs;
+	}
+
+	/*
+	 * Fraction of the requests (0 to 1) that fail with 500 before they
+	 * touch the storage.
+	 */
+	public void setFailureRate(double failureRate){
+		this.failureRate = failureRate;
+	}
+
+	public void stop(){
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	private void handleExchange(HttpExchange exchange) throws IOException{
+		try{
+			if(this.latencyMs > 0)
+				Thread.sleep(this.latencyMs);
+			Response response;
+			if(this.failureRate > 0 && this.nextDouble() < this.failureRate)
+				response = Response.error(500, "internal_server_error", "injected failure");
+			else if(this.isContinuousChanges(exchange))
+				response = this.streamChanges(exchange);
+			else
+				response = this.dispatch(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+						parseQuery(exchange.getRequestURI().getRawQuery()), readBody(exchange),
+						exchange.getRequestHeaders().getFirst("Accept"));
+			this.send(exchange, response);
+		} catch(InterruptedException exc){
+			Thread.currentThread().interrupt();
+		} catch(ParseException exc){
+			this.send(exchange, Response.error(400, "bad_request", "invalid json"));
+		} finally{
+			exchange.close();
+		}
+	}
+
+	private boolean isContinuousChanges(HttpExchange exchange){
+		List<String> path = splitPath(exchange.getRequestURI().getRawPath());
+		return exchange.getRequestMethod().equals("GET") && path.size() == 2 && path.get(1).equals("_changes")
+				&& "continuous".equals(parseQuery(exchange.getRequestURI().getRawQuery()).get("feed"));
+	}
+
+	/*
+	 * Writes a line per change until the client goes away or the stand-in
+	 * is stopped, and an empty line when nothing changed for heartbeat ms.
+	 * Returns a response only when the request fails before streaming.
+	 */
+	private Response streamChanges(HttpExchange exchange) throws IOException, InterruptedException{
+		Database database = this.storage.getDatabase(splitPath(exchange.getRequestURI().getRawPath()).get(0));
+		if(database == null)
+			return Response.error(404, "not_found", "no_db_file");
+		String heartbeat = parseQuery(exchange.getRequestURI().getRawQuery()).get("heartbeat");
+		long heartbeatMs = heartbeat == null ? 60000 : Long.parseLong(heartbeat);
+		BlockingQueue<String> changes = database.subscribe();
+		try{
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = exchange.getResponseBody();
+			while(true){
+				String change = changes.poll(heartbeatMs, TimeUnit.MILLISECONDS);
+				out.write(change == null ? "\n".getBytes("UTF-8") : (change + "\n").getBytes("UTF-8"));
+				out.flush();
+			}
+		} catch(IOException exc){
+			// The client closed the feed
+			return null;
+		} finally{
+			database.unsubscribe(changes);
+		}
+	}
+
+	private synchronized double nextDouble(){
+		return this.random.nextDouble();
+	}
+
+	private void send(HttpExchange exchange, Response response) throws IOException{
+		if(response == null)
+			return;
+		exchange.getResponseHeaders().set("Content-Type", response.contentType);
+		if(response.etag != null)
+			exchange.getResponseHeaders().set("ETag", "\"" + response.etag + "\"");
+		byte[] body = response.body;
+		if(exchange.getRequestMethod().equals("HEAD")){
+			exchange.sendResponseHeaders(response.code, -1);
+			return;
+		}
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if(acceptEncoding != null && acceptEncoding.contains("gzip")){
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			exchange.sendResponseHeaders(response.code, 0);
+			OutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+			out.write(body);
+			out.close();
+			return;
+		}
+		exchange.sendResponseHeaders(response.code, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private Response dispatch(String method, String rawPath, Map<String, String> query, String body,
+			String accept) throws ParseException{
+		List<String> path = splitPath(rawPath);
+		if(path.isEmpty())
+			return Response.ok(200, "{\"couchdb\":\"Welcome\",\"version\":\"1.6.1\"}");
+		String databaseName = path.get(0);
+		if(path.size() == 1 && method.equals("PUT"))
+			return this.storage.createDatabase(databaseName);
+		if(path.size() == 1 && (method.equals("HEAD") || method.equals("GET")))
+			return this.storage.getDatabaseInfo(databaseName);
+		Database database = this.storage.getDatabase(databaseName);
+		if(database == null)
+			return Response.error(404, "not_found", "no_db_file");
+		if(path.size() == 1){
+			if(method.equals("POST"))
+				return database.putDocument(null, parseObject(body));
+			return Response.error(405, "method_not_allowed", method);
+		}
+		String resource = path.get(1);
+		if(resource.equals("_all_docs") && path.size() == 2){
+			if(method.equals("POST"))
+				query.put("keys", parseObject(body).get("keys").toString());
+			return database.allDocs(query);
+		}
+		if(resource.equals("_bulk_docs") && path.size() == 2 && method.equals("POST"))
+			return database.bulkDocs(parseObject(body));
+		String id = resource;
+		if(resource.equals("_design") && path.size() >= 3){
+			id = "_design/" + path.get(2);
+			if(path.size() == 6 && path.get(3).equals("_update") && method.equals("PUT"))
+				return database.mergeDocument(path.get(5), parseObject(body));
+			if(path.size() > 3)
+				return Response.error(400, "bad_request", "not supported by the stand-in");
+		} else if(path.size() > 2 || resource.startsWith("_")){
+			return Response.error(400, "bad_request", "not supported by the stand-in");
+		}
+		if(method.equals("GET") || method.equals("HEAD"))
+			return database.getDocument(id, "true".equals(query.get("attachments")),
+					accept != null && accept.contains("multipart/related"));
+		if(method.equals("PUT"))
+			return database.putDocument(id, parseObject(body));
+		if(method.equals("DELETE"))
+			return database.deleteDocument(id, query.get("rev"));
+		return Response.error(405, "method_not_allowed", method);
+	}
+
+	private static List<String> splitPath(String rawPath) {
+		List<String> result = new ArrayList<String>();
+		for(String segment: rawPath.split("/")){
+			if(segment.length() > 0)
+				result.add(decode(segment));
+		}
+		return result;
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery){
+		Map<String, String> result = new HashMap<String, String>();
+		if(rawQuery == null)
+			return result;
+		for(String parameter: rawQuery.split("&")){
+			int separator = parameter.indexOf('=');
+			if(separator < 0)
+				result.put(decode(parameter), "");
+			else
+				result.put(decode(parameter.substring(0, separator)), decode(parameter.substring(separator + 1)));
+		}
+		return result;
+	}
+
+	private static String decode(String value){
+		try{
+			return URLDecoder.decode(value, "UTF-8");
+		} catch(UnsupportedEncodingException exc){
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException{
+		InputStream in = exchange.getRequestBody();
+		if("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+			in = new GZIPInputStream(in);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while((read = in.read(buffer)) > 0){
+			result.write(buffer, 0, read);
+		}
+		return result.toString("UTF-8");
+	}
+
+	private static JSONObject parseObject(String json) throws ParseException{
+		Object result = new JSONParser().parse(json);
+		if(!(result instanceof JSONObject))
+			throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+		return (JSONObject) result;
+	}
+
+	private static class Response {
+
+		private final int code;
+		private final byte[] body;
+		private final String contentType;
+		private final String etag;
+
+		private Response(int code, String body, String etag){
+			this(code, toBytes(body), "application/json", etag);
+		}
+
+		private Response(int code, byte[] body, String contentType, String etag){
+			this.code = code;
+			this.body = body;
+			this.contentType = contentType;
+			this.etag = etag;
+		}
+
+		private static byte[] toBytes(String body){
+			try{
+				return body.getBytes("UTF-8");
+			} catch(UnsupportedEncodingException exc){
+				throw new IllegalStateException(exc);
+			}
+		}
+
+		static Response ok(int code, String body){
+			return new Response(code, body, null);
+		}
+
+		@SuppressWarnings("unchecked")
+		static Response error(int code, String error, String reason){
+			JSONObject body = new JSONObject();
+			body.put("error", error);
+			body.put("reason", reason);
+			return new Response(code, body.toJSONString(), null);
+		}
+
+		@SuppressWarnings("unchecked")
+		static Response revision(int code, String id, String revision){
+			JSONObject body = new JSONObject();
+			body.put("ok", Boolean.TRUE);
+			body.put("id", id);
+			body.put("rev", revision);
+			return new Response(code, body.toJSONString(), revision);
+		}
+	}
+
+	/*
+	 * The databases of a simulated cluster. All stand-ins that share a
+	 * Storage see each other's writes immediately.
+	 */
+	public static class Storage {
+
+		private final Map<String, Database> databases = new HashMap<String, Database>();
+
+		public synchronized Database getDatabase(String name){
+			return this.databases.get(name);
+		}
+
+		synchronized Response createDatabase(String name){
+			if(this.databases.containsKey(name))
+				return Response.error(412, "file_exists", "The database could not be created, the file already exists.");
+			this.databases.put(name, new Database(name));
+			return Response.ok(201, "{\"ok\":true}");
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized Response getDatabaseInfo(String name){
+			Database database = this.databases.get(name);
+			if(database == null)
+				return Response.error(404, "not_found", "no_db_file");
+			JSONObject info = new JSONObject();
+			info.put("db_name", name);
+			info.put("doc_count", database.getDocumentCount());
+			info.put("update_seq", database.getUpdateSeq());
+			return Response.ok(200, info.toJSONString());
+		}
+	}
+
+	/*
+	 * Documents in id order. Deleted documents stay as tombstones so their
+	 * revision history continues when they are created again.
+	 */
+	public static class Database {
+
+		private final String name;
+		private final TreeMap<String, Document> documents;
+		private final Random random;
+		private long updateSeq;
+		private int documentCount;
+		private final List<BlockingQueue<String>> feeds;
+
+		Database(String name){
+			this.name = name;
+			this.documents = new TreeMap<String, Document>();
+			this.random = new Random();
+			this.updateSeq = 0;
+			this.documentCount = 0;
+			this.feeds = new CopyOnWriteArrayList<BlockingQueue<String>>();
+		}
+
+		public String getName(){
+			return this.name;
+		}
+
+		public synchronized int getDocumentCount(){
+			return this.documentCount;
+		}
+
+		public synchronized long getUpdateSeq(){
+			return this.updateSeq;
+		}
+
+		// Receives a line for every later change
+		BlockingQueue<String> subscribe(){
+			BlockingQueue<String> result = new LinkedBlockingQueue<String>();
+			this.feeds.add(result);
+			return result;
+		}
+
+		void unsubscribe(BlockingQueue<String> feed){
+			this.feeds.remove(feed);
+		}
+
+		synchronized Response getDocument(String id, boolean attachments, boolean multipart){
+			Document document = this.documents.get(id);
+			if(document == null)
+				return Response.error(404, "not_found", "missing");
+			if(document.deleted)
+				return Response.error(404, "not_found", "deleted");
+			if(attachments && multipart && document.hasAttachments())
+				return this.createMultipart(id, document);
+			return new Response(200, document.toJson(id, attachments).toJSONString(), document.revision);
+		}
+
+		/*
+		 * The document with "follows" stubs, followed by a part with the
+		 * raw bytes of every attachment, in the order of the stubs.
+		 */
+		@SuppressWarnings("unchecked")
+		private Response createMultipart(String id, Document document){
+			String boundary = this.newRevisionHash();
+			JSONObject json = document.toJson(id, false);
+			JSONObject stubs = (JSONObject) json.get("_attachments");
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			List<byte[]> parts = new ArrayList<byte[]>();
+			for(Object name: stubs.keySet()){
+				JSONObject stub = (JSONObject) stubs.get(name);
+				stub.remove("stub");
+				stub.put("follows", Boolean.TRUE);
+				parts.add(document.getAttachmentData(name.toString()));
+			}
+			try{
+				body.write(Response.toBytes("--" + boundary + "\r\nContent-Type: application/json\r\n\r\n"));
+				body.write(Response.toBytes(json.toJSONString()));
+				for(byte[] part: parts){
+					body.write(Response.toBytes("\r\n--" + boundary + "\r\n\r\n"));
+					body.write(part);
+				}
+				body.write(Response.toBytes("\r\n--" + boundary + "--"));
+			} catch(IOException exc){
+				throw new IllegalStateException(exc);
+			}
+			return new Response(200, body.toByteArray(),
+					"multipart/related; boundary=\"" + boundary + "\"", document.revision);
+		}
+
+		synchronized Response putDocument(String id, JSONObject body){
+			if(id == null)
+				id = body.get("_id") != null ? body.get("_id").toString() : this.newId();
+			Object revision = body.get("_rev");
+			if(Boolean.TRUE.equals(body.get("_deleted")))
+				return this.deleteDocument(id, revision == null ? null : revision.toString());
+			String result = this.write(id, revision == null ? null : revision.toString(), body, false);
+			if(result == null)
+				return Response.error(409, "conflict", "Document update conflict.");
+			return Response.revision(201, id, result);
+		}
+
+		synchronized Response deleteDocument(String id, String revision){
+			Document document = this.documents.get(id);
+			if(document == null || document.deleted)
+				return Response.error(404, "not_found", document == null ? "missing" : "deleted");
+			String result = this.write(id, revision, new JSONObject(), true);
+			if(result == null)
+				return Response.error(409, "conflict", "Document update conflict.");
+			return Response.revision(200, id, result);
+		}
+
+		/*
+		 * The update handler of the binding's design document: copies the
+		 * fields of the body into the stored document.
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized Response mergeDocument(String id, JSONObject changes){
+			Document document = this.documents.get(id);
+			if(document == null || document.deleted)
+				return Response.error(404, "not_found", "missing");
+			JSONObject merged = new JSONObject();
+			merged.putAll(document.body);
+			merged.putAll(changes);
+			String revision = this.write(id, document.revision, merged, false);
+			return new Response(201, "{\"ok\":true}", revision);
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized Response bulkDocs(JSONObject body){
+			JSONArray results = new JSONArray();
+			for(Object entry: (JSONArray) body.get("docs")){
+				JSONObject doc = (JSONObject) entry;
+				String id = doc.get("_id") != null ? doc.get("_id").toString() : this.newId();
+				Response response = this.putDocument(id, doc);
+				JSONObject result = new JSONObject();
+				result.put("id", id);
+				if(response.etag != null){
+					result.put("rev", response.etag);
+				} else if(response.code == 404){
+					result.put("error", "not_found");
+					result.put("reason", "missing");
+				} else{
+					result.put("error", "conflict");
+					result.put("reason", "Document update conflict.");
+				}
+				results.add(result);
+			}
+			return Response.ok(201, results.toJSONString());
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized Response allDocs(Map<String, String> query) throws ParseException{
+			boolean includeDocs = "true".equals(query.get("include_docs"));
+			boolean attachments = "true".equals(query.get("attachments"));
+			JSONArray rows = new JSONArray();
+			int offset = 0;
+			if(query.containsKey("keys")){
+				for(Object key: (JSONArray) new JSONParser().parse(query.get("keys"))){
+					rows.add(this.createRow(key.toString(), includeDocs, attachments));
+				}
+			} else{
+				SortedMap<String, Document> range = this.documents;
+				if(query.containsKey("startkey")){
+					String startKey = new JSONParser().parse(query.get("startkey")).toString();
+					range = this.documents.tailMap(startKey);
+					offset = this.countLive(this.documents.headMap(startKey));
+				}
+				int skip = query.containsKey("skip") ? Integer.parseInt(query.get("skip")) : 0;
+				int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+				for(Map.Entry<String, Document> entry: range.entrySet()){
+					if(rows.size() >= limit)
+						break;
+					if(entry.getValue().deleted)
+						continue;
+					if(skip > 0){
+						skip--;
+						continue;
+					}
+					rows.add(this.createRow(entry.getKey(), includeDocs, attachments));
+				}
+			}
+			JSONObject result = new JSONObject();
+			result.put("total_rows", this.documentCount);
+			result.put("offset", offset);
+			result.put("rows", rows);
+			return Response.ok(200, result.toJSONString());
+		}
+
+		@SuppressWarnings("unchecked")
+		private JSONObject createRow(String id, boolean includeDocs, boolean attachments){
+			JSONObject row = new JSONObject();
+			row.put("key", id);
+			Document document = this.documents.get(id);
+			if(document == null){
+				row.put("error", "not_found");
+				return row;
+			}
+			row.put("id", id);
+			JSONObject value = new JSONObject();
+			value.put("rev", document.revision);
+			if(document.deleted)
+				value.put("deleted", Boolean.TRUE);
+			row.put("value", value);
+			if(includeDocs)
+				row.put("doc", document.deleted ? null : document.toJson(id, attachments));
+			return row;
+		}
+
+		private int countLive(SortedMap<String, Document> documents){
+			int result = 0;
+			for(Document document: documents.values()){
+				if(!document.deleted)
+					result++;
+			}
+			return result;
+		}
+
+		/*
+		 * Returns the new revision, or null when the given revision is not
+		 * the current one.
+		 */
+		private String write(String id, String revision, JSONObject body, boolean deleted){
+			Document current = this.documents.get(id);
+			int generation = 0;
+			if(current != null){
+				boolean expected = current.deleted ? revision == null || revision.equals(current.revision)
+						: current.revision.equals(revision);
+				if(!expected)
+					return null;
+				generation = current.generation;
+			} else if(revision != null){
+				return null;
+			}
+			Document document = new Document(generation + 1, this.newRevisionHash(), body, deleted);
+			if((current == null || current.deleted) && !deleted)
+				this.documentCount++;
+			else if(current != null && !current.deleted && deleted)
+				this.documentCount--;
+			this.documents.put(id, document);
+			this.updateSeq++;
+			if(!this.feeds.isEmpty())
+				this.publishChange(id, document);
+			return document.revision;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void publishChange(String id, Document document){
+			JSONObject revision = new JSONObject();
+			revision.put("rev", document.revision);
+			JSONArray changes = new JSONArray();
+			changes.add(revision);
+			JSONObject change = new JSONObject();
+			change.put("seq", this.updateSeq);
+			change.put("id", id);
+			change.put("changes", changes);
+			if(document.deleted)
+				change.put("deleted", Boolean.TRUE);
+			String line = change.toJSONString();
+			for(BlockingQueue<String> feed: this.feeds){
+				feed.add(line);
+			}
+		}
+
+		private String newRevisionHash(){
+			return Long.toHexString(this.random.nextLong() & Long.MAX_VALUE)
+					+ Long.toHexString(this.random.nextLong() & Long.MAX_VALUE);
+		}
+
+		private String newId(){
+			return Long.toHexString(this.random.nextLong() & Long.MAX_VALUE);
+		}
+	}
+
+	private static class Document {
+
+		private final int generation;
+		private final String revision;
+		private final JSONObject body;
+		private final boolean deleted;
+
+		Document(int generation, String hash, JSONObject body, boolean deleted){
+			this.generation = generation;
+			this.revision = generation + "-" + hash;
+			this.body = body;
+			this.deleted = deleted;
+		}
+
+		boolean hasAttachments(){
+			return this.body.get("_attachments") instanceof JSONObject
+					&& !((JSONObject) this.body.get("_attachments")).isEmpty();
+		}
+
+		byte[] getAttachmentData(String name){
+			JSONObject attachment = (JSONObject) ((JSONObject) this.body.get("_attachments")).get(name);
+			Object data = attachment.get("data");
+			return data == null ? new byte[0] : PackedRecord.decodeBase64(data.toString());
+		}
+
+		// Without attachments, the attachments are stubs
+		@SuppressWarnings("unchecked")
+		JSONObject toJson(String id, boolean attachments){
+			JSONObject result = new JSONObject();
+			for(Object field: this.body.entrySet()){
+				Map.Entry<Object, Object> entry = (Map.Entry<Object, Object>) field;
+				String name = entry.getKey().toString();
+				if(!name.startsWith("_"))
+					result.put(name, entry.getValue());
+			}
+			result.put("_id", id);
+			result.put("_rev", this.revision);
+			if(this.hasAttachments())
+				result.put("_attachments", this.getAttachments(attachments));
+			return result;
+		}
+
+		@SuppressWarnings("unchecked")
+		private JSONObject getAttachments(boolean inline){
+			JSONObject result = new JSONObject();
+			for(Object name: ((JSONObject) this.body.get("_attachments")).keySet()){
+				JSONObject stored = (JSONObject) ((JSONObject) this.body.get("_attachments")).get(name);
+				JSONObject attachment = new JSONObject();
+				attachment.put("content_type", stored.get("content_type"));
+				attachment.put("length", this.getAttachmentData(name.toString()).length);
+				if(inline)
+					attachment.put("data", stored.get("data"));
+				else
+					attachment.put("stub", Boolean.TRUE);
+				result.put(name, attachment);
+			}
+			return result;
+		}
+	}
+}
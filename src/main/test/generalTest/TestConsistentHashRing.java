@@ -0,0 +1,89 @@
+package generalTest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import couchdb.ConsistentHashRing;
+
+public class TestConsistentHashRing {
+
+	private static final int VIRTUAL_NODES = 128;
+	private static final int KEYS = 30000;
+
+	private static List<String> nodes(int count){
+		List<String> result = new ArrayList<String>();
+		for(int i=0; i<count; i++){
+			result.add("http://127.0.0.1:" + (5984 + i));
+		}
+		return result;
+	}
+
+	@Test
+	public void nodeOrderStartsAtPrimaryAndContainsEveryNodeOnce(){
+		ConsistentHashRing ring = new ConsistentHashRing(nodes(5), VIRTUAL_NODES);
+		for(int i=0; i<1000; i++){
+			String key = "user" + i;
+			int[] order = ring.getNodeOrder(key);
+			assertEquals(ring.getPrimaryNode(key), order[0]);
+			int[] sorted = order.clone();
+			Arrays.sort(sorted);
+			assertArrayEquals(new int[]{0, 1, 2, 3, 4}, sorted);
+		}
+	}
+
+	@Test
+	public void placementDependsOnlyOnTheNodeNames(){
+		ConsistentHashRing ring = new ConsistentHashRing(nodes(3), VIRTUAL_NODES);
+		ConsistentHashRing other = new ConsistentHashRing(nodes(3), VIRTUAL_NODES);
+		for(int i=0; i<1000; i++){
+			String key = "user" + i;
+			assertArrayEquals(ring.getNodeOrder(key), other.getNodeOrder(key));
+		}
+	}
+
+	@Test
+	public void keysAreSpreadOverAllNodes(){
+		ConsistentHashRing ring = new ConsistentHashRing(nodes(3), VIRTUAL_NODES);
+		int[] keysPerNode = new int[3];
+		for(int i=0; i<KEYS; i++){
+			keysPerNode[ring.getPrimaryNode("user" + i)]++;
+		}
+		for(int count: keysPerNode){
+			assertTrue("Unbalanced ring: " + Arrays.toString(keysPerNode),
+					count > KEYS / 4 && count < KEYS * 5 / 12);
+		}
+	}
+
+	@Test
+	public void addingANodeOnlyMovesKeysToThatNode(){
+		ConsistentHashRing before = new ConsistentHashRing(nodes(3), VIRTUAL_NODES);
+		ConsistentHashRing after = new ConsistentHashRing(nodes(4), VIRTUAL_NODES);
+		int moved = 0;
+		for(int i=0; i<KEYS; i++){
+			String key = "user" + i;
+			int primary = after.getPrimaryNode(key);
+			if(primary == before.getPrimaryNode(key))
+				continue;
+			assertEquals(3, primary);
+			moved++;
+		}
+		assertTrue("Moved " + moved + " of " + KEYS, moved > KEYS / 8 && moved < KEYS * 3 / 8);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void ringWithoutNodesIsRejected(){
+		new ConsistentHashRing(new ArrayList<String>(), VIRTUAL_NODES);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void ringWithoutVirtualNodesIsRejected(){
+		new ConsistentHashRing(nodes(3), 0);
+	}
+}
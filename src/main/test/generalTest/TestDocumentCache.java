@@ -0,0 +1,146 @@
+package generalTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import couchdb.DocumentCache;
+import couchdb.StringToStringMap;
+
+public class TestDocumentCache {
+
+	private static final int SEGMENTS = 16;
+	// Room for two small documents per segment, or one large one
+	private static final int SEGMENT_BYTES = 400;
+
+	private DocumentCache cache;
+
+	@Before
+	public void createCache(){
+		this.cache = new DocumentCache(SEGMENTS * SEGMENT_BYTES);
+	}
+
+	private static StringToStringMap document(String revision, int valueLength){
+		StringToStringMap result = new StringToStringMap();
+		result.put("_rev", revision);
+		result.put("field0", new String(new char[valueLength]).replace('\0', 'x'));
+		return result;
+	}
+
+	// Ids that DocumentCache puts in the same segment
+	private static List<String> idsOfOneSegment(int count){
+		List<String> result = new ArrayList<String>();
+		for(int i=0; result.size()<count; i++){
+			String id = "user" + i;
+			int hash = id.hashCode();
+			hash ^= hash >>> 16;
+			if((hash & 0x7fffffff) % SEGMENTS == 0)
+				result.add(id);
+		}
+		return result;
+	}
+
+	private void load(String id, StringToStringMap document){
+		long loadSequence = this.cache.startLoad();
+		this.cache.get(id);
+		this.cache.put(id, document, loadSequence);
+	}
+
+	@Test
+	public void hitReturnsACopy(){
+		this.load("user1", document("1-a", 10));
+		StringToStringMap hit = this.cache.get("user1");
+		assertEquals("1-a", hit.get("_rev"));
+		hit.put("field0", "changed");
+		assertEquals(10, this.cache.get("user1").get("field0").length());
+	}
+
+	@Test
+	public void writeInvalidatesTheDocument(){
+		this.load("user1", document("1-a", 10));
+		this.cache.startWrite("user1");
+		this.cache.finishWrite("user1", true);
+		assertNull(this.cache.get("user1"));
+	}
+
+	@Test
+	public void loadThatOverlapsAnInvalidationIsNotCached(){
+		long loadSequence = this.cache.startLoad();
+		this.cache.applyChange("user1", "2-b");
+		this.cache.put("user1", document("1-a", 10), loadSequence);
+		assertNull(this.cache.get("user1"));
+	}
+
+	@Test
+	public void changeOfTheCachedRevisionKeepsTheDocument(){
+		this.load("user1", document("2-b", 10));
+		this.cache.applyChange("user1", "2-b");
+		assertNotNull(this.cache.get("user1"));
+		this.cache.applyChange("user1", "3-c");
+		assertNull(this.cache.get("user1"));
+	}
+
+	@Test
+	public void clearDropsDocumentsAndLoadsInFlight(){
+		this.load("user1", document("1-a", 10));
+		long loadSequence = this.cache.startLoad();
+		this.cache.clear();
+		this.cache.put("user2", document("1-a", 10), loadSequence);
+		assertNull(this.cache.get("user1"));
+		assertNull(this.cache.get("user2"));
+	}
+
+	@Test
+	public void frequentDocumentEvictsRarelyRequestedOne(){
+		List<String> ids = idsOfOneSegment(2);
+		this.load(ids.get(0), document("1-a", 100));
+		for(int i=0; i<5; i++){
+			this.cache.get(ids.get(1));
+		}
+		this.load(ids.get(1), document("1-a", 250));
+		assertNull(this.cache.get(ids.get(0)));
+		assertNotNull(this.cache.get(ids.get(1)));
+		assertEquals(1, this.cache.getEvictions());
+	}
+
+	@Test
+	public void rejectedDocumentEvictsNothing(){
+		List<String> ids = idsOfOneSegment(3);
+		for(int i=0; i<5; i++){
+			this.load(ids.get(0), document("1-a", 50));
+			this.load(ids.get(1), document("1-a", 50));
+		}
+		this.load(ids.get(2), document("1-a", 250));
+		assertNull(this.cache.get(ids.get(2)));
+		assertNotNull(this.cache.get(ids.get(0)));
+		assertNotNull(this.cache.get(ids.get(1)));
+		assertEquals(0, this.cache.getEvictions());
+	}
+
+	@Test
+	public void rejectedReplacementKeepsThePreviousEntry(){
+		List<String> ids = idsOfOneSegment(2);
+		for(int i=0; i<5; i++){
+			this.load(ids.get(0), document("1-a", 50));
+		}
+		this.load(ids.get(1), document("1-a", 50));
+		// Too large to fit next to the more frequent document
+		this.load(ids.get(1), document("2-b", 250));
+		assertEquals("1-a", this.cache.get(ids.get(1)).get("_rev"));
+		assertNotNull(this.cache.get(ids.get(0)));
+		assertEquals(2, this.cache.getSize());
+	}
+
+	@Test
+	public void documentLargerThanASegmentIsNotCached(){
+		this.load("user1", document("1-a", 1000));
+		assertNull(this.cache.get("user1"));
+		assertEquals(0, this.cache.getBytes());
+	}
+}
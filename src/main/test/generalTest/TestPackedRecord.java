@@ -0,0 +1,93 @@
+package generalTest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import com.yahoo.ycsb.ByteArrayByteIterator;
+import com.yahoo.ycsb.ByteIterator;
+
+import couchdb.DocumentWriter;
+import couchdb.PackedRecord;
+
+public class TestPackedRecord {
+
+	private static Map<String, byte[]> values() throws UnsupportedEncodingException{
+		Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+		result.put("field0", "plain value".getBytes("UTF-8"));
+		result.put("field1", "quotes \" and \\ and\nnewlines".getBytes("UTF-8"));
+		result.put("field2", "h\u00e9 \u20ac \u4e2d".getBytes("UTF-8"));
+		result.put("field3", new byte[0]);
+		byte[] binary = new byte[256];
+		for(int i=0; i<binary.length; i++){
+			binary[i] = (byte) i;
+		}
+		result.put("field4", binary);
+		return result;
+	}
+
+	private static JSONObject write(String id, String revision, Map<String, byte[]> values)
+			throws ParseException, UnsupportedEncodingException{
+		Map<String, ByteIterator> fields = new LinkedHashMap<String, ByteIterator>();
+		for(Map.Entry<String, byte[]> value: values.entrySet()){
+			fields.put(value.getKey(), new ByteArrayByteIterator(value.getValue()));
+		}
+		DocumentWriter writer = new DocumentWriter(16);
+		writer.writeAttachmentDocument(id, revision, fields);
+		String json = new String(writer.getBuffer(), 0, writer.getLength(), "UTF-8");
+		return (JSONObject) new JSONParser().parse(json);
+	}
+
+	@Test
+	public void allFieldsSurviveTheRoundTrip() throws Exception{
+		Map<String, byte[]> values = values();
+		JSONObject document = write("user1", "1-a", values);
+		assertEquals("user1", document.get("_id"));
+		PackedRecord record = PackedRecord.fromDocument(document);
+		assertEquals("1-a", record.getRevision());
+		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
+		record.copyFields(null, result);
+		assertEquals(values.keySet(), result.keySet());
+		for(Map.Entry<String, byte[]> value: values.entrySet()){
+			assertArrayEquals(value.getKey(), value.getValue(), result.get(value.getKey()).toArray());
+		}
+	}
+
+	@Test
+	public void onlyRequestedFieldsAreCopied() throws Exception{
+		Map<String, byte[]> values = values();
+		PackedRecord record = PackedRecord.fromDocument(write("user1", null, values));
+		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
+		record.copyFields(Collections.singleton("field2"), result);
+		assertEquals(Collections.singleton("field2"), result.keySet());
+		assertArrayEquals(values.get("field2"), result.get("field2").toArray());
+	}
+
+	@Test
+	public void recordWithoutFieldsHasNoValues() throws Exception{
+		PackedRecord record = PackedRecord.fromDocument(write("user1", "1-a", new HashMap<String, byte[]>()));
+		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
+		record.copyFields(null, result);
+		assertTrue(result.isEmpty());
+	}
+
+	@Test
+	public void base64DecodingMatchesEveryPaddingLength() throws Exception{
+		assertArrayEquals(new byte[0], PackedRecord.decodeBase64(""));
+		assertArrayEquals("f".getBytes("US-ASCII"), PackedRecord.decodeBase64("Zg=="));
+		assertArrayEquals("fo".getBytes("US-ASCII"), PackedRecord.decodeBase64("Zm8="));
+		assertArrayEquals("foo".getBytes("US-ASCII"), PackedRecord.decodeBase64("Zm9v"));
+		assertArrayEquals("foob".getBytes("US-ASCII"), PackedRecord.decodeBase64("Zm9vYg=="));
+	}
+}
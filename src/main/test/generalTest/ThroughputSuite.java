@@ -0,0 +1,344 @@
+package generalTest;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.yahoo.ycsb.ByteIterator;
+import com.yahoo.ycsb.DBException;
+import com.yahoo.ycsb.StringByteIterator;
+
+import couchdb.CouchdbClient;
+
+/*
+ * Drives CouchdbClient through YCSB-style operation mixes against
+ * in-process CouchdbStandIn nodes and prints the throughput and latency
+ * percentiles of every mix. Needs no CouchDB installation, so runs are
+ * repeatable on any machine.
+ *
+ * Settings are read from system properties (defaults in brackets):
+ * suite.nodes [3], suite.threads [8], suite.records [10000],
+ * suite.seconds [10], suite.fieldcount [10], suite.fieldlength [100],
+ * suite.latencyms [0], suite.failurerate [0], suite.workloads [A,B,C,E],
+ * suite.distribution [uniform] (uniform or zipfian, the key popularity of
+ * the mixes; zipfian uses the YCSB constant 0.99 with user0 the hottest).
+ * System properties starting with couchdb. are passed to the binding,
+ * so the modes of the binding can be compared, e.g.
+ *
+ *   java -Dcouchdb.selection=leastlatency generalTest.ThroughputSuite
+ *
+ * ***********************************************************************
+ *
+ * Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Administrative Contact: dnet-project-office@cs.kuleuven.be
+ * Technical Contact: arnaud.schoonjans@student.kuleuven.be
+ */
+public class ThroughputSuite {
+
+	private static final String TABLE = "usertable";
+	private static final int MAX_SCAN_LENGTH = 100;
+	private static final double ZIPFIAN_CONSTANT = 0.99;
+
+	private enum OperationType {
+		READ, UPDATE, INSERT, SCAN
+	}
+
+	/*
+	 * Proportions of the YCSB core workloads, in the order of OperationType.
+	 */
+	private static final Map<String, double[]> WORKLOADS = new HashMap<String, double[]>();
+	static{
+		WORKLOADS.put("A", new double[]{0.5, 0.5, 0, 0});
+		WORKLOADS.put("B", new double[]{0.95, 0.05, 0, 0});
+		WORKLOADS.put("C", new double[]{1, 0, 0, 0});
+		WORKLOADS.put("D", new double[]{0.95, 0, 0.05, 0});
+		WORKLOADS.put("E", new double[]{0, 0, 0.05, 0.95});
+	}
+
+	private final List<CouchdbStandIn> nodes;
+	private final String hosts;
+	private final int threads;
+	private final int records;
+	private final long durationMs;
+	private final int fieldCount;
+	private final int fieldLength;
+	private final AtomicLong nextInsertKey;
+	// Cumulative popularity of the keys, null for a uniform distribution
+	private double[] zipfianCdf;
+
+	public ThroughputSuite(int nodeCount, int threads, int records, long durationMs,
+			int fieldCount, int fieldLength) throws Exception{
+		CouchdbStandIn.Storage storage = new CouchdbStandIn.Storage();
+		this.nodes = new ArrayList<CouchdbStandIn>();
+		StringBuilder hosts = new StringBuilder();
+		for(int i=0; i<nodeCount; i++){
+			CouchdbStandIn node = new CouchdbStandIn(storage);
+			this.nodes.add(node);
+			URL url = node.getUrl();
+			if(i > 0)
+				hosts.append(',');
+			hosts.append(url.getHost()).append(':').append(url.getPort());
+		}
+		this.hosts = hosts.toString();
+		this.threads = threads;
+		this.records = records;
+		this.durationMs = durationMs;
+		this.fieldCount = fieldCount;
+		this.fieldLength = fieldLength;
+		this.nextInsertKey = new AtomicLong(records);
+		this.zipfianCdf = null;
+	}
+
+	/*
+	 * Makes the key of the n-th record 1/n^0.99 times as popular as user0
+	 * in the mixes.
+	 */
+	public void useZipfianDistribution(){
+		double[] cdf = new double[this.records];
+		double sum = 0;
+		for(int i=0; i<cdf.length; i++){
+			sum += 1 / Math.pow(i + 1, ZIPFIAN_CONSTANT);
+			cdf[i] = sum;
+		}
+		for(int i=0; i<cdf.length; i++){
+			cdf[i] /= sum;
+		}
+		this.zipfianCdf = cdf;
+	}
+
+	private int nextRecord(Random random){
+		if(this.zipfianCdf == null)
+			return random.nextInt(this.records);
+		int index = Arrays.binarySearch(this.zipfianCdf, random.nextDouble());
+		return Math.min(index < 0 ? -index - 1 : index, this.records - 1);
+	}
+
+	public List<CouchdbStandIn> getNodes(){
+		return this.nodes;
+	}
+
+	public void stop(){
+		for(CouchdbStandIn node: this.nodes){
+			node.stop();
+		}
+	}
+
+	private CouchdbClient createClient() throws DBException{
+		Properties properties = new Properties();
+		for(String name: System.getProperties().stringPropertyNames()){
+			if(name.startsWith("couchdb."))
+				properties.setProperty(name, System.getProperty(name));
+		}
+		properties.setProperty("hosts", this.hosts);
+		properties.setProperty("threadcount", Integer.toString(this.threads));
+		CouchdbClient client = new CouchdbClient();
+		client.setProperties(properties);
+		client.init();
+		return client;
+	}
+
+	private static String getKey(long number){
+		return "user" + number;
+	}
+
+	private HashMap<String, ByteIterator> createValues(Random random, int fields){
+		HashMap<String, ByteIterator> result = new HashMap<String, ByteIterator>();
+		for(int i=0; i<fields; i++){
+			char[] value = new char[this.fieldLength];
+			for(int j=0; j<value.length; j++){
+				value[j] = (char) (' ' + random.nextInt(95));
+			}
+			result.put("field" + i, new StringByteIterator(new String(value)));
+		}
+		return result;
+	}
+
+	/*
+	 * Inserts the records with all threads and returns the throughput.
+	 */
+	public double load() throws Exception{
+		final AtomicLong nextKey = new AtomicLong();
+		final Recorder recorder = new Recorder(3);
+		final AtomicLong errors = new AtomicLong();
+		long start = System.nanoTime();
+		this.runThreads(new ClientTask(){
+			@Override
+			public void run(CouchdbClient client, Random random){
+				long key;
+				while((key = nextKey.getAndIncrement()) < records){
+					long startTime = System.nanoTime();
+					int result = client.insert(TABLE, getKey(key), createValues(random, fieldCount));
+					recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+					if(result != 0)
+						errors.incrementAndGet();
+				}
+			}
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double throughput = this.records / seconds;
+		System.out.println(String.format("[LOAD] records=%d; throughput=%.1f ops/sec", this.records, throughput));
+		printHistogram("INSERT", recorder.getIntervalHistogram(), errors.get());
+		return throughput;
+	}
+
+	/*
+	 * Runs the mix for the configured duration and returns the throughput.
+	 */
+	public double run(final String name, final double[] proportions) throws Exception{
+		final Recorder[] recorders = new Recorder[OperationType.values().length];
+		final AtomicLong[] errors = new AtomicLong[recorders.length];
+		for(int i=0; i<recorders.length; i++){
+			recorders[i] = new Recorder(3);
+			errors[i] = new AtomicLong();
+		}
+		final AtomicLong operations = new AtomicLong();
+		final long deadline = System.currentTimeMillis() + this.durationMs;
+		long start = System.nanoTime();
+		this.runThreads(new ClientTask(){
+			@Override
+			public void run(CouchdbClient client, Random random){
+				while(System.currentTimeMillis() < deadline){
+					OperationType type = choose(proportions, random.nextDouble());
+					long startTime = System.nanoTime();
+					int result = execute(client, type, random);
+					recorders[type.ordinal()].recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+					if(result != 0)
+						errors[type.ordinal()].incrementAndGet();
+					operations.incrementAndGet();
+				}
+			}
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double throughput = operations.get() / seconds;
+		System.out.println(String.format("[WORKLOAD %s] threads=%d; operations=%d; throughput=%.1f ops/sec",
+				name, this.threads, operations.get(), throughput));
+		for(OperationType type: OperationType.values()){
+			Histogram histogram = recorders[type.ordinal()].getIntervalHistogram();
+			if(histogram.getTotalCount() > 0)
+				printHistogram(type.toString(), histogram, errors[type.ordinal()].get());
+		}
+		return throughput;
+	}
+
+	private static OperationType choose(double[] proportions, double value){
+		double sum = 0;
+		for(OperationType type: OperationType.values()){
+			sum += proportions[type.ordinal()];
+			if(value < sum)
+				return type;
+		}
+		return OperationType.READ;
+	}
+
+	private int execute(CouchdbClient client, OperationType type, Random random){
+		String key = getKey(this.nextRecord(random));
+		switch(type){
+		case READ:
+			return client.read(TABLE, key, null, new HashMap<String, ByteIterator>());
+		case UPDATE:
+			return client.update(TABLE, key, this.createValues(random, 1));
+		case INSERT:
+			return client.insert(TABLE, getKey(this.nextInsertKey.getAndIncrement()),
+					this.createValues(random, this.fieldCount));
+		default:
+			return client.scan(TABLE, key, 1 + random.nextInt(MAX_SCAN_LENGTH), null,
+					new Vector<HashMap<String, ByteIterator>>());
+		}
+	}
+
+	private static void printHistogram(String name, Histogram histogram, long errors){
+		System.out.println(String.format("  [%s] operations=%d; errors=%d; meanUs=%.0f; p50Us=%d; p95Us=%d; p99Us=%d; maxUs=%d",
+				name, histogram.getTotalCount(), errors, histogram.getMean(),
+				histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(95),
+				histogram.getValueAtPercentile(99), histogram.getMaxValue()));
+	}
+
+	private interface ClientTask {
+		void run(CouchdbClient client, Random random);
+	}
+
+	// One CouchdbClient per thread, like the YCSB client
+	private void runThreads(final ClientTask task) throws Exception{
+		final CouchdbClient[] clients = new CouchdbClient[this.threads];
+		for(int i=0; i<clients.length; i++){
+			clients[i] = this.createClient();
+		}
+		final CountDownLatch done = new CountDownLatch(this.threads);
+		final List<Throwable> failures = new Vector<Throwable>();
+		for(int i=0; i<this.threads; i++){
+			final CouchdbClient client = clients[i];
+			final Random random = new Random(i);
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						task.run(client, random);
+					} catch(Throwable exc){
+						failures.add(exc);
+					} finally{
+						done.countDown();
+					}
+				}
+			}, "suite-client-" + i);
+			thread.start();
+		}
+		done.await();
+		for(CouchdbClient client: clients){
+			client.cleanup();
+		}
+		if(!failures.isEmpty())
+			throw new IllegalStateException("Client thread failed", failures.get(0));
+	}
+
+	public static void main(String[] args) throws Exception{
+		ThroughputSuite suite = new ThroughputSuite(Integer.getInteger("suite.nodes", 3),
+				Integer.getInteger("suite.threads", 8), Integer.getInteger("suite.records", 10000),
+				Long.getLong("suite.seconds", 10) * 1000, Integer.getInteger("suite.fieldcount", 10),
+				Integer.getInteger("suite.fieldlength", 100));
+		try{
+			for(CouchdbStandIn node: suite.getNodes()){
+				node.setLatencyMs(Long.getLong("suite.latencyms", 0));
+				node.setFailureRate(Double.parseDouble(System.getProperty("suite.failurerate", "0")));
+			}
+			String distribution = System.getProperty("suite.distribution", "uniform");
+			if(distribution.equalsIgnoreCase("zipfian"))
+				suite.useZipfianDistribution();
+			else if(!distribution.equalsIgnoreCase("uniform"))
+				throw new IllegalArgumentException("Unknown distribution " + distribution);
+			suite.load();
+			for(String workload: System.getProperty("suite.workloads", "A,B,C,E").split(",")){
+				double[] proportions = WORKLOADS.get(workload.trim());
+				if(proportions == null)
+					throw new IllegalArgumentException("Unknown workload " + workload);
+				suite.run(workload.trim(), proportions);
+			}
+		} finally{
+			suite.stop();
+		}
+	}
+}